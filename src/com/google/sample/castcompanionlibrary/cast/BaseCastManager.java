@@ -20,15 +20,10 @@ import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
 import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGE;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import android.app.Activity;
-import android.app.ProgressDialog;
 import android.content.Context;
-import android.content.DialogInterface;
 import android.media.RemoteControlClient;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -55,11 +50,15 @@ import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 import com.google.sample.castcompanionlibrary.R;
 import com.google.sample.castcompanionlibrary.cast.callbacks.BaseCastConsumerImpl;
+import com.google.sample.castcompanionlibrary.cast.callbacks.ConnectionTimingListener;
 import com.google.sample.castcompanionlibrary.cast.callbacks.IBaseCastConsumer;
+import com.google.sample.castcompanionlibrary.cast.callbacks.ReconnectionListener;
 import com.google.sample.castcompanionlibrary.cast.exceptions.CastException;
 import com.google.sample.castcompanionlibrary.cast.exceptions.NoConnectionException;
 import com.google.sample.castcompanionlibrary.cast.exceptions.OnFailedListener;
 import com.google.sample.castcompanionlibrary.cast.exceptions.TransientNetworkDisconnectionException;
+import com.google.sample.castcompanionlibrary.utils.LatencyHistogram;
+import com.google.sample.castcompanionlibrary.utils.ListenerRegistry;
 import com.google.sample.castcompanionlibrary.utils.LogUtils;
 import com.google.sample.castcompanionlibrary.utils.Utils;
 
@@ -83,6 +82,16 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
     public static final String PREFS_KEY_SESSION_ID = "session-id";
     public static final String PREFS_KEY_ROUTE_ID = "route-id";
 
+    /**
+     * Discovery modes, from the cheapest to the most expensive
+     *
+     * @see #getDiscoveryMode()
+     */
+    public static final int DISCOVERY_STOPPED = 0;
+    public static final int DISCOVERY_PASSIVE = 1;
+    public static final int DISCOVERY_REQUESTED = 2;
+    public static final int DISCOVERY_ACTIVE_SCAN = 3;
+
     public static final int NO_STATUS_CODE = -1;
 
     private static String CCL_VERSION;
@@ -90,6 +99,7 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
     static final String TAG = LogUtils.makeLogTag(BaseCastManager.class);
     private static final int SESSION_RECOVERY_TIMEOUT = 5; // in seconds
     private static final long UI_INVISIBLE_DELAY_MS = 300L;
+    private static final long DEFAULT_ACTIVE_SCAN_WINDOW_MS = 30000L;
 
     protected Context mContext;
     protected final MediaRouter mMediaRouter;
@@ -97,18 +107,48 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
     protected final CastMediaRouterCallback mMediaRouterCallback;
     protected CastDevice mSelectedCastDevice;
     protected String mDeviceName;
-    private final List<IBaseCastConsumer> mBaseCastConsumers = new ArrayList<IBaseCastConsumer>();
+    private final ListenerRegistry<IBaseCastConsumer> mBaseCastConsumers =
+            new ListenerRegistry<IBaseCastConsumer>(IBaseCastConsumer.class);
+    private final ListenerRegistry<ReconnectionListener> mReconnectionListeners =
+            new ListenerRegistry<ReconnectionListener>(ReconnectionListener.class);
     private boolean mDestroyOnDisconnect = false;
     protected String mApplicationId;
     private Handler mHandler;
-    protected ReconnectionStatus mReconnectionStatus = ReconnectionStatus.INACTIVE;
+    final RouteRegistry mRouteRegistry;
+    final SessionRecovery mSessionRecovery = new SessionRecovery(this);
+    final ReconnectionScheduler mReconnectionScheduler = new ReconnectionScheduler(
+            new ReconnectionScheduler.Task() {
+
+                @Override
+                public void attempt(int attempt) {
+                    attemptReconnection();
+                }
+
+                @Override
+                public void onAttemptFinished(int attempt, long delayMs, long durationMs,
+                        boolean success) {
+                    for (ReconnectionListener listener : mReconnectionListeners.snapshot()) {
+                        try {
+                            listener.onReconnectionAttempt(attempt, delayMs, durationMs, success);
+                        } catch (Exception e) {
+                            LOGE(TAG, "onReconnectionAttempt(): Failed to inform " + listener, e);
+                        }
+                    }
+                }
+            });
     protected int mVisibilityCounter;
     protected boolean mUiVisible;
-    private List<UiVisibilityListener> mUiVisibilityListeners;
+    final DiscoveryController mDiscovery;
+    private int mCastButtonCounter;
+    private long mActiveScanWindowMs = DEFAULT_ACTIVE_SCAN_WINDOW_MS;
+    private boolean mActiveScanExpired;
+    private final ListenerRegistry<UiVisibilityListener> mUiVisibilityListeners =
+            new ListenerRegistry<UiVisibilityListener>(UiVisibilityListener.class);
     protected GoogleApiClient mApiClient;
-    protected AsyncTask<Void, Integer, Integer> mReconnectionTask;
     protected int mCapabilities;
     protected boolean mConnectionSuspened;
+    final Outbox mOutbox = new Outbox();
+    final ConnectionTimer mConnectionTimer = new ConnectionTimer();
     private boolean mWifiConnectivity = true;
     protected static BaseCastManager mCastManager;
     protected String mSessionId;
@@ -134,6 +174,13 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
      */
     abstract Cast.CastOptions.Builder getCastOptionBuilder(CastDevice device);
 
+    /**
+     * A chance for the subclasses to register their channels again when a suspended connection is
+     * re-established, before the consumers are informed of the recovery.
+     */
+    void onReattachChannels() {
+    }
+
     /**
      * Subclasses can decide how the Cast Controller Dialog should be built. If this returns
      * <code>null</code>, the default dialog will be shown.
@@ -183,22 +230,145 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
         mMediaRouteSelector = new MediaRouteSelector.Builder().addControlCategory(
                 CastMediaControlIntent.categoryForCast(mApplicationId)).build();
 
+        mRouteRegistry = new RouteRegistry(context);
         mMediaRouterCallback = new CastMediaRouterCallback(this, context);
+        mDiscovery = new DiscoveryController(context, mMediaRouter, mMediaRouteSelector,
+                mMediaRouterCallback);
     }
 
     public void onWifiConnectivityChanged(boolean connected) {
         LOGD(TAG, "WIFI connectivity changed to " + (connected ? "enabled" : "disabled"));
         if (connected && !mWifiConnectivity) {
-            mHandler.postDelayed(new Runnable() {
+            // Repeated flaps don't add attempts, they wait for the scheduled one
+            mReconnectionScheduler.schedule();
+        } else if (!connected) {
+            // Attempts are pointless without network, the backoff is kept for when it is back
+            mReconnectionScheduler.suspend();
+        }
+        mWifiConnectivity = connected;
+    }
 
-                @Override
-                public void run() {
-                    reconnectSessionIfPossible(mContext, false, 10);
-                }
-            }, 1000);
+    /**
+     * Sets the backoff of the reconnection attempts made while the connection is suspended or
+     * after the Wi-Fi connectivity comes back. The delay before an attempt doubles with each
+     * failed attempt, up to <code>maxDelayMs</code>, and a random part of up to half of it is
+     * taken off. The backoff is reset when a reconnection succeeds. The defaults are 1 second and
+     * 1 minute.
+     *
+     * @param initialDelayMs
+     * @param maxDelayMs
+     * @see #addReconnectionListener(ReconnectionListener)
+     */
+    public void setReconnectionBackoff(long initialDelayMs, long maxDelayMs) {
+        mReconnectionScheduler.setPolicy(initialDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Registers a listener which receives the outcome and the timings of each reconnection
+     * attempt.
+     *
+     * @param listener
+     */
+    public void addReconnectionListener(ReconnectionListener listener) {
+        mReconnectionListeners.add(listener);
+    }
+
+    public void removeReconnectionListener(ReconnectionListener listener) {
+        mReconnectionListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener which receives the breakdown of each connection, from the selection
+     * of a route to the first status of the receiver, once the connection is complete.
+     * Connections which fail or are cancelled are not reported.
+     *
+     * @param listener
+     */
+    public void addConnectionTimingListener(ConnectionTimingListener listener) {
+        mConnectionTimer.addListener(listener);
+    }
+
+    public void removeConnectionTimingListener(ConnectionTimingListener listener) {
+        mConnectionTimer.removeListener(listener);
+    }
+
+    /**
+     * @return The breakdown of the last complete connection, or null if there was none.
+     */
+    public ConnectionTiming getLastConnectionTiming() {
+        return mConnectionTimer.getLastTiming();
+    }
+
+    /**
+     * @param phase One of the <code>ConnectionTiming.PHASE_*</code> constants
+     * @return The live histogram of the time between the previous phase and <code>phase</code>,
+     *         over all the complete connections.
+     * @throws IllegalArgumentException If the phase is invalid
+     * @see ConnectionTiming#getPhaseDuration(int)
+     */
+    public LatencyHistogram getConnectionPhaseLatency(int phase) {
+        ConnectionTiming.checkPhase(phase);
+        return mConnectionTimer.getPhaseLatency(phase);
+    }
 
+    /**
+     * @return The live histogram of the total duration of the complete connections.
+     */
+    public LatencyHistogram getConnectionLatency() {
+        return mConnectionTimer.getTotalLatency();
+    }
+
+    /*
+     * A suspended connection is resumed by connecting the client again, after selecting the route
+     * again if it was lost. Otherwise the persisted session, if any, is recovered.
+     */
+    private void attemptReconnection() {
+        if (isConnected()) {
+            mReconnectionScheduler.onSuccess();
+            return;
         }
-        mWifiConnectivity = connected;
+        if (mConnectionSuspened) {
+            reselectRoute();
+            if (null != mApiClient && !mApiClient.isConnecting()) {
+                LOGD(TAG, "attemptReconnection(): Connecting the suspended client");
+                mApiClient.connect();
+            }
+        } else if (canConsiderSessionRecovery(mContext)) {
+            reconnectSessionIfPossible(mContext, false, 10);
+        } else {
+            // Nothing to reconnect to
+            mReconnectionScheduler.stop();
+        }
+    }
+
+    private void reselectRoute() {
+        RouteInfo route = findPersistedRoute();
+        if (null != route && !route.equals(mMediaRouter.getSelectedRoute())) {
+            LOGD(TAG, "reselectRoute(): Selecting " + route);
+            mMediaRouter.selectRoute(route);
+        }
+    }
+
+    /**
+     * Returns the registry of the cast routes available on the network, which can be used to
+     * look routes up by route id or device id, and to follow their changes. It is kept up to
+     * date while discovery is not stopped.
+     *
+     * @return
+     */
+    public RouteRegistry getRouteRegistry() {
+        return mRouteRegistry;
+    }
+
+    /*
+     * Returns the route of the last successful connection if it is available, or null.
+     */
+    RouteInfo findPersistedRoute() {
+        if (mDiscovery.getMode() == DISCOVERY_STOPPED) {
+            // The registry is only updated while the callback is registered
+            mMediaRouterCallback.syncRoutes(mMediaRouter, mMediaRouteSelector);
+        }
+        return mRouteRegistry.getPersistedRoute();
     }
 
     public static BaseCastManager getCastManager() {
@@ -227,7 +397,9 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
      * @param castPresent
      */
     public void onCastAvailabilityChanged(boolean castPresent) {
-        for (IBaseCastConsumer consumer : mBaseCastConsumers) {
+        // An active scan is only worth it until a device is found
+        updateDiscovery();
+        for (IBaseCastConsumer consumer : mBaseCastConsumers.snapshot()) {
             try {
                 consumer.onCastAvailabilityChanged(castPresent);
             } catch (Exception e) {
@@ -241,9 +413,12 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
         mDeviceName = mSelectedCastDevice != null ? mSelectedCastDevice.getFriendlyName() : null;
 
         if (mSelectedCastDevice == null) {
+            mSessionRecovery.cancel();
+            mConnectionTimer.abort();
             if (!mConnectionSuspened) {
+                mReconnectionScheduler.stop();
                 Utils.saveStringToPreference(mContext, PREFS_KEY_SESSION_ID, null);
-                Utils.saveStringToPreference(mContext, PREFS_KEY_ROUTE_ID, null);
+                mRouteRegistry.setPersistedRouteId(null);
             }
             mConnectionSuspened = false;
             try {
@@ -271,6 +446,11 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
             mSessionId = null;
         } else if (null == mApiClient) {
             LOGD(TAG, "acquiring a connection to Google Play services for " + mSelectedCastDevice);
+            if (!mConnectionTimer.isRunning()) {
+                // Selected by a session recovery rather than through a route
+                mConnectionTimer.start();
+            }
+            mConnectionTimer.mark(ConnectionTiming.PHASE_DEVICE_SET);
             Cast.CastOptions.Builder apiOptionsBuilder = getCastOptionBuilder(mSelectedCastDevice);
             mApiClient = new GoogleApiClient.Builder(mContext)
                     .addApi(Cast.API, apiOptionsBuilder.build())
@@ -281,11 +461,12 @@ public abstract class BaseCastManager implements DeviceSelectionListener, Connec
         } else if (!mApiClient.isConnected()) {
             mApiClient.connect();
         }
+        updateDiscovery();
     }
 
     @Override
     public void onCastDeviceDetected(RouteInfo info) {
-        for (IBaseCastConsumer consumer : mBaseCastConsumers) {
+        for (IBaseCastConsumer consumer : mBaseCastConsumers.snapshot()) {
             try {
                 consumer.onCastDeviceDetected(info);
             } catch (Exception e) {
@@ -398,18 +579,11 @@ public void onCastAvailabilityChanged(boolean castPresent) {
     }
 
     public void addUiVisibilityListener(UiVisibilityListener listener) {
-    	if (mUiVisibilityListeners == null) {
-    		mUiVisibilityListeners = new ArrayList<UiVisibilityListener>();
-    	}
     	mUiVisibilityListeners.add(listener);
     }
 
     public void removeUiVisibilityListener(UiVisibilityListener listener) {
-    	if (mUiVisibilityListeners != null) {
-    		if (mUiVisibilityListeners.remove(listener) && (mUiVisibilityListeners.size() == 0)) {
-    			mUiVisibilityListeners = null;
-    		}
-    	}
+    	mUiVisibilityListeners.remove(listener);
     }
 
     private final Runnable mUiInvisibleRunnable = new Runnable() {
@@ -419,6 +593,133 @@ public void onCastAvailabilityChanged(boolean castPresent) {
 		}
     };
 
+    /**
+     * Calling this method signals the library that a cast button or a cast menu item is made
+     * visible, typically in <code>onCreateOptionsMenu()</code> or when a
+     * {@link MediaRouteButton} is shown. While at least one of them is visible, the library runs
+     * an active scan so the devices show up sooner. The scan stops once a device is found or
+     * after the window set by {@link #setActiveScanWindow(long)}, and only runs again when the
+     * counter goes back to 0 and then up. Every call must be balanced by a call to
+     * {@link #decrementCastButtonCounter()}.
+     */
+    public void incrementCastButtonCounter() {
+        if (++mCastButtonCounter == 1) {
+            mActiveScanExpired = false;
+            mHandler.postDelayed(mActiveScanTimeoutRunnable, mActiveScanWindowMs);
+            updateDiscovery();
+        }
+    }
+
+    /**
+     * Calling this method signals the library that a cast button or a cast menu item is hidden.
+     *
+     * @see #incrementCastButtonCounter()
+     */
+    public void decrementCastButtonCounter() {
+        if (--mCastButtonCounter == 0) {
+            mHandler.removeCallbacks(mActiveScanTimeoutRunnable);
+            updateDiscovery();
+        }
+    }
+
+    /**
+     * Sets the longest time an active scan runs after a cast button becomes visible. The default
+     * is 30 seconds.
+     *
+     * @param windowMs
+     */
+    public void setActiveScanWindow(long windowMs) {
+        mActiveScanWindowMs = Math.max(0L, windowMs);
+    }
+
+    private final Runnable mActiveScanTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mActiveScanExpired = true;
+            updateDiscovery();
+        }
+    };
+
+    /**
+     * Returns the current discovery mode, which the library adapts to what can be done with the
+     * routes:
+     * <ul>
+     * <li>{@link #DISCOVERY_ACTIVE_SCAN} while a cast button is visible and no device was found,
+     * see {@link #incrementCastButtonCounter()}</li>
+     * <li>{@link #DISCOVERY_REQUESTED} while the UI is otherwise visible, or while a session
+     * recovery waits for its device</li>
+     * <li>{@link #DISCOVERY_PASSIVE} in the background while a device is selected, so the routes
+     * are still updated when other clients discover them</li>
+     * <li>{@link #DISCOVERY_STOPPED} in the background when there is no session</li>
+     * </ul>
+     *
+     * @return
+     */
+    public int getDiscoveryMode() {
+        return mDiscovery.getMode();
+    }
+
+    /**
+     * Returns the time spent in a discovery mode since the library was initialized, or since
+     * the last call to {@link #resetDiscoveryStats()}.
+     *
+     * @param mode One of the <code>DISCOVERY_*</code> constants
+     * @return The time in milliseconds
+     */
+    public long getDiscoveryTime(int mode) {
+        checkDiscoveryMode(mode);
+        return mDiscovery.getTimeInMode(mode);
+    }
+
+    /**
+     * Returns the battery drained while in a discovery mode, not counting the time spent charging
+     * or the current period. The battery level has a 1% resolution, so this is only meaningful
+     * over long periods.
+     *
+     * @param mode One of the <code>DISCOVERY_*</code> constants
+     * @return The drain in percent of the battery capacity
+     */
+    public float getDiscoveryBatteryDrain(int mode) {
+        checkDiscoveryMode(mode);
+        return mDiscovery.getBatteryDrain(mode);
+    }
+
+    /**
+     * @param mode One of the <code>DISCOVERY_*</code> constants
+     * @return The number of times the mode was entered
+     */
+    public int getDiscoveryCount(int mode) {
+        checkDiscoveryMode(mode);
+        return mDiscovery.getEntryCount(mode);
+    }
+
+    public void resetDiscoveryStats() {
+        mDiscovery.resetStats();
+    }
+
+    private static void checkDiscoveryMode(int mode) {
+        if (mode < DISCOVERY_STOPPED || mode > DISCOVERY_ACTIVE_SCAN) {
+            throw new IllegalArgumentException("Invalid discovery mode: " + mode);
+        }
+    }
+
+    void updateDiscovery() {
+        int mode;
+        if (mUiVisible) {
+            boolean scan = (mCastButtonCounter > 0) && !mActiveScanExpired
+                    && (mRouteRegistry.size() == 0);
+            mode = scan ? DISCOVERY_ACTIVE_SCAN : DISCOVERY_REQUESTED;
+        } else if (mSessionRecovery.getStatus() == ReconnectionStatus.STARTED) {
+            // The persisted route has to be discovered
+            mode = DISCOVERY_REQUESTED;
+        } else if (null != mSelectedCastDevice) {
+            mode = DISCOVERY_PASSIVE;
+        } else {
+            mode = DISCOVERY_STOPPED;
+        }
+        mDiscovery.setMode(mode);
+    }
+
     /**
      * This is called when UI visibility of the client has changed
      *
@@ -426,19 +727,11 @@ public void onCastAvailabilityChanged(boolean castPresent) {
      */
     protected void onUiVisibilityChanged(boolean visible) {
     	mUiVisible = visible;
-        if (visible) {
-        	LOGD(TAG, "UI is visible");
-        	mMediaRouter.addCallback(mMediaRouteSelector, mMediaRouterCallback,
-        			MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY);
-        } else {
-            LOGD(TAG, "UI is no longer visible");
-            mMediaRouter.removeCallback(mMediaRouterCallback);
-        }
+        LOGD(TAG, visible ? "UI is visible" : "UI is no longer visible");
+        updateDiscovery();
         // Notify listeners, if any
-        if (mUiVisibilityListeners != null) {
-        	for (UiVisibilityListener listener : mUiVisibilityListeners) {
-        		listener.onUiVisibilityChanged(visible);
-        	}
+        for (UiVisibilityListener listener : mUiVisibilityListeners.snapshot()) {
+            listener.onUiVisibilityChanged(visible);
         }
     }
 
@@ -535,6 +828,28 @@ public void onCastAvailabilityChanged(boolean castPresent) {
         return (feature & mCapabilities) > 0;
     }
 
+    /**
+     * Enables the outbox: instead of throwing a {@link TransientNetworkDisconnectionException},
+     * the methods sending data messages buffer them while the connection is suspended. They are
+     * sent in order when the connectivity is recovered, except the ones older than
+     * <code>ttlMs</code>. When the buffered messages exceed <code>maxBytes</code>, the oldest
+     * ones are dropped. Dropped messages are reported as failed. The outbox is disabled by
+     * default.
+     *
+     * @param maxBytes Approximate maximum size of the buffered messages, or 0 to disable the outbox
+     * @param ttlMs Maximum age of the messages when they are sent, or 0 for no limit
+     */
+    public void setMessageOutbox(long maxBytes, long ttlMs) {
+        mOutbox.setPolicy(maxBytes, ttlMs);
+    }
+
+    /*
+     * Returns true if the data messages have to be buffered in the outbox
+     */
+    boolean shouldBufferMessages() {
+        return mConnectionSuspened && mOutbox.isEnabled();
+    }
+
     /**
      * Sets the device (system) volume.
      *
@@ -649,7 +964,7 @@ public void onCastAvailabilityChanged(boolean castPresent) {
      * @return
      */
     public ReconnectionStatus getReconnectionStatus() {
-        return mReconnectionStatus;
+        return mSessionRecovery.getStatus();
     }
 
     /**
@@ -658,7 +973,20 @@ public void onCastAvailabilityChanged(boolean castPresent) {
      * @param status
      */
     public final void setReconnectionStatus(ReconnectionStatus status) {
-        mReconnectionStatus = status;
+        mSessionRecovery.setStatus(status);
+    }
+
+    /**
+     * Cancels the recovery of a prior session, if one is in progress.
+     *
+     * @deprecated The recovery no longer runs in a task. Kept for the subclasses which used to
+     *             cancel the <code>mReconnectionTask</code> field, removed along with
+     *             <code>mReconnectionStatus</code>; use {@link #getReconnectionStatus()} instead of
+     *             the latter.
+     */
+    @Deprecated
+    protected void cancelReconnectionTask() {
+        mSessionRecovery.cancel();
     }
 
     /**
@@ -671,7 +999,7 @@ public void onCastAvailabilityChanged(boolean castPresent) {
      */
     public final boolean canConsiderSessionRecovery(Context context) {
         String sessionId = Utils.getStringFromPreference(context, PREFS_KEY_SESSION_ID);
-        String routeId = Utils.getStringFromPreference(context, PREFS_KEY_ROUTE_ID);
+        String routeId = mRouteRegistry.getPersistedRouteId();
         if (null == sessionId || null == routeId) {
             return false;
         }
@@ -680,36 +1008,6 @@ public void onCastAvailabilityChanged(boolean castPresent) {
         return true;
     }
 
-    private void reconnectSessionIfPossibleInternal(RouteInfo theRoute) {
-        if (isConnected()) {
-            return;
-        }
-        String sessionId = Utils.getStringFromPreference(mContext, PREFS_KEY_SESSION_ID);
-        String routeId = Utils.getStringFromPreference(mContext, PREFS_KEY_ROUTE_ID);
-        LOGD(TAG, "reconnectSessionIfPossible() Retrieved from preferences: " + "sessionId="
-                + sessionId + ", routeId=" + routeId);
-        if (null == sessionId || null == routeId) {
-            return;
-        }
-        mReconnectionStatus = ReconnectionStatus.IN_PROGRESS;
-        CastDevice device = CastDevice.getFromBundle(theRoute.getExtras());
-
-        if (null != device) {
-            LOGD(TAG, "trying to acquire Cast Client for " + device);
-            onDeviceSelected(device);
-        }
-    }
-
-    /*
-     * Cancels the task responsible for recovery of prior sessions, is used internally.
-     */
-    void cancelReconnectionTask() {
-        LOGD(TAG, "cancelling reconnection task");
-        if (null != mReconnectionTask && !mReconnectionTask.isCancelled()) {
-            mReconnectionTask.cancel(true);
-        }
-    }
-
     /**
      * This method tries to automatically re-establish connection to a session if
      * <ul>
@@ -717,10 +1015,10 @@ public void onCastAvailabilityChanged(boolean castPresent) {
      * <li>The Cast Device that user had connected to previously is still running the same session
      * </ul>
      * Under these conditions, a best-effort attempt will be made to continue with the same session.
-     * This attempt will go on for <code>timeoutInSeconds</code> seconds. During this period, an
-     * optional dialog can be shown if <code>showDialog</code> is set to <code>true</code>. The
-     * message in this dialog can be changed by overriding the resource
-     * <code>R.string.session_reconnection_attempt</code>
+     * This attempt will go on for at most <code>timeoutInSeconds</code> seconds, and ends as soon
+     * as the session is rejoined. During this period, an optional dialog can be shown if
+     * <code>showDialog</code> is set to <code>true</code>. The message in this dialog can be
+     * changed by overriding the resource <code>R.string.session_reconnection_attempt</code>
      *
      * @param context
      * @param showDialog
@@ -732,137 +1030,8 @@ public void onCastAvailabilityChanged(boolean castPresent) {
             return;
         }
         LOGD(TAG, "reconnectSessionIfPossible()");
-        String routeId = Utils.getStringFromPreference(context, PREFS_KEY_ROUTE_ID);
-        if (canConsiderSessionRecovery(context)) {
-            List<RouteInfo> routes = mMediaRouter.getRoutes();
-            RouteInfo theRoute = null;
-            if (null != routes && !routes.isEmpty()) {
-                for (RouteInfo route : routes) {
-                    if (route.getId().equals(routeId)) {
-                        theRoute = route;
-                        break;
-                    }
-                }
-            }
-            if (null != theRoute) {
-                // route has already been discovered, so lets just get the
-                // device, etc
-                reconnectSessionIfPossibleInternal(theRoute);
-            } else {
-                // we set a flag so if the route is discovered within a short
-                // period, we let onRouteAdded callback of
-                // CastMediaRouterCallback take
-                // care of that
-                mReconnectionStatus = ReconnectionStatus.STARTED;
-            }
-
-            // we may need to reconnect to an existing session
-            mReconnectionTask = new AsyncTask<Void, Integer, Integer>() {
-                ProgressDialog dlg;
-                private final int SUCCESS = 1;
-                private final int FAILED = 2;
-
-                @Override
-                protected void onCancelled() {
-                    if (null != dlg) {
-                        dlg.dismiss();
-                    }
-                    super.onCancelled();
-                }
-
-                @Override
-                protected void onPreExecute() {
-                    if (!showDialog) {
-                        return;
-                    }
-                    dlg = new ProgressDialog(context);
-                    dlg.setMessage(context.getString(R.string.session_reconnection_attempt));
-                    dlg.setIndeterminate(true);
-                    dlg.setCancelable(true);
-                    dlg.setOnCancelListener(new DialogInterface.OnCancelListener() {
-
-                        @Override
-                        public void onCancel(DialogInterface dialog) {
-                            switch (mReconnectionStatus) {
-                                case STARTED:
-                                case IN_PROGRESS:
-                                case FINALIZE:
-                                    mReconnectionStatus = ReconnectionStatus.INACTIVE;
-                                    onDeviceSelected(null);
-                                    break;
-                                default:
-                                    break;
-                            }
-                            mReconnectionStatus = ReconnectionStatus.INACTIVE;
-                            if (null != dlg) {
-                                dlg.dismiss();
-                            }
-                            mReconnectionTask.cancel(true);
-                        }
-                    });
-                    dlg.setButton(ProgressDialog.BUTTON_NEGATIVE, context.getString(android.R.string.cancel),
-                            new DialogInterface.OnClickListener() {
-
-                                @Override
-                                public void onClick(DialogInterface dialog, int which) {
-                                    switch (mReconnectionStatus) {
-                                        case STARTED:
-                                        case IN_PROGRESS:
-                                        case FINALIZE:
-                                            mReconnectionStatus = ReconnectionStatus.INACTIVE;
-                                            onDeviceSelected(null);
-                                            break;
-                                        default:
-                                            break;
-                                    }
-                                    mReconnectionStatus = ReconnectionStatus.INACTIVE;
-                                    if (null != dlg) {
-                                        dlg.cancel();
-                                    }
-                                    mReconnectionTask.cancel(true);
-                                }
-                            }
-                    );
-                    dlg.show();
-                }
-
-                @Override
-                protected Integer doInBackground(Void... params) {
-                    for (int i = 0; i < timeoutInSeconds; i++) {
-                        if (mReconnectionTask.isCancelled()) {
-                            if (null != dlg) {
-                                dlg.dismiss();
-                            }
-                            return SUCCESS;
-                        }
-                        try {
-                            if (isConnected()) {
-                                cancel(true);
-                            }
-                            Thread.sleep(1000);
-                        } catch (Exception e) {
-                            // ignore
-                        }
-                    }
-                    return FAILED;
-                }
-
-                @Override
-                protected void onPostExecute(Integer result) {
-                    if (showDialog && null != dlg) {
-                        dlg.dismiss();
-                    }
-                    if (null != result) {
-                        if (result == FAILED) {
-                            mReconnectionStatus = ReconnectionStatus.INACTIVE;
-                            onDeviceSelected(null);
-                        }
-                    }
-                }
-
-            };
-            mReconnectionTask.execute();
-        }
+        mSessionRecovery.start(context, showDialog, timeoutInSeconds);
+        updateDiscovery();
     }
 
     /**
@@ -892,7 +1061,7 @@ public void onCastAvailabilityChanged(boolean castPresent) {
      * disconnect. Note: this is not called by SDK.
      */
     public void onConnectivityRecovered() {
-        for (IBaseCastConsumer consumer : mBaseCastConsumers) {
+        for (IBaseCastConsumer consumer : mBaseCastConsumers.snapshot()) {
             try {
                 consumer.onConnectivityRecovered();
             } catch (Exception e) {
@@ -914,23 +1083,26 @@ public void onCastAvailabilityChanged(boolean castPresent) {
             if (null != hint && hint.getBoolean(Cast.EXTRA_APP_NO_LONGER_RUNNING)) {
                 // the same app is not running any more
                 LOGD(TAG, "onConnected(): App no longer running, so disconnecting");
+                mReconnectionScheduler.stop();
                 disconnect();
             } else {
+                onReattachChannels();
+                mReconnectionScheduler.onSuccess();
                 onConnectivityRecovered();
             }
             return;
         }
         if (!isConnected()) {
-            if (mReconnectionStatus == ReconnectionStatus.IN_PROGRESS) {
-                mReconnectionStatus = ReconnectionStatus.INACTIVE;
-            }
+            mSessionRecovery.onConnectionLost();
             return;
         }
+        mConnectionTimer.mark(ConnectionTiming.PHASE_CONNECTED);
+        mReconnectionScheduler.onSuccess();
         try {
             Cast.CastApi.requestStatus(mApiClient);
             launchApp();
 
-            for (IBaseCastConsumer consumer : mBaseCastConsumers) {
+            for (IBaseCastConsumer consumer : mBaseCastConsumers.snapshot()) {
                 try {
                     consumer.onConnected();
                 } catch (Exception e) {
@@ -957,7 +1129,7 @@ public void onCastAvailabilityChanged(boolean castPresent) {
     protected void onDisconnected() {
         LOGD(TAG, "onDisconnected() reached");
         mDeviceName = null;
-        for (IBaseCastConsumer consumer : mBaseCastConsumers) {
+        for (IBaseCastConsumer consumer : mBaseCastConsumers.snapshot()) {
             try {
                 consumer.onDisconnected();
             } catch (Exception e) {
@@ -978,7 +1150,7 @@ public void onCastAvailabilityChanged(boolean castPresent) {
         mConnectionSuspened = false;
         setDevice(null, mDestroyOnDisconnect);
         mMediaRouter.selectRoute(mMediaRouter.getDefaultRoute());
-        for (IBaseCastConsumer consumer : mBaseCastConsumers) {
+        for (IBaseCastConsumer consumer : mBaseCastConsumers.snapshot()) {
             try {
                 consumer.onConnectionFailed(result);
             } catch (Exception e) {
@@ -991,7 +1163,9 @@ public void onCastAvailabilityChanged(boolean castPresent) {
     public void onConnectionSuspended(int cause) {
         mConnectionSuspened = true;
         LOGD(TAG, "onConnectionSuspended() was called with cause: " + cause);
-        for (IBaseCastConsumer consumer : mBaseCastConsumers) {
+        // Google Play services tries to reconnect too, this speeds it up on flaky networks
+        mReconnectionScheduler.schedule();
+        for (IBaseCastConsumer consumer : mBaseCastConsumers.snapshot()) {
             try {
                 consumer.onConnectionSuspended(cause);
             } catch (Exception e) {
@@ -1007,14 +1181,16 @@ public void onCastAvailabilityChanged(boolean castPresent) {
     private void launchApp() throws TransientNetworkDisconnectionException, NoConnectionException {
         LOGD(TAG, "launchApp() is called");
         if (!isConnected()) {
-            if (mReconnectionStatus == ReconnectionStatus.IN_PROGRESS) {
-                mReconnectionStatus = ReconnectionStatus.INACTIVE;
+            if (mSessionRecovery.isJoining()) {
+                mSessionRecovery.onConnectionLost();
                 return;
             }
             checkConnectivity();
         }
 
-        if (mReconnectionStatus == ReconnectionStatus.IN_PROGRESS) {
+        mConnectionTimer.setJoined(mSessionRecovery.isJoining());
+        mConnectionTimer.mark(ConnectionTiming.PHASE_LAUNCH_STARTED);
+        if (mSessionRecovery.isJoining()) {
             LOGD(TAG, "Attempting to join a previously interrupted session...");
             String sessionId = Utils.getStringFromPreference(mContext, PREFS_KEY_SESSION_ID);
             LOGD(TAG, "joinApplication() -> start");
@@ -1030,6 +1206,7 @@ public void onCastAvailabilityChanged(boolean castPresent) {
                                         result.getWasLaunched());
                             } else {
                                 LOGD(TAG, "joinApplication() -> failure");
+                                mConnectionTimer.abort();
                                 onApplicationConnectionFailed(result.getStatus().getStatusCode());
                             }
                         }
@@ -1049,6 +1226,7 @@ public void onCastAvailabilityChanged(boolean castPresent) {
                                         result.getWasLaunched());
                             } else {
                                 LOGD(TAG, "launchApplication() -> failure result");
+                                mConnectionTimer.abort();
                                 onApplicationConnectionFailed(result.getStatus().getStatusCode());
                             }
                         }
@@ -1128,7 +1306,7 @@ public void onCastAvailabilityChanged(boolean castPresent) {
     @Override
     public void onFailed(int resourceId, int statusCode) {
         LOGD(TAG, "onFailed() was called with statusCode: " + statusCode);
-        for (IBaseCastConsumer consumer : mBaseCastConsumers) {
+        for (IBaseCastConsumer consumer : mBaseCastConsumers.snapshot()) {
             try {
                 consumer.onFailed(resourceId, statusCode);
             } catch (Exception e) {
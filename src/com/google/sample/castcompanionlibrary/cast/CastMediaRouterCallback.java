@@ -19,13 +19,12 @@ package com.google.sample.castcompanionlibrary.cast;
 import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
 
 import android.content.Context;
+import android.support.v7.media.MediaRouteSelector;
 import android.support.v7.media.MediaRouter;
 import android.support.v7.media.MediaRouter.RouteInfo;
 
 import com.google.android.gms.cast.CastDevice;
-import com.google.sample.castcompanionlibrary.cast.BaseCastManager.ReconnectionStatus;
 import com.google.sample.castcompanionlibrary.utils.LogUtils;
-import com.google.sample.castcompanionlibrary.utils.Utils;
 
 /**
  * Provides a handy implementation of {@link MediaRouter.Callback}. When a {@link RouteInfo} is
@@ -40,7 +39,6 @@ public class CastMediaRouterCallback extends MediaRouter.Callback {
     private static final String TAG = LogUtils.makeLogTag(CastMediaRouterCallback.class);
     private final DeviceSelectionListener selectDeviceInterface;
     private final Context mContext;
-    private int mRouteCount = 0;
 
     public CastMediaRouterCallback(DeviceSelectionListener callback, Context context) {
         this.selectDeviceInterface = callback;
@@ -50,13 +48,14 @@ public class CastMediaRouterCallback extends MediaRouter.Callback {
     @Override
     public void onRouteSelected(MediaRouter router, RouteInfo info) {
         LOGD(TAG, "onRouteSelected: info=" + info);
-        if (BaseCastManager.getCastManager().getReconnectionStatus()
-                == BaseCastManager.ReconnectionStatus.FINALIZE) {
-            BaseCastManager.getCastManager().setReconnectionStatus(ReconnectionStatus.INACTIVE);
-            BaseCastManager.getCastManager().cancelReconnectionTask();
+        BaseCastManager castManager = BaseCastManager.getCastManager();
+        if (castManager.mSessionRecovery.onRouteSelected()) {
+            // Selected at the end of a session recovery, the device is already connected
             return;
         }
-        Utils.saveStringToPreference(mContext, BaseCastManager.PREFS_KEY_ROUTE_ID, info.getId());
+        castManager.mConnectionTimer.start();
+        castManager.mConnectionTimer.mark(ConnectionTiming.PHASE_ROUTE_SELECTED);
+        castManager.mRouteRegistry.setPersistedRouteId(info.getId());
         CastDevice device = CastDevice.getFromBundle(info.getExtras());
         selectDeviceInterface.onDeviceSelected(device);
         LOGD(TAG, "onResult: mSelectedDevice=" + device.getFriendlyName());
@@ -71,34 +70,47 @@ public class CastMediaRouterCallback extends MediaRouter.Callback {
     @Override
     public void onRouteAdded(MediaRouter router, RouteInfo route) {
         super.onRouteAdded(router, route);
+        BaseCastManager castManager = BaseCastManager.getCastManager();
         if (!router.getDefaultRoute().equals(route)) {
-            if (++mRouteCount == 1) {
-                BaseCastManager.getCastManager().onCastAvailabilityChanged(true);
-            }
+            RouteRegistry registry = castManager.mRouteRegistry;
+            boolean wasAvailable = registry.size() > 0;
+            registry.onRouteAdded(route);
+            updateAvailability(wasAvailable);
             selectDeviceInterface.onCastDeviceDetected(route);
         }
-        if (BaseCastManager.getCastManager().getReconnectionStatus() == ReconnectionStatus.STARTED) {
-            String routeId = Utils.getStringFromPreference(mContext,
-                    BaseCastManager.PREFS_KEY_ROUTE_ID);
-            if (route.getId().equals(routeId)) {
-                // we found the route, so lets go with that
-                LOGD(TAG, "onRouteAdded: Attempting to recover a session with info=" + route);
-                BaseCastManager.getCastManager().setReconnectionStatus(
-                        ReconnectionStatus.IN_PROGRESS);
-
-                CastDevice device = CastDevice.getFromBundle(route.getExtras());
-                LOGD(TAG, "onRouteAdded: Attempting to recover a session with device: "
-                        + device.getFriendlyName());
-                selectDeviceInterface.onDeviceSelected(device);
-            }
-        }
+        castManager.mSessionRecovery.onRouteAdded(route);
     }
 
     @Override
     public void onRouteRemoved(MediaRouter router, RouteInfo route) {
         super.onRouteRemoved(router, route);
-        if (--mRouteCount == 0) {
-            BaseCastManager.getCastManager().onCastAvailabilityChanged(false);
+        RouteRegistry registry = BaseCastManager.getCastManager().mRouteRegistry;
+        boolean wasAvailable = registry.size() > 0;
+        registry.onRouteRemoved(route);
+        updateAvailability(wasAvailable);
+    }
+
+    @Override
+    public void onRouteChanged(MediaRouter router, RouteInfo route) {
+        super.onRouteChanged(router, route);
+        BaseCastManager.getCastManager().mRouteRegistry.onRouteChanged(route);
+    }
+
+    /*
+     * Routes are only reported while the callback is registered, so the registry has to catch up
+     * with the changes which happened meanwhile.
+     */
+    void syncRoutes(MediaRouter router, MediaRouteSelector selector) {
+        RouteRegistry registry = BaseCastManager.getCastManager().mRouteRegistry;
+        boolean wasAvailable = registry.size() > 0;
+        registry.sync(router.getRoutes(), selector);
+        updateAvailability(wasAvailable);
+    }
+
+    private void updateAvailability(boolean wasAvailable) {
+        boolean available = BaseCastManager.getCastManager().mRouteRegistry.size() > 0;
+        if (available != wasAvailable) {
+            BaseCastManager.getCastManager().onCastAvailabilityChanged(available);
         }
     }
 
@@ -0,0 +1,108 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.sample.castcompanionlibrary.cast.MessageChunker.Chunk;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Reassembles the chunked messages of all namespaces. The total size of the partial messages is
+ * capped: when it is exceeded, the streams which were updated least recently are dropped. A
+ * stream is also dropped when one of its chunks is missing, and replaced when a new stream starts
+ * with the same id.
+ */
+final class ChunkAssembler {
+
+    private static final String TAG = LogUtils.makeLogTag(ChunkAssembler.class);
+
+    // In access order, so the first stream is the one updated least recently
+    private final LinkedHashMap<String, Stream> mStreams = new LinkedHashMap<String, Stream>(16,
+            0.75f, true);
+    private int mMaxSize;
+    private int mSize;
+
+    ChunkAssembler(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @param maxSize Maximum total length of the partial messages, or 0 to disable reassembly
+     */
+    synchronized void setMaxSize(int maxSize) {
+        mMaxSize = Math.max(0, maxSize);
+        trimToSize();
+    }
+
+    synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return The complete message if this was the last chunk of a stream, otherwise null.
+     */
+    synchronized String add(String namespace, Chunk chunk) {
+        if (mMaxSize == 0) {
+            return null;
+        }
+        String key = namespace + '\n' + chunk.mId;
+        Stream stream = mStreams.get(key);
+        if ((stream != null) && (chunk.mSequence != stream.mNextSequence)) {
+            LOGD(TAG, "add(): Missing chunk, dropping stream " + chunk.mId + " of " + namespace);
+            remove(key);
+            // The chunk may start a new stream with the same id
+            stream = null;
+        }
+        if (stream == null) {
+            if (chunk.mSequence != 0) {
+                // The beginning of the stream was dropped
+                return null;
+            }
+            stream = new Stream();
+            mStreams.put(key, stream);
+        }
+        if (chunk.mLast) {
+            remove(key);
+            if (stream.mData.length() == 0) {
+                return chunk.mData;
+            }
+            return stream.mData.append(chunk.mData).toString();
+        }
+        stream.mData.append(chunk.mData);
+        stream.mNextSequence++;
+        mSize += chunk.mData.length();
+        trimToSize();
+        return null;
+    }
+
+    synchronized void clear() {
+        mStreams.clear();
+        mSize = 0;
+    }
+
+    private void remove(String key) {
+        Stream stream = mStreams.remove(key);
+        if (stream != null) {
+            mSize -= stream.mData.length();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Stream>> iterator = mStreams.entrySet().iterator();
+        while ((mSize > mMaxSize) && iterator.hasNext()) {
+            Map.Entry<String, Stream> entry = iterator.next();
+            LOGD(TAG, "trimToSize(): Reassembly limit reached, dropping stream " + entry.getKey());
+            mSize -= entry.getValue().mData.length();
+            iterator.remove();
+        }
+    }
+
+    private static class Stream {
+
+        final StringBuilder mData = new StringBuilder();
+        int mNextSequence;
+    }
+}
@@ -0,0 +1,117 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGE;
+
+import android.os.SystemClock;
+
+import com.google.sample.castcompanionlibrary.cast.callbacks.ConnectionTimingListener;
+import com.google.sample.castcompanionlibrary.utils.LatencyHistogram;
+import com.google.sample.castcompanionlibrary.utils.ListenerRegistry;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Stamps the phases of the connection in progress, and aggregates the durations of the completed
+ * connections. Phases stamped while no connection is timed, or stamped twice, are ignored. This
+ * class must be used on the main thread, the histograms can be read from any thread.
+ */
+final class ConnectionTimer {
+
+    private static final String TAG = LogUtils.makeLogTag(ConnectionTimer.class);
+
+    private final long[] mTimestamps = new long[ConnectionTiming.PHASE_COUNT];
+    private boolean mRunning;
+    private boolean mJoined;
+    private final LatencyHistogram[] mPhaseLatencies =
+            new LatencyHistogram[ConnectionTiming.PHASE_COUNT];
+    private final LatencyHistogram mTotalLatency = new LatencyHistogram();
+    private final ListenerRegistry<ConnectionTimingListener> mListeners =
+            new ListenerRegistry<ConnectionTimingListener>(ConnectionTimingListener.class);
+    private volatile ConnectionTiming mLastTiming;
+
+    ConnectionTimer() {
+        for (int i = 0; i < ConnectionTiming.PHASE_COUNT; i++) {
+            mPhaseLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Starts timing a new connection, dropping the one in progress if any.
+     */
+    void start() {
+        for (int i = 0; i < ConnectionTiming.PHASE_COUNT; i++) {
+            mTimestamps[i] = 0L;
+        }
+        mJoined = false;
+        mRunning = true;
+    }
+
+    void mark(int phase) {
+        if (mRunning && (mTimestamps[phase] == 0L)) {
+            mTimestamps[phase] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    void setJoined(boolean joined) {
+        mJoined = joined;
+    }
+
+    /**
+     * Stamps the last phase and publishes the connection timing.
+     */
+    void finish(int phase, String sessionId) {
+        if (!mRunning) {
+            return;
+        }
+        mark(phase);
+        mRunning = false;
+        ConnectionTiming timing = new ConnectionTiming(mTimestamps, sessionId, mJoined);
+        for (int i = 0; i < ConnectionTiming.PHASE_COUNT; i++) {
+            long duration = timing.getPhaseDuration(i);
+            if (duration >= 0L) {
+                mPhaseLatencies[i].record(duration);
+            }
+        }
+        mTotalLatency.record(timing.getTotalDuration());
+        mLastTiming = timing;
+        LOGD(TAG, "Connection timing: " + timing);
+        for (ConnectionTimingListener listener : mListeners.snapshot()) {
+            try {
+                listener.onConnectionTiming(timing);
+            } catch (Exception e) {
+                LOGE(TAG, "onConnectionTiming(): Failed to inform " + listener, e);
+            }
+        }
+    }
+
+    /**
+     * Drops the connection in progress, which failed or was cancelled.
+     */
+    void abort() {
+        mRunning = false;
+    }
+
+    ConnectionTiming getLastTiming() {
+        return mLastTiming;
+    }
+
+    LatencyHistogram getPhaseLatency(int phase) {
+        return mPhaseLatencies[phase];
+    }
+
+    LatencyHistogram getTotalLatency() {
+        return mTotalLatency;
+    }
+
+    void addListener(ConnectionTimingListener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(ConnectionTimingListener listener) {
+        mListeners.remove(listener);
+    }
+}
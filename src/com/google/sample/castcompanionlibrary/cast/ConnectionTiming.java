@@ -0,0 +1,154 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The timestamps of the phases of one connection, from the selection of a route to the first
+ * status of the receiver. The timestamps come from
+ * {@link android.os.SystemClock#elapsedRealtime()}, which is monotonic. Phases may be missing:
+ * a session recovery selects the device without a route selection, and the
+ * {@link DataCastManager} has no media status. Instances are immutable.
+ */
+public final class ConnectionTiming {
+
+    /** The user selected a route */
+    public static final int PHASE_ROUTE_SELECTED = 0;
+    /** The device was set and the Google Play services client is connecting */
+    public static final int PHASE_DEVICE_SET = 1;
+    /** The Google Play services client is connected */
+    public static final int PHASE_CONNECTED = 2;
+    /** The application is being launched or joined */
+    public static final int PHASE_LAUNCH_STARTED = 3;
+    /** The application is launched or joined */
+    public static final int PHASE_APPLICATION_CONNECTED = 4;
+    /** The media or data channels are attached */
+    public static final int PHASE_CHANNEL_ATTACHED = 5;
+    /** The first media status was received */
+    public static final int PHASE_FIRST_STATUS = 6;
+
+    static final int PHASE_COUNT = 7;
+    private static final String[] PHASE_NAMES = new String[] {
+            "routeSelected", "deviceSet", "connected", "launchStarted", "applicationConnected",
+            "channelAttached", "firstStatus"
+    };
+
+    private final long[] mTimestamps;
+    private final String mSessionId;
+    private final boolean mJoined;
+
+    ConnectionTiming(long[] timestamps, String sessionId, boolean joined) {
+        mTimestamps = timestamps.clone();
+        mSessionId = sessionId;
+        mJoined = joined;
+    }
+
+    /**
+     * @param phase One of the <code>PHASE_*</code> constants
+     * @return The time at which the phase was reached, or 0 if it was not.
+     */
+    public long getTimestamp(int phase) {
+        checkPhase(phase);
+        return mTimestamps[phase];
+    }
+
+    /**
+     * @param phase One of the <code>PHASE_*</code> constants
+     * @return The time between the previous phase reached and this one, or -1 if this phase or no
+     *         previous phase was reached.
+     */
+    public long getPhaseDuration(int phase) {
+        checkPhase(phase);
+        if (mTimestamps[phase] == 0L) {
+            return -1L;
+        }
+        for (int i = phase - 1; i >= 0; i--) {
+            if (mTimestamps[i] != 0L) {
+                return mTimestamps[phase] - mTimestamps[i];
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * @return The time between the first and the last phases reached.
+     */
+    public long getTotalDuration() {
+        long first = 0L;
+        long last = 0L;
+        for (long timestamp : mTimestamps) {
+            if (timestamp != 0L) {
+                if (first == 0L) {
+                    first = timestamp;
+                }
+                last = timestamp;
+            }
+        }
+        return last - first;
+    }
+
+    public String getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * @return true if a persisted session was joined rather than the application launched.
+     */
+    public boolean isJoined() {
+        return mJoined;
+    }
+
+    public static String getPhaseName(int phase) {
+        checkPhase(phase);
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Exports the record, with the phases in milliseconds from the first phase reached:
+     *
+     * <pre>
+     * {"sessionId":"...","joined":false,"total":2140,
+     *  "phases":{"routeSelected":0,"deviceSet":2,"connected":820,...}}
+     * </pre>
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("sessionId", mSessionId);
+            json.put("joined", mJoined);
+            json.put("total", getTotalDuration());
+            JSONObject phases = new JSONObject();
+            long first = 0L;
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                if (mTimestamps[i] != 0L) {
+                    if (first == 0L) {
+                        first = mTimestamps[i];
+                    }
+                    phases.put(PHASE_NAMES[i], mTimestamps[i] - first);
+                }
+            }
+            json.put("phases", phases);
+        } catch (JSONException e) {
+            // Not thrown for these values
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("total=").append(getTotalDuration()).append("ms");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            long duration = getPhaseDuration(i);
+            if (duration >= 0L) {
+                sb.append(", ").append(PHASE_NAMES[i]).append("=+").append(duration).append("ms");
+            }
+        }
+        return sb.toString();
+    }
+
+    static void checkPhase(int phase) {
+        if (phase < 0 || phase >= PHASE_COUNT) {
+            throw new IllegalArgumentException("Invalid phase: " + phase);
+        }
+    }
+}
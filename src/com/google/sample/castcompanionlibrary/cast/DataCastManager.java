@@ -20,29 +20,43 @@ import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
 import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGE;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
 
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.app.MediaRouteDialogFactory;
-import android.support.v7.media.MediaRouter.RouteInfo;
 import android.text.TextUtils;
 
 import com.google.android.gms.cast.ApplicationMetadata;
 import com.google.android.gms.cast.Cast;
 import com.google.android.gms.cast.Cast.CastOptions.Builder;
 import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.cast.CastStatusCodes;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
+import com.google.sample.castcompanionlibrary.cast.callbacks.ChunkListener;
 import com.google.sample.castcompanionlibrary.cast.callbacks.DataCastConsumerImpl;
 import com.google.sample.castcompanionlibrary.cast.callbacks.IDataCastConsumer;
+import com.google.sample.castcompanionlibrary.cast.callbacks.MessageDecoder;
+import com.google.sample.castcompanionlibrary.cast.callbacks.RpcCallback;
+import com.google.sample.castcompanionlibrary.cast.callbacks.TypedMessageListener;
 import com.google.sample.castcompanionlibrary.cast.exceptions.NoConnectionException;
 import com.google.sample.castcompanionlibrary.cast.exceptions.TransientNetworkDisconnectionException;
+import com.google.sample.castcompanionlibrary.utils.LatencyHistogram;
+import com.google.sample.castcompanionlibrary.utils.ListenerRegistry;
 import com.google.sample.castcompanionlibrary.utils.LogUtils;
 import com.google.sample.castcompanionlibrary.utils.Utils;
 
@@ -80,9 +94,133 @@ public class DataCastManager extends BaseCastManager
         implements Cast.MessageReceivedCallback {
 
     private static final String TAG = LogUtils.makeLogTag(DataCastManager.class);
+
+    /**
+     * Messages are delivered to the consumer on the main thread. This is the default.
+     */
+    public static final int DISPATCH_MAIN_THREAD = 0;
+    /**
+     * Messages are delivered to the consumer on a background thread, in the order they were
+     * received for each namespace.
+     *
+     * @see #setMessageDispatchExecutor(Executor)
+     */
+    public static final int DISPATCH_BACKGROUND_THREAD = 1;
+
+    /**
+     * When the outbound queue of a namespace is full, the oldest queued message is dropped.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = OutboundQueue.OVERFLOW_DROP_OLDEST;
+    /**
+     * When the outbound queue of a namespace is full, the new message is dropped.
+     */
+    public static final int OVERFLOW_DROP_NEWEST = OutboundQueue.OVERFLOW_DROP_NEWEST;
+    /**
+     * When the outbound queue of a namespace is full, the new message waits outside of it, and
+     * its future completes once the message is admitted into the queue rather than when it is
+     * sent. At most <code>maxQueueDepth</code> messages (at least 1) wait, the next ones are
+     * dropped. The failures to send an admitted message are only reported through
+     * <code>onMessageSendFailed</code>.
+     * <p/>
+     * Messages are admitted as the results of the previous ones arrive on the main thread, so the
+     * future must never be awaited on the main thread, which would deadlock. Worker threads can
+     * block on it to be held back while the queue is full. On the main thread, use
+     * {@link #sendDataMessage(String, String, String, ResultCallback)} and send the next message
+     * from the callback.
+     */
+    public static final int OVERFLOW_WAIT = OutboundQueue.OVERFLOW_WAIT;
+
+    /**
+     * Interactive messages, such as commands. Bulk messages are held back while they wait.
+     */
+    public static final int PRIORITY_HIGH = OutboundQueue.PRIORITY_HIGH;
+    /**
+     * Messages sent as soon as the limits of their namespace allow. This is the default.
+     */
+    public static final int PRIORITY_NORMAL = OutboundQueue.PRIORITY_NORMAL;
+    /**
+     * Large or numerous messages, such as syncs and transfers, which may be delayed in favor of
+     * the others.
+     */
+    public static final int PRIORITY_BULK = OutboundQueue.PRIORITY_BULK;
+
+    /**
+     * The default name of the field holding the type of the typed messages.
+     */
+    public static final String DEFAULT_MESSAGE_TYPE_FIELD = "type";
+
+    /**
+     * The default maximum total length of the chunked messages being reassembled.
+     */
+    public static final int DEFAULT_CHUNK_REASSEMBLY_LIMIT = 1024 * 1024;
+
     private static DataCastManager sInstance;
     private final Set<String> mNamespaceList = new HashSet<String>();
-    private final List<IDataCastConsumer> mDataConsumers;
+    private final ListenerRegistry<IDataCastConsumer> mDataConsumers;
+    private final ListenerRegistry<IDataCastConsumer> mMainThreadMessageConsumers;
+    private final ListenerRegistry<IDataCastConsumer> mBackgroundMessageConsumers;
+    private Executor mMessageDispatchExecutor;
+    private MessageDispatcher mMessageDispatcher;
+    private String mMessageTypeField = DEFAULT_MESSAGE_TYPE_FIELD;
+    private volatile TypedMessageRouter mTypedMessageRouter;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ChunkAssembler mChunkAssembler =
+            new ChunkAssembler(DEFAULT_CHUNK_REASSEMBLY_LIMIT);
+    private final ListenerRegistry<ChunkListener> mChunkListeners =
+            new ListenerRegistry<ChunkListener>(ChunkListener.class);
+    private final AtomicInteger mNextChunkStreamId = new AtomicInteger();
+    private final MessageCompressor mCompressor = new MessageCompressor();
+    // Namespace -> minimum length of the messages to compress
+    private final Map<String, Integer> mCompressionThresholds = new HashMap<String, Integer>();
+    // Namespaces whose receiver announced that it can decompress messages
+    private final Set<String> mCompressionPeers = new HashSet<String>();
+    private final OutboundQueue mOutboundQueue = new OutboundQueue(new OutboundQueue.Transport() {
+
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            sendOrBufferMessage(namespace, message, callback);
+        }
+
+        @Override
+        public void onSendFailed(String namespace, Status status) {
+            onMessageSendFailed(status);
+        }
+    });
+    private final Outbox.Sender mOutboxSender = new Outbox.Sender() {
+
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            try {
+                sendOrBufferMessage(namespace, message, callback);
+            } catch (IllegalStateException e) {
+                LOGE(TAG, "Failed to send buffered message", e);
+                callback.onResult(new Status(CastStatusCodes.NETWORK_ERROR));
+            }
+        }
+    };
+    private final MessageBatcher mMessageBatcher = new MessageBatcher(new MessageBatcher.Sink() {
+
+        @Override
+        public void send(String namespace, String message, SendFuture future) {
+            mOutboundQueue.enqueue(namespace, compressIfEnabled(namespace, message), future);
+        }
+    });
+    private final RpcClient mRpcClient = new RpcClient(new RpcClient.Sender() {
+
+        @Override
+        public SendFuture send(String namespace, String message) {
+            return mOutboundQueue.enqueue(namespace, compressIfEnabled(namespace, message), null);
+        }
+    });
+    private final StateSynchronizer mStateSynchronizer =
+            new StateSynchronizer(new StateSynchronizer.Sender() {
+
+                @Override
+                public SendFuture send(String namespace, String message) {
+                    // Large states are chunked rather than rejected
+                    return enqueueChunked(namespace, message);
+                }
+            });
 
     /**
      * Initializes the DataCastManager for clients. Before clients can use DataCastManager, they
@@ -113,7 +251,9 @@ public class DataCastManager extends BaseCastManager
 
     protected DataCastManager(Context context, String applicationId, String... namespaces) {
         super(context, applicationId);
-        mDataConsumers = new ArrayList<IDataCastConsumer>();
+        mDataConsumers = new ListenerRegistry<IDataCastConsumer>(IDataCastConsumer.class);
+        mMainThreadMessageConsumers = new ListenerRegistry<IDataCastConsumer>(IDataCastConsumer.class);
+        mBackgroundMessageConsumers = new ListenerRegistry<IDataCastConsumer>(IDataCastConsumer.class);
         if (null != namespaces) {
 			Collections.addAll(mNamespaceList, namespaces);
         }
@@ -238,23 +378,581 @@ public class DataCastManager extends BaseCastManager
      *             namespace is null or too long.
      * @throws IllegalStateException If there is no active service connection.
      */
-    public void sendDataMessage(String message, String namespace)
+    public Future<Status> sendDataMessage(String message, String namespace)
             throws IllegalArgumentException, IllegalStateException,
             TransientNetworkDisconnectionException, NoConnectionException {
-        checkConnectivity();
-        if (TextUtils.isEmpty(namespace)) {
-            throw new IllegalArgumentException("namespace cannot be empty");
+        return sendDataMessage(message, namespace, null);
+    }
+
+    /**
+     * Sends the <code>message</code> on the data channel for the <code>namespace</code>. If
+     * batching is enabled for the namespace, a pending message with the same
+     * <code>coalescingKey</code> is replaced by this one. If fails, it will call
+     * <code>onMessageSendFailed</code>
+     * <p/>
+     * The returned future completes with the result of the message. Batched messages share the
+     * result of their batch.
+     *
+     * @param message
+     * @param namespace
+     * @param coalescingKey Key identifying messages which supersede each other, or null
+     * @throws NoConnectionException If no connectivity to the device exists
+     * @throws TransientNetworkDisconnectionException If framework is still trying to recover from a
+     *             possibly transient loss of network
+     * @throws IllegalArgumentException If the the message is null, empty, or too long; or if the
+     *             namespace is null or too long.
+     * @throws IllegalStateException If there is no active service connection.
+     * @see #setMessageBatching(String, long, int)
+     * @see #setOutboundQueue(String, int, int, int)
+     */
+    public Future<Status> sendDataMessage(String message, String namespace, String coalescingKey)
+            throws IllegalArgumentException, IllegalStateException,
+            TransientNetworkDisconnectionException, NoConnectionException {
+        return send(message, namespace, coalescingKey);
+    }
+
+    /**
+     * Sends the <code>message</code> like {@link #sendDataMessage(String, String, String)}, and
+     * calls the <code>callback</code> on the main thread when its future completes. For
+     * namespaces with the {@link #OVERFLOW_WAIT} policy, this is when the message is admitted
+     * into the outbound queue, which lets the main thread wait for room without blocking.
+     *
+     * @param message
+     * @param namespace
+     * @param coalescingKey Key identifying messages which supersede each other, or null
+     * @param callback
+     * @throws NoConnectionException If no connectivity to the device exists
+     * @throws TransientNetworkDisconnectionException If framework is still trying to recover from a
+     *             possibly transient loss of network
+     * @throws IllegalArgumentException If the the message is null, empty, or too long; or if the
+     *             namespace is null or too long.
+     * @throws IllegalStateException If there is no active service connection.
+     */
+    public void sendDataMessage(String message, String namespace, String coalescingKey,
+            final ResultCallback<Status> callback)
+            throws IllegalArgumentException, IllegalStateException,
+            TransientNetworkDisconnectionException, NoConnectionException {
+        if (null == callback) {
+            throw new IllegalArgumentException("callback cannot be null");
         }
-        Cast.CastApi.sendMessage(mApiClient, namespace, message).
-                setResultCallback(new ResultCallback<Status>() {
+        send(message, namespace, coalescingKey).addListener(new SendFuture.Listener() {
+
+            @Override
+            public void onComplete(final Status status) {
+                // Always posted, so the callback never runs within the send call
+                mMainHandler.post(new Runnable() {
 
                     @Override
-                    public void onResult(Status result) {
-                        if (!result.isSuccess()) {
-                            DataCastManager.this.onMessageSendFailed(result);
-                        }
+                    public void run() {
+                        callback.onResult(status);
                     }
                 });
+            }
+        });
+    }
+
+    private SendFuture send(String message, String namespace, String coalescingKey)
+            throws TransientNetworkDisconnectionException, NoConnectionException {
+        checkCanSend(namespace, message);
+        // Messages may be sent later, so they are validated right away
+        if (message.length() > Cast.MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("message cannot be too long");
+        }
+        SendFuture future = mMessageBatcher.add(namespace, message, coalescingKey);
+        if (null == future) {
+            future = mOutboundQueue.enqueue(namespace, compressIfEnabled(namespace, message), null);
+        }
+        return future;
+    }
+
+    /**
+     * Sends a <code>message</code> of any length on the data channel for the
+     * <code>namespace</code>. Messages which don't fit in a single Cast message are split into
+     * chunk envelopes of the following format, which the receiver has to reassemble:
+     *
+     * <pre>
+     * {"__ccl":"chunk","id":"3f","seq":0,"last":false,"data":"first part of the message"}
+     * </pre>
+     *
+     * Chunks are sent in order through the outbound queue of the namespace, and never batched.
+     * Chunked messages received from the receiver are reassembled the same way.
+     *
+     * @param message
+     * @param namespace
+     * @return The future of the last chunk. A failure of another chunk is reported through
+     *         <code>onMessageSendFailed</code>.
+     * @throws NoConnectionException If no connectivity to the device exists
+     * @throws TransientNetworkDisconnectionException If framework is still trying to recover from a
+     *             possibly transient loss of network
+     * @throws IllegalArgumentException If the the message is null or empty, or if the namespace is
+     *             null or too long.
+     * @see #setChunkReassemblyLimit(int)
+     * @see #addChunkListener(ChunkListener)
+     */
+    public Future<Status> sendChunkedDataMessage(String message, String namespace)
+            throws TransientNetworkDisconnectionException, NoConnectionException {
+        checkCanSend(namespace, message);
+        return enqueueChunked(namespace, message);
+    }
+
+    private SendFuture enqueueChunked(String namespace, String message) {
+        // Compressing the whole message first leaves fewer chunks to send
+        message = compressIfEnabled(namespace, message);
+        if (message.length() <= Cast.MAX_MESSAGE_LENGTH) {
+            return mOutboundQueue.enqueue(namespace, message, null);
+        }
+        String id = Integer.toString(mNextChunkStreamId.getAndIncrement(), Character.MAX_RADIX);
+        SendFuture future = null;
+        for (String chunk : MessageChunker.split(message, id, Cast.MAX_MESSAGE_LENGTH)) {
+            future = mOutboundQueue.enqueue(namespace, chunk, null);
+        }
+        return future;
+    }
+
+    private void checkCanSend(String namespace, String message)
+            throws TransientNetworkDisconnectionException, NoConnectionException {
+        if (!shouldBufferMessages()) {
+            checkConnectivity();
+        }
+        if (TextUtils.isEmpty(namespace)) {
+            throw new IllegalArgumentException("namespace cannot be empty");
+        }
+        if (TextUtils.isEmpty(message)) {
+            throw new IllegalArgumentException("message cannot be empty");
+        }
+    }
+
+    /**
+     * Enables the compression of the messages of the <code>namespace</code> which are at least
+     * <code>minLength</code> long. Messages are compressed with deflate and sent in envelopes of
+     * the following format, the data being encoded in base64:
+     *
+     * <pre>
+     * {"__ccl":"deflate","data":"eJzLSM3JyVcozy/KSQEAGgQEXQ=="}
+     * </pre>
+     *
+     * Compression is only used once the receiver has announced that it supports it. To that end,
+     * the following capability message is sent when the application connects, and the receiver
+     * is expected to reply with the same message, without the <code>reply</code> field:
+     *
+     * <pre>
+     * {"__ccl":"caps","compression":["deflate"],"reply":true}
+     * </pre>
+     *
+     * Compressed messages from the receiver are always decompressed before their dispatch,
+     * whether compression is enabled or not. Compression is disabled by default.
+     *
+     * @param namespace
+     * @param minLength Minimum length of the messages to compress, or 0 to disable compression
+     * @see #getCompressionRatio()
+     */
+    public void setMessageCompression(String namespace, int minLength) {
+        if (TextUtils.isEmpty(namespace)) {
+            throw new IllegalArgumentException("namespace cannot be empty");
+        }
+        synchronized (mCompressionThresholds) {
+            if (minLength <= 0) {
+                mCompressionThresholds.remove(namespace);
+                return;
+            }
+            mCompressionThresholds.put(namespace, minLength);
+        }
+        if (isConnected()) {
+            sendCapabilities(namespace, true);
+        }
+    }
+
+    /**
+     * @return The ratio between the compressed and the original length of the messages sent to
+     *         namespaces with compression enabled, or 1 if no message was compressed.
+     */
+    public double getCompressionRatio() {
+        return mCompressor.getCompressionRatio();
+    }
+
+    /**
+     * @return The average time spent compressing a message, in microseconds.
+     */
+    public long getAverageCompressionTimeMicros() {
+        return mCompressor.getAverageCompressionTimeMicros();
+    }
+
+    /**
+     * @return The average time spent decompressing a message, in microseconds.
+     */
+    public long getAverageDecompressionTimeMicros() {
+        return mCompressor.getAverageDecompressionTimeMicros();
+    }
+
+    private String compressIfEnabled(String namespace, String message) {
+        synchronized (mCompressionThresholds) {
+            Integer minLength = mCompressionThresholds.get(namespace);
+            if ((null == minLength) || (message.length() < minLength)
+                    || !mCompressionPeers.contains(namespace)) {
+                return message;
+            }
+        }
+        String compressed = mCompressor.compress(message);
+        return (null == compressed) ? message : compressed;
+    }
+
+    private void sendCapabilities(String namespace, boolean reply) {
+        mOutboundQueue.enqueue(namespace, MessageCompressor.buildCapabilities(reply), null);
+    }
+
+    private void onCapabilitiesReceived(String namespace, String message) {
+        JSONObject capabilities = MessageCompressor.parseCapabilities(message);
+        if (null == capabilities) {
+            LOGD(TAG, "onCapabilitiesReceived(): Ignoring malformed capabilities for " + namespace);
+            return;
+        }
+        synchronized (mCompressionThresholds) {
+            if (MessageCompressor.supportsDeflate(capabilities)) {
+                mCompressionPeers.add(namespace);
+            } else {
+                mCompressionPeers.remove(namespace);
+            }
+        }
+        if (MessageCompressor.isReplyRequested(capabilities)) {
+            sendCapabilities(namespace, false);
+        }
+    }
+
+    /**
+     * Calls a method of the receiver and returns right away, so that many calls can be
+     * outstanding on the same namespace. The call is sent in an envelope of the following format,
+     * with an id unique to the call:
+     *
+     * <pre>
+     * {"__ccl":"rpc","id":"12","method":"getScore","params":{"team":"home"}}
+     * </pre>
+     *
+     * The receiver is expected to reply with the same id and either a result or an error, the
+     * <code>code</code> being used as the status code of the failed call:
+     *
+     * <pre>
+     * {"__ccl":"rpc-reply","id":"12","result":{"score":3}}
+     * {"__ccl":"rpc-reply","id":"12","error":"Unknown team","code":2001}
+     * </pre>
+     *
+     * Replies are not dispatched to the consumers. A call fails with
+     * {@link CastStatusCodes#TIMEOUT} if no reply arrives within <code>timeoutMs</code>, with
+     * {@link CastStatusCodes#NETWORK_ERROR} if the device is disconnected first, or with the
+     * status of the send if the request could not be sent.
+     *
+     * @param namespace
+     * @param method
+     * @param params The JSON text of the parameters, or null
+     * @param timeoutMs
+     * @param callback Called on the main thread when the call completes, may be null
+     * @return The future of the JSON text of the result. Its {@link Future#get()} method throws an
+     *         <code>ExecutionException</code> wrapping a <code>CastException</code> if the call
+     *         failed.
+     * @throws NoConnectionException If no connectivity to the device exists
+     * @throws TransientNetworkDisconnectionException If framework is still trying to recover from a
+     *             possibly transient loss of network
+     * @throws IllegalArgumentException If the method is empty, or if the namespace is null or too
+     *             long.
+     * @see #getRpcLatency(String)
+     */
+    public Future<String> callRemoteMethod(String namespace, String method, String params,
+            long timeoutMs, RpcCallback callback) throws TransientNetworkDisconnectionException,
+            NoConnectionException {
+        checkCanSend(namespace, method);
+        return mRpcClient.call(namespace, method, params, timeoutMs, callback);
+    }
+
+    /**
+     * @return The live histogram of the round-trip times of the successful calls to the remote
+     *         <code>method</code>, in milliseconds.
+     */
+    public LatencyHistogram getRpcLatency(String method) {
+        return mRpcClient.getLatency(method);
+    }
+
+    /**
+     * @return The number of remote method calls waiting for their reply.
+     */
+    public int getPendingRpcCount() {
+        return mRpcClient.getPendingCallCount();
+    }
+
+    /**
+     * Mirrors the <code>state</code> of the <code>namespace</code> to the receiver. Rather than
+     * the whole state, only the changes since the last version acknowledged by the receiver are
+     * sent, as a JSON Patch (RFC 6902) limited to <code>add</code>, <code>remove</code> and
+     * <code>replace</code> operations, arrays being replaced as a whole:
+     *
+     * <pre>
+     * {"__ccl":"state","version":7,"state":{"red":2,"blue":1}}
+     * {"__ccl":"state-patch","version":8,"base":7,"ops":[{"op":"replace","path":"/red","value":3}]}
+     * </pre>
+     *
+     * The receiver applies a patch to the state of the <code>base</code> version, so it must keep
+     * the versions it acknowledged until it receives a newer base. It is expected to acknowledge
+     * each version it applies, and to ask for a snapshot when it can't apply a patch:
+     *
+     * <pre>
+     * {"__ccl":"state-ack","version":8}
+     * {"__ccl":"state-resync"}
+     * </pre>
+     *
+     * These messages are not dispatched to the consumers. A full snapshot is also sent
+     * periodically, when the patch would be longer than the snapshot, and for all the states when
+     * the application connects or the connectivity is recovered. Messages which don't fit in a
+     * single Cast message are split into chunk envelopes, as with
+     * {@link #sendChunkedDataMessage(String, String)}. The state is copied, so it can be modified
+     * and passed again for the next update.
+     *
+     * @param namespace
+     * @param state
+     * @return The future of the message sent, or of its last chunk, already completed if the
+     *         state did not change.
+     * @throws NoConnectionException If no connectivity to the device exists
+     * @throws TransientNetworkDisconnectionException If framework is still trying to recover from a
+     *             possibly transient loss of network
+     * @throws IllegalArgumentException If the state is null or can't be serialized, or if the
+     *             namespace is null or too long.
+     * @see #setStateSnapshotInterval(int)
+     */
+    public Future<Status> updateSyncedState(String namespace, JSONObject state)
+            throws TransientNetworkDisconnectionException, NoConnectionException {
+        if (!shouldBufferMessages()) {
+            checkConnectivity();
+        }
+        if (TextUtils.isEmpty(namespace)) {
+            throw new IllegalArgumentException("namespace cannot be empty");
+        }
+        if (null == state) {
+            throw new IllegalArgumentException("state cannot be null");
+        }
+        return mStateSynchronizer.update(namespace, state);
+    }
+
+    /**
+     * Stops mirroring the state of the <code>namespace</code>.
+     *
+     * @param namespace
+     */
+    public void removeSyncedState(String namespace) {
+        mStateSynchronizer.remove(namespace);
+    }
+
+    /**
+     * Sets the number of consecutive patches after which a full snapshot of a synced state is
+     * sent, bounding the cost of a patch lost on the receiver side. The default is 50.
+     *
+     * @param updates
+     */
+    public void setStateSnapshotInterval(int updates) {
+        mStateSynchronizer.setSnapshotInterval(updates);
+    }
+
+    /**
+     * Sets the maximum total length of the chunked messages being reassembled. When it is
+     * exceeded, the partial messages which were updated least recently are dropped. With a limit
+     * of 0, chunked messages are not reassembled and only reach the {@link ChunkListener}s. The
+     * default is {@link #DEFAULT_CHUNK_REASSEMBLY_LIMIT}.
+     *
+     * @param maxLength
+     */
+    public void setChunkReassemblyLimit(int maxLength) {
+        mChunkAssembler.setMaxSize(maxLength);
+    }
+
+    /**
+     * Registers a listener receiving the chunks of the chunked messages as they arrive.
+     *
+     * @param listener
+     */
+    public void addChunkListener(ChunkListener listener) {
+        mChunkListeners.add(listener);
+    }
+
+    public void removeChunkListener(ChunkListener listener) {
+        mChunkListeners.remove(listener);
+    }
+
+    /*
+     * Sends the message, or keeps it in the outbox while the connection is suspended. In that
+     * case, the message stays in flight for the OutboundQueue until it is replayed.
+     * @throws IllegalStateException If there is no connection.
+     */
+    private void sendOrBufferMessage(String namespace, String message,
+            ResultCallback<Status> callback) {
+        if (shouldBufferMessages()) {
+            mOutbox.add(namespace, message, callback);
+            return;
+        }
+        if (!isConnected()) {
+            throw new IllegalStateException("Not connected");
+        }
+        Cast.CastApi.sendMessage(mApiClient, namespace, message).setResultCallback(callback);
+    }
+
+    /**
+     * Limits the number of messages of the <code>namespace</code> which are sent without having
+     * received their result yet. The next messages wait in a queue of at most
+     * <code>maxQueueDepth</code> messages, and the <code>overflowPolicy</code> decides what
+     * happens when it is full. Dropped messages are reported through
+     * <code>onMessageSendFailed</code> with the status code
+     * {@link CastStatusCodes#MESSAGE_SEND_BUFFER_TOO_FULL}. With {@link #OVERFLOW_WAIT}, the
+     * futures returned for the namespace complete on admission into the queue, and must not be
+     * awaited on the main thread. Namespaces are not limited by default.
+     *
+     * @param namespace
+     * @param maxInFlight
+     * @param maxQueueDepth
+     * @param overflowPolicy {@link #OVERFLOW_DROP_OLDEST}, {@link #OVERFLOW_DROP_NEWEST} or
+     *            {@link #OVERFLOW_WAIT}
+     * @throws IllegalArgumentException If namespace is null or empty, or if the policy is invalid
+     * @see #getOutboundQueueDepth(String)
+     * @see #getSendLatency(String)
+     */
+    public void setOutboundQueue(String namespace, int maxInFlight, int maxQueueDepth,
+            int overflowPolicy) {
+        if (TextUtils.isEmpty(namespace)) {
+            throw new IllegalArgumentException("namespace cannot be empty");
+        }
+        if ((overflowPolicy != OVERFLOW_DROP_OLDEST) && (overflowPolicy != OVERFLOW_DROP_NEWEST)
+                && (overflowPolicy != OVERFLOW_WAIT)) {
+            throw new IllegalArgumentException("Invalid overflow policy: " + overflowPolicy);
+        }
+        mOutboundQueue.setPolicy(namespace, maxInFlight, maxQueueDepth, overflowPolicy);
+    }
+
+    /**
+     * Assigns a priority class to the <code>namespace</code>. The Cast API sends the messages in
+     * order, so a message can't overtake the ones already handed to it. To keep interactive
+     * messages responsive, bulk namespaces share a small window of messages handed to the Cast
+     * API, which is not used while {@link #PRIORITY_HIGH} messages are queued. The bulk
+     * namespaces take turns using the window, for a time slice each.
+     *
+     * @param namespace
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     * @throws IllegalArgumentException If namespace is null or empty, or if the priority is
+     *             invalid
+     * @see #setBulkScheduling(int, long)
+     * @see #getPriorityLatency(int)
+     */
+    public void setNamespacePriority(String namespace, int priority) {
+        if (TextUtils.isEmpty(namespace)) {
+            throw new IllegalArgumentException("namespace cannot be empty");
+        }
+        checkPriority(priority);
+        mOutboundQueue.setPriority(namespace, priority);
+    }
+
+    /**
+     * Configures the scheduling of the {@link #PRIORITY_BULK} namespaces. A larger window gives
+     * more throughput to bulk messages, and delays high priority messages more.
+     *
+     * @param maxInFlight Maximum number of bulk messages handed to the Cast API at a time, over
+     *            all bulk namespaces. The default is 1.
+     * @param timeSliceMs How long a bulk namespace keeps the window while others wait. The
+     *            default is 50ms.
+     */
+    public void setBulkScheduling(int maxInFlight, long timeSliceMs) {
+        mOutboundQueue.setBulkScheduling(maxInFlight, timeSliceMs);
+    }
+
+    /**
+     * @return The live histogram of the delays between the calls to
+     *         <code>sendDataMessage()</code> and the results of the messages of all the
+     *         namespaces of the <code>priority</code> class, including the time spent in the
+     *         queue.
+     * @throws IllegalArgumentException If the priority is invalid
+     * @see #getSendLatency(String)
+     */
+    public LatencyHistogram getPriorityLatency(int priority) {
+        checkPriority(priority);
+        return mOutboundQueue.getPriorityLatency(priority);
+    }
+
+    private static void checkPriority(int priority) {
+        if ((priority != PRIORITY_HIGH) && (priority != PRIORITY_NORMAL)
+                && (priority != PRIORITY_BULK)) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+    }
+
+    /**
+     * @return The number of messages of the <code>namespace</code> waiting to be sent. Producers
+     *         can use it to throttle themselves.
+     */
+    public int getOutboundQueueDepth(String namespace) {
+        return mOutboundQueue.getQueueDepth(namespace);
+    }
+
+    /**
+     * @return The number of messages of the <code>namespace</code> which were sent but did not
+     *         receive their result yet.
+     */
+    public int getInFlightMessageCount(String namespace) {
+        return mOutboundQueue.getInFlightCount(namespace);
+    }
+
+    /**
+     * @return The live histogram of the delays between the calls to
+     *         <code>sendDataMessage()</code> and the results of the messages of the
+     *         <code>namespace</code>, including the time spent in the queue.
+     */
+    public LatencyHistogram getSendLatency(String namespace) {
+        return mOutboundQueue.getLatency(namespace);
+    }
+
+    /**
+     * Enables batching for the <code>namespace</code>: messages are collected during
+     * <code>windowMs</code> milliseconds, or until they reach <code>maxBytes</code>, and sent as
+     * a single envelope. The receiver has to unpack envelopes of the following format, each
+     * message being a JSON string:
+     *
+     * <pre>
+     * {"__ccl":"batch","messages":["message 1","message 2"]}
+     * </pre>
+     *
+     * Envelopes received from the receiver are unpacked the same way. Batching is disabled by
+     * default; disabling it sends the pending messages right away.
+     *
+     * @param namespace
+     * @param windowMs Maximum delay before a message is sent, or 0 to disable batching
+     * @param maxBytes Maximum size of an envelope, capped at {@link Cast#MAX_MESSAGE_LENGTH}. A
+     *            message which would make the envelope larger is sent in the next one.
+     * @throws IllegalArgumentException If namespace is null or empty
+     */
+    public void setMessageBatching(String namespace, long windowMs, int maxBytes) {
+        if (TextUtils.isEmpty(namespace)) {
+            throw new IllegalArgumentException("namespace cannot be empty");
+        }
+        mMessageBatcher.setPolicy(namespace, windowMs, maxBytes);
+    }
+
+    /**
+     * Sets the executor used to deliver messages to the consumers registered with
+     * {@link #DISPATCH_BACKGROUND_THREAD}. Messages of a given namespace are still delivered one at
+     * a time and in order if the executor uses several threads. If no executor is set, or if
+     * <code>null</code> is passed, a dedicated background thread is used.
+     * <p/>
+     * Messages which are pending for the previous executor are dropped.
+     *
+     * @param executor
+     */
+    public synchronized void setMessageDispatchExecutor(Executor executor) {
+        if (executor == mMessageDispatchExecutor) {
+            return;
+        }
+        mMessageDispatchExecutor = executor;
+        if (null != mMessageDispatcher) {
+            mMessageDispatcher.shutdown();
+            mMessageDispatcher = null;
+        }
+    }
+
+    private synchronized MessageDispatcher getMessageDispatcher() {
+        if (null == mMessageDispatcher) {
+            mMessageDispatcher = new MessageDispatcher(mMessageDispatchExecutor);
+        }
+        return mMessageDispatcher;
     }
 
     /*************************************************************************/
@@ -264,6 +962,15 @@ public class DataCastManager extends BaseCastManager
     @Override
     protected void onDeviceUnselected() {
         detachDataChannels();
+        mMessageBatcher.clear();
+        mOutbox.clear();
+        mOutboundQueue.clear();
+        mChunkAssembler.clear();
+        synchronized (mCompressionThresholds) {
+            mCompressionPeers.clear();
+        }
+        mRpcClient.cancelAll();
+        mStateSynchronizer.reset();
     }
 
     @Override
@@ -311,47 +1018,33 @@ public class DataCastManager extends BaseCastManager
     public void onApplicationConnected(ApplicationMetadata appMetadata, String applicationStatus,
             String sessionId, boolean wasLaunched) {
         LOGD(TAG, "onApplicationConnected() reached with sessionId: " + sessionId);
+        mConnectionTimer.mark(ConnectionTiming.PHASE_APPLICATION_CONNECTED);
 
         // saving session for future retrieval; we only save the last session
         // info
         Utils.saveStringToPreference(mContext, PREFS_KEY_SESSION_ID, sessionId);
-        if (mReconnectionStatus == ReconnectionStatus.IN_PROGRESS) {
-            // we have tried to reconnect and successfully launched the app, so
-            // it is time to select the route and make the cast icon happy :-)
-            List<RouteInfo> routes = mMediaRouter.getRoutes();
-            if (null != routes) {
-                String routeId = Utils.getStringFromPreference(mContext, PREFS_KEY_ROUTE_ID);
-                boolean found = false;
-                for (RouteInfo routeInfo : routes) {
-                    if (routeId.equals(routeInfo.getId())) {
-                        // found the right route
-                        LOGD(TAG, "Found the correct route during reconnection attempt");
-                        found = true;
-                        mReconnectionStatus = ReconnectionStatus.FINALIZE;
-                        mMediaRouter.selectRoute(routeInfo);
-                        break;
-                    }
-                }
-                if (!found) {
-                    // we were hoping to have the route that we wanted, but we
-                    // didn't so we deselect the device
-                    onDeviceSelected(null);
-                    mReconnectionStatus = ReconnectionStatus.INACTIVE;
-                    // uncomment the following if you want to clear session
-                    // persisted data if a reconnection attempt fails
-                    // Utils.saveStringToPreference(mContext,
-                    // PREFS_KEY_SESSION_ID, null);
-                    // Utils.saveStringToPreference(mContext,
-                    // PREFS_KEY_ROUTE_ID, null);
-                    return;
-                }
-            }
+        // If the session was recovered, this selects its route and makes the cast icon happy
+        if (!mSessionRecovery.onApplicationConnected()) {
+            // we were hoping to have the route that we wanted, but we
+            // didn't so we deselect the device
+            onDeviceSelected(null);
+            // uncomment the following if you want to clear session
+            // persisted data if a reconnection attempt fails
+            // Utils.saveStringToPreference(mContext,
+            // PREFS_KEY_SESSION_ID, null);
+            // Utils.saveStringToPreference(mContext,
+            // PREFS_KEY_ROUTE_ID, null);
+            return;
         }
         // registering namespaces, if any
         try {
             attachDataChannels();
+            // There is no media status, the connection is complete once the channels are attached
+            mConnectionTimer.finish(ConnectionTiming.PHASE_CHANNEL_ATTACHED, sessionId);
             mSessionId = sessionId;
-            for (IDataCastConsumer consumer : mDataConsumers) {
+            announceCapabilities();
+            mStateSynchronizer.resyncAll();
+            for (IDataCastConsumer consumer : mDataConsumers.snapshot()) {
                 try {
                     consumer.onApplicationConnected(appMetadata, applicationStatus, sessionId,
                             wasLaunched);
@@ -390,6 +1083,20 @@ public class DataCastManager extends BaseCastManager
         }
     }
 
+    /*
+     * Asks the receiver whether it supports compression, for the namespaces which use it
+     */
+    private void announceCapabilities() {
+        String[] namespaces;
+        synchronized (mCompressionThresholds) {
+            namespaces = mCompressionThresholds.keySet().toArray(
+                    new String[mCompressionThresholds.size()]);
+        }
+        for (String namespace : namespaces) {
+            sendCapabilities(namespace, true);
+        }
+    }
+
     /*
      * Remove namespaces
      * @throws NoConnectionException If no connectivity to the device exists
@@ -411,7 +1118,7 @@ public class DataCastManager extends BaseCastManager
     @Override
     public void onApplicationConnectionFailed(int errorCode) {
         onDeviceSelected(null);
-        for (IDataCastConsumer consumer : mDataConsumers) {
+        for (IDataCastConsumer consumer : mDataConsumers.snapshot()) {
             try {
                 consumer.onApplicationConnectionFailed(errorCode);
             } catch (Exception e) {
@@ -421,7 +1128,7 @@ public class DataCastManager extends BaseCastManager
     }
 
     public void onApplicationDisconnected(int errorCode) {
-        for (IDataCastConsumer consumer : mDataConsumers) {
+        for (IDataCastConsumer consumer : mDataConsumers.snapshot()) {
             try {
                 consumer.onApplicationDisconnected(errorCode);
             } catch (Exception e) {
@@ -444,7 +1151,7 @@ public class DataCastManager extends BaseCastManager
             appStatus = Cast.CastApi.getApplicationStatus(mApiClient);
             LOGD(TAG, "onApplicationStatusChanged() reached: "
                     + Cast.CastApi.getApplicationStatus(mApiClient));
-            for (IDataCastConsumer consumer : mDataConsumers) {
+            for (IDataCastConsumer consumer : mDataConsumers.snapshot()) {
                 try {
                     consumer.onApplicationStatusChanged(appStatus);
                 } catch (Exception e) {
@@ -459,7 +1166,7 @@ public class DataCastManager extends BaseCastManager
 
     @Override
     public void onApplicationStopFailed(int errorCode) {
-        for (IDataCastConsumer consumer : mDataConsumers) {
+        for (IDataCastConsumer consumer : mDataConsumers.snapshot()) {
             try {
                 consumer.onApplicationStopFailed(errorCode);
             } catch (Exception e) {
@@ -472,13 +1179,118 @@ public class DataCastManager extends BaseCastManager
         // nothing relevant to data
     }
 
+    @Override
+    void onReattachChannels() {
+        try {
+            attachDataChannels();
+        } catch (IllegalStateException e) {
+            LOGE(TAG, "Failed to reattach namespaces", e);
+        } catch (IOException e) {
+            LOGE(TAG, "Failed to reattach namespaces", e);
+        } catch (TransientNetworkDisconnectionException e) {
+            LOGE(TAG, "Failed to reattach namespaces", e);
+        } catch (NoConnectionException e) {
+            LOGE(TAG, "Failed to reattach namespaces", e);
+        }
+    }
+
+    @Override
+    public void onConnectivityRecovered() {
+        // Buffered messages go first, before the consumers send new ones
+        mOutbox.replay(mOutboxSender);
+        // The receiver may have missed patches while the connection was suspended
+        mStateSynchronizer.resyncAll();
+        super.onConnectivityRecovered();
+    }
+
     /*************************************************************************/
     /************** MessageReceivedCallbacks callbacks ***********************/
     /*************************************************************************/
 
     @Override
     public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
-        for (IDataCastConsumer consumer : mDataConsumers) {
+        if (MessageChunker.isChunk(message)) {
+            onChunkReceived(castDevice, namespace, message);
+        } else {
+            onCompleteMessageReceived(castDevice, namespace, message);
+        }
+    }
+
+    private void onChunkReceived(CastDevice castDevice, String namespace, String message) {
+        MessageChunker.Chunk chunk = MessageChunker.parse(message);
+        if (null == chunk) {
+            LOGD(TAG, "onChunkReceived(): Ignoring malformed chunk for " + namespace);
+            return;
+        }
+        for (ChunkListener listener : mChunkListeners.snapshot()) {
+            try {
+                listener.onChunkReceived(castDevice, namespace, chunk.mId, chunk.mSequence,
+                        chunk.mData, chunk.mLast);
+            } catch (Exception e) {
+                LOGE(TAG, "onChunkReceived(): Failed to inform " + listener, e);
+            }
+        }
+        String completeMessage = mChunkAssembler.add(namespace, chunk);
+        if (null != completeMessage) {
+            onCompleteMessageReceived(castDevice, namespace, completeMessage);
+        }
+    }
+
+    private void onCompleteMessageReceived(CastDevice castDevice, String namespace,
+            String message) {
+        if (MessageCompressor.isCompressed(message)) {
+            message = mCompressor.decompress(message);
+            if (null == message) {
+                LOGD(TAG, "onMessageReceived(): Ignoring malformed compressed message for "
+                        + namespace);
+                return;
+            }
+        }
+        if (MessageCompressor.isCapabilities(message)) {
+            onCapabilitiesReceived(namespace, message);
+            return;
+        }
+        String[] messages = MessageBatcher.unpack(message);
+        if (null == messages) {
+            dispatchMessage(castDevice, namespace, message);
+        } else {
+            for (String unpacked : messages) {
+                dispatchMessage(castDevice, namespace, unpacked);
+            }
+        }
+    }
+
+    private void dispatchMessage(CastDevice castDevice, String namespace, String message) {
+        if (RpcClient.isReply(message)) {
+            mRpcClient.onReplyReceived(message);
+            return;
+        }
+        if (StateSynchronizer.isControlMessage(message)) {
+            mStateSynchronizer.onControlMessageReceived(namespace, message);
+            return;
+        }
+        IDataCastConsumer[] backgroundConsumers = mBackgroundMessageConsumers.snapshot();
+        if (backgroundConsumers.length > 0) {
+            getMessageDispatcher().dispatch(namespace,
+                    new MessageDelivery(backgroundConsumers, castDevice, namespace, message));
+        }
+        deliverMessage(mMainThreadMessageConsumers.snapshot(), castDevice, namespace, message);
+        TypedMessageRouter router = mTypedMessageRouter;
+        if (null != router) {
+            TypedMessageRouter.Delivery<?> delivery = router.route(castDevice, namespace, message);
+            if (null != delivery) {
+                if (delivery.getDispatchThread() == DISPATCH_BACKGROUND_THREAD) {
+                    getMessageDispatcher().dispatch(namespace, delivery);
+                } else {
+                    delivery.run();
+                }
+            }
+        }
+    }
+
+    private static void deliverMessage(IDataCastConsumer[] consumers, CastDevice castDevice,
+            String namespace, String message) {
+        for (IDataCastConsumer consumer : consumers) {
             try {
                 consumer.onMessageReceived(castDevice, namespace, message);
             } catch (Exception e) {
@@ -487,8 +1299,29 @@ public class DataCastManager extends BaseCastManager
         }
     }
 
+    private static class MessageDelivery implements Runnable {
+
+        private final IDataCastConsumer[] mConsumers;
+        private final CastDevice mCastDevice;
+        private final String mNamespace;
+        private final String mMessage;
+
+        MessageDelivery(IDataCastConsumer[] consumers, CastDevice castDevice, String namespace,
+                String message) {
+            mConsumers = consumers;
+            mCastDevice = castDevice;
+            mNamespace = namespace;
+            mMessage = message;
+        }
+
+        @Override
+        public void run() {
+            deliverMessage(mConsumers, mCastDevice, mNamespace, mMessage);
+        }
+    }
+
     public void onMessageSendFailed(Status result) {
-        for (IDataCastConsumer consumer : mDataConsumers) {
+        for (IDataCastConsumer consumer : mDataConsumers.snapshot()) {
             try {
                 consumer.onMessageSendFailed(result);
             } catch (Exception e) {
@@ -497,6 +1330,114 @@ public class DataCastManager extends BaseCastManager
         }
     }
 
+    /*************************************************************/
+    /***** Typed messages ****************************************/
+    /*************************************************************/
+
+    /**
+     * Sets the name of the field holding the type of the typed messages. The default is
+     * {@link #DEFAULT_MESSAGE_TYPE_FIELD}.
+     *
+     * @param typeField
+     * @see #registerMessageDecoder(String, String, MessageDecoder, int)
+     */
+    public synchronized void setMessageTypeField(String typeField) {
+        if (TextUtils.isEmpty(typeField)) {
+            throw new IllegalArgumentException("typeField cannot be empty");
+        }
+        mMessageTypeField = typeField;
+        if (null != mTypedMessageRouter) {
+            mTypedMessageRouter.setTypeField(typeField);
+        }
+    }
+
+    /**
+     * Registers the decoder of the messages of the given namespace and type. Each matching message
+     * is decoded once with a streaming {@link android.util.JsonReader}, and the result is shared by
+     * all the {@link TypedMessageListener}s of this type. Decoding and delivery happen on the
+     * <code>dispatchThread</code>, in the order the messages were received. Typed messages are
+     * still delivered as strings to the {@link IDataCastConsumer}s.
+     * <p/>
+     * The type of a message is the string value of its type field, for instance
+     * <code>{"type":"score","home":2,"away":1}</code>. A decoder registered for the
+     * <code>null</code> type receives all the messages of the namespace which have no more
+     * specific decoder. Registering a decoder replaces the previous one for the same type, and
+     * keeps its listeners.
+     * <p/>
+     * This requires Android 3.0 (API level 11) or later.
+     *
+     * @param namespace
+     * @param type The type of the messages, or null to match all types
+     * @param decoder
+     * @param dispatchThread {@link #DISPATCH_MAIN_THREAD} or {@link #DISPATCH_BACKGROUND_THREAD}
+     * @throws UnsupportedOperationException Before API level 11
+     * @throws IllegalArgumentException If namespace is null or empty, or if the dispatch thread is
+     *             invalid
+     */
+    public synchronized <T> void registerMessageDecoder(String namespace, String type,
+            MessageDecoder<T> decoder, int dispatchThread) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            throw new UnsupportedOperationException("Typed messages require API level 11");
+        }
+        if (TextUtils.isEmpty(namespace)) {
+            throw new IllegalArgumentException("namespace cannot be empty");
+        }
+        if ((dispatchThread != DISPATCH_MAIN_THREAD)
+                && (dispatchThread != DISPATCH_BACKGROUND_THREAD)) {
+            throw new IllegalArgumentException("Invalid dispatch thread: " + dispatchThread);
+        }
+        if (null == mTypedMessageRouter) {
+            mTypedMessageRouter = new TypedMessageRouter(mMessageTypeField);
+        }
+        mTypedMessageRouter.setDecoder(namespace, type, decoder, dispatchThread);
+    }
+
+    /**
+     * Unregisters the decoder of the messages of the given namespace and type, and all its
+     * listeners.
+     *
+     * @param namespace
+     * @param type
+     */
+    public synchronized void unregisterMessageDecoder(String namespace, String type) {
+        if (null != mTypedMessageRouter) {
+            mTypedMessageRouter.setDecoder(namespace, type, null, DISPATCH_MAIN_THREAD);
+        }
+    }
+
+    /**
+     * Registers a listener of the decoded messages of the given namespace and type. A decoder
+     * must have been registered for them first.
+     *
+     * @param namespace
+     * @param type The type of the messages, or null for the decoder matching all types
+     * @param listener
+     * @throws IllegalStateException If no decoder is registered for this namespace and type
+     * @see #registerMessageDecoder(String, String, MessageDecoder, int)
+     */
+    public synchronized <T> void addTypedMessageListener(String namespace, String type,
+            TypedMessageListener<T> listener) {
+        if ((null == mTypedMessageRouter)
+                || !mTypedMessageRouter.addListener(namespace, type, listener)) {
+            throw new IllegalStateException("No decoder registered for type " + type
+                    + " of namespace " + namespace);
+        }
+    }
+
+    /**
+     * Unregisters a listener of the decoded messages of the given namespace and type.
+     *
+     * @param namespace
+     * @param type
+     * @param listener
+     */
+    public synchronized <T> void removeTypedMessageListener(String namespace, String type,
+            TypedMessageListener<T> listener) {
+        if (null != mTypedMessageRouter) {
+            mTypedMessageRouter.removeListener(namespace, type, listener);
+        }
+    }
+
     /*************************************************************/
     /***** Registering IDataCastConsumer listeners ***************/
     /*************************************************************/
@@ -509,9 +1450,33 @@ public class DataCastManager extends BaseCastManager
      * @param listener
      */
     public void addDataCastConsumer(IDataCastConsumer listener) {
+        addDataCastConsumer(listener, DISPATCH_MAIN_THREAD);
+    }
+
+    /**
+     * Registers an {@link IDataCastConsumer} interface with this class, specifying the thread on
+     * which {@link IDataCastConsumer#onMessageReceived(CastDevice, String, String)} will be called.
+     * All the other callbacks are always called on the main thread. Registering the same listener
+     * again has no effect; remove it first to change its dispatch thread.
+     *
+     * @param listener
+     * @param dispatchThread {@link #DISPATCH_MAIN_THREAD} or {@link #DISPATCH_BACKGROUND_THREAD}
+     * @throws IllegalArgumentException If dispatchThread is not a valid value
+     */
+    public void addDataCastConsumer(IDataCastConsumer listener, int dispatchThread) {
+        if ((dispatchThread != DISPATCH_MAIN_THREAD)
+                && (dispatchThread != DISPATCH_BACKGROUND_THREAD)) {
+            throw new IllegalArgumentException("Invalid dispatch thread: " + dispatchThread);
+        }
         if (null != listener) {
             super.addBaseCastConsumer(listener);
-            mDataConsumers.add(listener);
+            if (mDataConsumers.add(listener)) {
+                if (dispatchThread == DISPATCH_BACKGROUND_THREAD) {
+                    mBackgroundMessageConsumers.add(listener);
+                } else {
+                    mMainThreadMessageConsumers.add(listener);
+                }
+            }
         }
     }
 
@@ -524,6 +1489,8 @@ public class DataCastManager extends BaseCastManager
         if (null != listener) {
             super.removeBaseCastConsumer(listener);
             mDataConsumers.remove(listener);
+            mMainThreadMessageConsumers.remove(listener);
+            mBackgroundMessageConsumers.remove(listener);
         }
     }
 
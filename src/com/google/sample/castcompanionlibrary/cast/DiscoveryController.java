@@ -0,0 +1,150 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.support.v7.media.MediaRouteSelector;
+import android.support.v7.media.MediaRouter;
+
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Registers the media router callback with the flags of the current discovery mode, and accounts
+ * for the time and the battery spent in each mode:
+ * <ul>
+ * <li>{@link BaseCastManager#DISCOVERY_STOPPED}: the callback is not registered.</li>
+ * <li>{@link BaseCastManager#DISCOVERY_PASSIVE}: the callback is registered without requesting
+ * discovery, so it only receives the routes discovered on behalf of other clients.</li>
+ * <li>{@link BaseCastManager#DISCOVERY_REQUESTED}: discovery is requested.</li>
+ * <li>{@link BaseCastManager#DISCOVERY_ACTIVE_SCAN}: discovery is requested with an active scan,
+ * which finds the devices sooner but costs the most.</li>
+ * </ul>
+ * The battery level only has a 1% resolution and is not counted while the device is charging, so
+ * the drain is only meaningful over long periods. This class must be used on the main thread.
+ */
+final class DiscoveryController {
+
+    private static final String TAG = LogUtils.makeLogTag(DiscoveryController.class);
+    private static final int MODE_COUNT = 4;
+    private static final String[] MODE_NAMES = new String[] {
+            "stopped", "passive", "requested", "active scan"
+    };
+
+    private final Context mContext;
+    private final MediaRouter mMediaRouter;
+    private final MediaRouteSelector mMediaRouteSelector;
+    private final CastMediaRouterCallback mCallback;
+    private int mMode = BaseCastManager.DISCOVERY_STOPPED;
+    private long mModeStart = SystemClock.elapsedRealtime();
+    // Battery level at the start of the mode in percent, or -1 if unknown or charging
+    private float mModeStartBattery = -1f;
+    private final long[] mTimeInMode = new long[MODE_COUNT];
+    private final float[] mBatteryDrain = new float[MODE_COUNT];
+    private final int[] mEntryCount = new int[MODE_COUNT];
+
+    DiscoveryController(Context context, MediaRouter mediaRouter, MediaRouteSelector selector,
+            CastMediaRouterCallback callback) {
+        mContext = context.getApplicationContext();
+        mMediaRouter = mediaRouter;
+        mMediaRouteSelector = selector;
+        mCallback = callback;
+    }
+
+    int getMode() {
+        return mMode;
+    }
+
+    void setMode(int mode) {
+        if (mode == mMode) {
+            return;
+        }
+        LOGD(TAG, "Discovery mode changed from " + MODE_NAMES[mMode] + " to " + MODE_NAMES[mode]);
+        float battery = getBatteryLevel();
+        account(battery);
+        int previousMode = mMode;
+        mMode = mode;
+        mModeStartBattery = battery;
+        mEntryCount[mode]++;
+        switch (mode) {
+            case BaseCastManager.DISCOVERY_PASSIVE:
+                register(0);
+                break;
+            case BaseCastManager.DISCOVERY_REQUESTED:
+                register(MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY);
+                break;
+            case BaseCastManager.DISCOVERY_ACTIVE_SCAN:
+                register(MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY
+                        | MediaRouter.CALLBACK_FLAG_PERFORM_ACTIVE_SCAN);
+                break;
+            default:
+                mMediaRouter.removeCallback(mCallback);
+                return;
+        }
+        if (previousMode == BaseCastManager.DISCOVERY_STOPPED) {
+            // Catch up with the changes which happened while the callback was not registered
+            mCallback.syncRoutes(mMediaRouter, mMediaRouteSelector);
+        }
+    }
+
+    /**
+     * @return The time spent in the mode in milliseconds, including the current period.
+     */
+    long getTimeInMode(int mode) {
+        long time = mTimeInMode[mode];
+        if (mode == mMode) {
+            time += SystemClock.elapsedRealtime() - mModeStart;
+        }
+        return time;
+    }
+
+    /**
+     * @return The battery drained while in the mode in percent, excluding the current period.
+     */
+    float getBatteryDrain(int mode) {
+        return mBatteryDrain[mode];
+    }
+
+    int getEntryCount(int mode) {
+        return mEntryCount[mode];
+    }
+
+    void resetStats() {
+        for (int i = 0; i < MODE_COUNT; i++) {
+            mTimeInMode[i] = 0L;
+            mBatteryDrain[i] = 0f;
+            mEntryCount[i] = 0;
+        }
+        mModeStart = SystemClock.elapsedRealtime();
+        mModeStartBattery = getBatteryLevel();
+    }
+
+    private void register(int flags) {
+        // Updates the flags if the callback is already registered
+        mMediaRouter.addCallback(mMediaRouteSelector, mCallback, flags);
+    }
+
+    private void account(float battery) {
+        long now = SystemClock.elapsedRealtime();
+        mTimeInMode[mMode] += now - mModeStart;
+        mModeStart = now;
+        if ((mModeStartBattery >= 0f) && (battery >= 0f) && (battery < mModeStartBattery)) {
+            mBatteryDrain[mMode] += mModeStartBattery - battery;
+        }
+    }
+
+    private float getBatteryLevel() {
+        // The battery broadcast is sticky, so this returns the last one without registering
+        Intent intent = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (null == intent || intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return -1f;
+        }
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return (level < 0 || scale <= 0) ? -1f : 100f * level / scale;
+    }
+}
@@ -0,0 +1,114 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaStatus;
+
+/**
+ * Immutable copy of the fields of a remote media status which matter to the UI, used to only
+ * notify the consumers of the fields which actually changed between two status updates.
+ */
+final class MediaStatusSnapshot {
+
+    static final int CHANGED_PLAYER_STATE = 1;
+    static final int CHANGED_IDLE_REASON = 1 << 1;
+    static final int CHANGED_VOLUME = 1 << 2;
+    static final int CHANGED_MUTE = 1 << 3;
+    static final int CHANGED_MEDIA = 1 << 4;
+    // The position jumped compared to the one extrapolated from the previous status
+    static final int CHANGED_POSITION = 1 << 5;
+    static final int CHANGED_ALL = (1 << 6) - 1;
+
+    // Changes which consumers receive through onRemoteMediaPlayerStatusUpdated()
+    static final int MASK_STATUS = CHANGED_PLAYER_STATE | CHANGED_IDLE_REASON | CHANGED_MEDIA | CHANGED_POSITION;
+    static final int MASK_VOLUME = CHANGED_VOLUME | CHANGED_MUTE;
+
+    private static final long POSITION_TOLERANCE_MS = 1000L;
+    private static final double VOLUME_TOLERANCE = 0.001d;
+
+    final int playerState;
+    final int idleReason;
+    final double volume;
+    final boolean isMute;
+    final long mediaSessionId;
+    final String contentId;
+    final long streamPosition;
+    final double playbackRate;
+    // SystemClock.elapsedRealtime() when the snapshot was taken
+    final long timestamp;
+
+    private MediaStatusSnapshot(int playerState, int idleReason, double volume, boolean isMute,
+            long mediaSessionId, String contentId, long streamPosition, double playbackRate, long timestamp) {
+        this.playerState = playerState;
+        this.idleReason = idleReason;
+        this.volume = volume;
+        this.isMute = isMute;
+        this.mediaSessionId = mediaSessionId;
+        this.contentId = contentId;
+        this.streamPosition = streamPosition;
+        this.playbackRate = playbackRate;
+        this.timestamp = timestamp;
+    }
+
+    static MediaStatusSnapshot create(MediaStatus status, double volume, boolean isMute) {
+        MediaInfo info = status.getMediaInfo();
+        return new MediaStatusSnapshot(status.getPlayerState(), status.getIdleReason(), volume, isMute,
+                status.getMediaSessionId(), (info == null) ? null : info.getContentId(),
+                status.getStreamPosition(), status.getPlaybackRate(), SystemClock.elapsedRealtime());
+    }
+
+    MediaStatusSnapshot withVolume(double volume, boolean isMute) {
+        return new MediaStatusSnapshot(playerState, idleReason, volume, isMute, mediaSessionId, contentId,
+                streamPosition, playbackRate, timestamp);
+    }
+
+    /**
+     * @return The CHANGED_* flags of the fields which differ from the previous snapshot, or
+     *         CHANGED_ALL if there is no previous snapshot.
+     */
+    int diff(MediaStatusSnapshot previous) {
+        if (previous == null) {
+            return CHANGED_ALL;
+        }
+        int changes = 0;
+        if (playerState != previous.playerState) {
+            changes |= CHANGED_PLAYER_STATE;
+        }
+        if (idleReason != previous.idleReason) {
+            changes |= CHANGED_IDLE_REASON;
+        }
+        if (isVolumeDifferent(previous.volume)) {
+            changes |= CHANGED_VOLUME;
+        }
+        if (isMute != previous.isMute) {
+            changes |= CHANGED_MUTE;
+        }
+        if ((mediaSessionId != previous.mediaSessionId) || !equals(contentId, previous.contentId)) {
+            changes |= CHANGED_MEDIA;
+        }
+        if ((playbackRate != previous.playbackRate)
+                || (Math.abs(streamPosition - previous.getExpectedPosition(timestamp)) > POSITION_TOLERANCE_MS)) {
+            changes |= CHANGED_POSITION;
+        }
+        return changes;
+    }
+
+    boolean isVolumeDifferent(double otherVolume) {
+        return Math.abs(volume - otherVolume) > VOLUME_TOLERANCE;
+    }
+
+    /**
+     * @return The position expected at the specified time if playback continued normally.
+     */
+    long getExpectedPosition(long time) {
+        if (playerState != MediaStatus.PLAYER_STATE_PLAYING) {
+            return streamPosition;
+        }
+        return streamPosition + (long) ((time - timestamp) * playbackRate);
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+}
@@ -0,0 +1,239 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.Status;
+
+/**
+ * Collects the outgoing messages of a namespace during a short window and sends them as a single
+ * envelope, either when the window expires or when the batch reaches its size cap. A batch
+ * containing a single message is sent verbatim. Envelopes have the following format, each
+ * message being a JSON string:
+ *
+ * <pre>
+ * {"__ccl":"batch","messages":["message 1","message 2"]}
+ * </pre>
+ *
+ * Messages sent with a coalescing key replace the pending message with the same key, if any, and
+ * move to the end of the batch: only the latest state is sent.
+ * <p/>
+ * All the messages of a batch share the same future, completed with the result of the batch.
+ */
+final class MessageBatcher {
+
+    interface Sink {
+
+        /**
+         * @param future The future to complete with the result of the batch.
+         */
+        void send(String namespace, String message, SendFuture future);
+    }
+
+    static final String KEY_TYPE = "__ccl";
+    private static final String KEY_MESSAGES = "messages";
+    private static final String TYPE_BATCH = "batch";
+    private static final String BATCH_PREFIX = "{\"" + KEY_TYPE + "\":\"" + TYPE_BATCH + "\"";
+    // Size of the envelope around the messages, rounded up
+    private static final int ENVELOPE_OVERHEAD = BATCH_PREFIX.length() + 16;
+
+    private final Sink mSink;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Batch> mBatches = new HashMap<String, Batch>();
+
+    MessageBatcher(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Enables batching for the namespace, or disables it if <code>windowMs</code> is 0. Disabling
+     * it flushes the pending messages. <code>maxBytes</code> is capped at
+     * {@link Cast#MAX_MESSAGE_LENGTH}.
+     */
+    void setPolicy(String namespace, long windowMs, int maxBytes) {
+        maxBytes = Math.min(maxBytes, Cast.MAX_MESSAGE_LENGTH);
+        Batch flushed = null;
+        synchronized (this) {
+            Batch batch = mBatches.get(namespace);
+            if (windowMs <= 0L) {
+                flushed = mBatches.remove(namespace);
+            } else if (batch == null) {
+                mBatches.put(namespace, new Batch(namespace, windowMs, maxBytes));
+            } else {
+                batch.mWindowMs = windowMs;
+                batch.mMaxBytes = maxBytes;
+            }
+        }
+        if (flushed != null) {
+            flushed.flush();
+        }
+    }
+
+    synchronized boolean isEnabled(String namespace) {
+        return mBatches.containsKey(namespace);
+    }
+
+    /**
+     * @param coalescingKey Key identifying messages which supersede each other, or null.
+     * @return The future of the batch, or null if batching is not enabled for this namespace.
+     */
+    SendFuture add(String namespace, String message, String coalescingKey) {
+        Batch batch;
+        synchronized (this) {
+            batch = mBatches.get(namespace);
+        }
+        if (batch == null) {
+            return null;
+        }
+        return batch.add(message, coalescingKey);
+    }
+
+    /**
+     * Sends all the pending messages right away.
+     */
+    void flushAll() {
+        for (Batch batch : getBatches()) {
+            batch.flush();
+        }
+    }
+
+    /**
+     * Drops all the pending messages, typically after a disconnection.
+     */
+    void clear() {
+        for (Batch batch : getBatches()) {
+            batch.clear();
+        }
+    }
+
+    private synchronized List<Batch> getBatches() {
+        return new ArrayList<Batch>(mBatches.values());
+    }
+
+    /**
+     * @return The messages contained in the envelope, or null if the message is not an envelope.
+     */
+    static String[] unpack(String message) {
+        if ((message == null) || !message.startsWith(BATCH_PREFIX)) {
+            return null;
+        }
+        try {
+            JSONArray messages = new JSONObject(message).getJSONArray(KEY_MESSAGES);
+            String[] result = new String[messages.length()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = messages.getString(i);
+            }
+            return result;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    static String pack(Iterable<String> messages, int size) {
+        StringBuilder builder = new StringBuilder(size + ENVELOPE_OVERHEAD);
+        builder.append(BATCH_PREFIX).append(",\"").append(KEY_MESSAGES).append("\":[");
+        boolean first = true;
+        for (String message : messages) {
+            if (!first) {
+                builder.append(',');
+            }
+            builder.append(JSONObject.quote(message));
+            first = false;
+        }
+        return builder.append("]}").toString();
+    }
+
+    /*
+     * A single message is sent verbatim, so this is an upper bound in that case.
+     */
+    private static int getEnvelopeSize(int quotedSize, int count) {
+        // The messages are separated by commas
+        return ENVELOPE_OVERHEAD + quotedSize + count - 1;
+    }
+
+    private class Batch implements Runnable {
+
+        private final String mNamespace;
+        volatile long mWindowMs;
+        volatile int mMaxBytes;
+        // Messages without coalescing key use a unique key
+        private final LinkedHashMap<Object, String> mMessages = new LinkedHashMap<Object, String>();
+        // Total length of the messages once quoted in the envelope
+        private int mSize;
+        // Null until the first message of a batch is added
+        private SendFuture mFuture;
+
+        Batch(String namespace, long windowMs, int maxBytes) {
+            mNamespace = namespace;
+            mWindowMs = windowMs;
+            mMaxBytes = maxBytes;
+        }
+
+        synchronized SendFuture add(String message, String coalescingKey) {
+            int length = JSONObject.quote(message).length();
+            Object key = (coalescingKey == null) ? new Object() : coalescingKey;
+            String previous = mMessages.remove(key);
+            if (previous != null) {
+                mSize -= JSONObject.quote(previous).length();
+            }
+            if (!mMessages.isEmpty()
+                    && getEnvelopeSize(mSize + length, mMessages.size() + 1) > mMaxBytes) {
+                // The message would overflow the envelope, it starts the next batch instead
+                flush();
+            }
+            if (mFuture == null) {
+                mHandler.postDelayed(this, mWindowMs);
+                mFuture = new SendFuture();
+            }
+            SendFuture future = mFuture;
+            mMessages.put(key, message);
+            mSize += length;
+            if (getEnvelopeSize(mSize, mMessages.size()) >= mMaxBytes) {
+                flush();
+            }
+            return future;
+        }
+
+        synchronized void clear() {
+            mHandler.removeCallbacks(this);
+            mMessages.clear();
+            mSize = 0;
+            if (mFuture != null) {
+                mFuture.complete(new Status(CastStatusCodes.NETWORK_ERROR));
+                mFuture = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            flush();
+        }
+
+        // Sending while holding the lock keeps the batches of a namespace in order
+        synchronized void flush() {
+            mHandler.removeCallbacks(this);
+            if (mMessages.isEmpty()) {
+                return;
+            }
+            String payload = (mMessages.size() == 1) ? mMessages.values().iterator().next()
+                    : pack(mMessages.values(), mSize + mMessages.size());
+            SendFuture future = mFuture;
+            mMessages.clear();
+            mSize = 0;
+            mFuture = null;
+            mSink.send(mNamespace, payload, future);
+        }
+    }
+}
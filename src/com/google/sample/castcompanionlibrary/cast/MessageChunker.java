@@ -0,0 +1,118 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Splits messages which are too large for a single Cast message into chunk envelopes of the
+ * following format, and parses them back:
+ *
+ * <pre>
+ * {"__ccl":"chunk","id":"3f","seq":0,"last":false,"data":"first part of the message"}
+ * </pre>
+ *
+ * The chunks of a stream are numbered from 0 and the last one is flagged, so they can be
+ * processed as they arrive. Several streams of the same namespace can be interleaved.
+ */
+final class MessageChunker {
+
+    static final String KEY_ID = "id";
+    static final String KEY_SEQUENCE = "seq";
+    static final String KEY_LAST = "last";
+    static final String KEY_DATA = "data";
+    private static final String TYPE_CHUNK = "chunk";
+    private static final String CHUNK_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + TYPE_CHUNK + "\"";
+    // Upper bound of the size of the envelope around the data
+    private static final int ENVELOPE_OVERHEAD = CHUNK_PREFIX.length() + 64;
+
+    static final class Chunk {
+
+        final String mId;
+        final int mSequence;
+        final boolean mLast;
+        final String mData;
+
+        Chunk(String id, int sequence, boolean last, String data) {
+            mId = id;
+            mSequence = sequence;
+            mLast = last;
+            mData = data;
+        }
+    }
+
+    private MessageChunker() {
+    }
+
+    /**
+     * @param maxLength Maximum length of each chunk envelope
+     * @return The chunk envelopes, in order.
+     */
+    static List<String> split(String message, String id, int maxLength) {
+        int maxDataLength = maxLength - ENVELOPE_OVERHEAD - id.length();
+        if (maxDataLength <= 0) {
+            throw new IllegalArgumentException("Chunk length too small: " + maxLength);
+        }
+        List<String> chunks = new ArrayList<String>(message.length() / maxDataLength + 1);
+        int length = message.length();
+        int start = 0;
+        int sequence = 0;
+        do {
+            int end = getSplitIndex(message, start, Math.min(length, start + maxDataLength));
+            String data = JSONObject.quote(message.substring(start, end));
+            // Escaping can make the data longer, retry with a smaller part in that case
+            while ((data.length() > maxDataLength) && (end - start > 1)) {
+                int half = getSplitIndex(message, start, start + (end - start) / 2);
+                if (half >= end) {
+                    // The part is a single surrogate pair
+                    break;
+                }
+                end = half;
+                data = JSONObject.quote(message.substring(start, end));
+            }
+            chunks.add(new StringBuilder(data.length() + ENVELOPE_OVERHEAD).append(CHUNK_PREFIX)
+                    .append(",\"").append(KEY_ID).append("\":").append(JSONObject.quote(id))
+                    .append(",\"").append(KEY_SEQUENCE).append("\":").append(sequence++)
+                    .append(",\"").append(KEY_LAST).append("\":").append(end == length)
+                    .append(",\"").append(KEY_DATA).append("\":").append(data)
+                    .append('}').toString());
+            start = end;
+        } while (start < length);
+        return chunks;
+    }
+
+    /*
+     * Moves the end of a part so surrogate pairs are never split: back if the part has other
+     * characters, forward if the part would only contain the high surrogate.
+     */
+    private static int getSplitIndex(String message, int start, int end) {
+        if ((end < message.length()) && (end > start)
+                && Character.isHighSurrogate(message.charAt(end - 1))) {
+            return (end - start > 1) ? end - 1 : end + 1;
+        }
+        return end;
+    }
+
+    static boolean isChunk(String message) {
+        return (message != null) && message.startsWith(CHUNK_PREFIX);
+    }
+
+    /**
+     * @return The parsed chunk, or null if the message is not a valid chunk envelope.
+     */
+    static Chunk parse(String message) {
+        if (!isChunk(message)) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(message);
+            return new Chunk(json.getString(KEY_ID), json.getInt(KEY_SEQUENCE),
+                    json.getBoolean(KEY_LAST), json.getString(KEY_DATA));
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Base64;
+
+/**
+ * Compresses messages with deflate into envelopes of the following format, the data being
+ * encoded in base64, and decompresses them:
+ *
+ * <pre>
+ * {"__ccl":"deflate","data":"eJzLSM3JyVcozy/KSQEAGgQEXQ=="}
+ * </pre>
+ *
+ * Messages are only compressed for peers which announced that they support it, with a capability
+ * message of the following format. A capability message with <code>"reply":true</code> asks the
+ * peer to announce its own capabilities in return.
+ *
+ * <pre>
+ * {"__ccl":"caps","compression":["deflate"],"reply":true}
+ * </pre>
+ *
+ * The compressor keeps statistics about the compression ratio and the time spent compressing and
+ * decompressing. This class is thread-safe.
+ */
+final class MessageCompressor {
+
+    /**
+     * Encodes the compressed data into the text of the envelopes.
+     */
+    interface Encoding {
+
+        String encode(byte[] data);
+
+        /**
+         * @throws IllegalArgumentException If the data is malformed.
+         */
+        byte[] decode(String data);
+    }
+
+    static final Encoding BASE64 = new Encoding() {
+
+        @Override
+        public String encode(byte[] data) {
+            return Base64.encodeToString(data, Base64.NO_WRAP);
+        }
+
+        @Override
+        public byte[] decode(String data) {
+            return Base64.decode(data, Base64.DEFAULT);
+        }
+    };
+
+    static final String COMPRESSION_DEFLATE = "deflate";
+    private static final String KEY_DATA = "data";
+    private static final String KEY_COMPRESSION = "compression";
+    private static final String KEY_REPLY = "reply";
+    private static final String TYPE_CAPABILITIES = "caps";
+    private static final String DEFLATE_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + COMPRESSION_DEFLATE + "\"";
+    private static final String CAPABILITIES_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + TYPE_CAPABILITIES + "\"";
+    private static final String CHARSET = "UTF-8";
+    // Protects against decompression bombs
+    private static final int MAX_DECOMPRESSED_LENGTH = 16 * 1024 * 1024;
+
+    private final Encoding mEncoding;
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater mInflater = new Inflater();
+    private final byte[] mBuffer = new byte[4096];
+    private long mOriginalLength;
+    private long mCompressedLength;
+    private long mCompressionCount;
+    private long mCompressionNanos;
+    private long mDecompressionCount;
+    private long mDecompressionNanos;
+
+    MessageCompressor() {
+        this(BASE64);
+    }
+
+    MessageCompressor(Encoding encoding) {
+        mEncoding = encoding;
+    }
+
+    /**
+     * @return The compressed envelope, or null if compression would not make the message shorter.
+     */
+    synchronized String compress(String message) {
+        long start = System.nanoTime();
+        try {
+            byte[] input = message.getBytes(CHARSET);
+            mDeflater.reset();
+            mDeflater.setInput(input);
+            mDeflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+            while (!mDeflater.finished()) {
+                output.write(mBuffer, 0, mDeflater.deflate(mBuffer));
+            }
+            String data = mEncoding.encode(output.toByteArray());
+            String envelope = new StringBuilder(data.length() + DEFLATE_PREFIX.length() + 12)
+                    .append(DEFLATE_PREFIX).append(",\"").append(KEY_DATA).append("\":\"")
+                    .append(data).append("\"}").toString();
+            mOriginalLength += message.length();
+            if (envelope.length() >= message.length()) {
+                mCompressedLength += message.length();
+                return null;
+            }
+            mCompressedLength += envelope.length();
+            return envelope;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        } finally {
+            mCompressionCount++;
+            mCompressionNanos += System.nanoTime() - start;
+        }
+    }
+
+    static boolean isCompressed(String message) {
+        return (message != null) && message.startsWith(DEFLATE_PREFIX);
+    }
+
+    /**
+     * @return The original message, or null if the envelope is malformed.
+     */
+    synchronized String decompress(String envelope) {
+        long start = System.nanoTime();
+        try {
+            byte[] input = mEncoding.decode(new JSONObject(envelope).getString(KEY_DATA));
+            mInflater.reset();
+            mInflater.setInput(input);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length * 4);
+            while (!mInflater.finished()) {
+                int length = mInflater.inflate(mBuffer);
+                if ((length == 0) && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    // Truncated data
+                    return null;
+                }
+                output.write(mBuffer, 0, length);
+                if (output.size() > MAX_DECOMPRESSED_LENGTH) {
+                    return null;
+                }
+            }
+            return output.toString(CHARSET);
+        } catch (JSONException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // Invalid encoding
+            return null;
+        } catch (DataFormatException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        } finally {
+            mDecompressionCount++;
+            mDecompressionNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return The ratio between the compressed and the original length of the messages, messages
+     *         which were not worth compressing included. 1 if no message was compressed.
+     */
+    synchronized double getCompressionRatio() {
+        return (mOriginalLength == 0L) ? 1d : (double) mCompressedLength / mOriginalLength;
+    }
+
+    synchronized long getAverageCompressionTimeMicros() {
+        return (mCompressionCount == 0L) ? 0L : mCompressionNanos / mCompressionCount / 1000L;
+    }
+
+    synchronized long getAverageDecompressionTimeMicros() {
+        return (mDecompressionCount == 0L) ? 0L : mDecompressionNanos / mDecompressionCount / 1000L;
+    }
+
+    static String buildCapabilities(boolean reply) {
+        return new StringBuilder(CAPABILITIES_PREFIX).append(",\"").append(KEY_COMPRESSION)
+                .append("\":[\"").append(COMPRESSION_DEFLATE).append("\"],\"").append(KEY_REPLY)
+                .append("\":").append(reply).append('}').toString();
+    }
+
+    static boolean isCapabilities(String message) {
+        return (message != null) && message.startsWith(CAPABILITIES_PREFIX);
+    }
+
+    /**
+     * @return The capabilities, or null if the message is malformed.
+     */
+    static JSONObject parseCapabilities(String message) {
+        try {
+            return new JSONObject(message);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    static boolean supportsDeflate(JSONObject capabilities) {
+        JSONArray compression = capabilities.optJSONArray(KEY_COMPRESSION);
+        if (compression != null) {
+            for (int i = 0; i < compression.length(); i++) {
+                if (COMPRESSION_DEFLATE.equals(compression.optString(i))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static boolean isReplyRequested(JSONObject capabilities) {
+        return capabilities.optBoolean(KEY_REPLY);
+    }
+}
@@ -0,0 +1,157 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGE;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Runs message deliveries off the main thread. Tasks submitted for the same namespace are always
+ * run one at a time and in submission order, even if the underlying executor is a thread pool;
+ * tasks of different namespaces may run concurrently on such an executor.
+ * <p/>
+ * Unless an executor is provided, a single background {@link HandlerThread} is started on first
+ * use. It also takes over the deliveries rejected by the provided executor, for instance once it
+ * is shut down.
+ */
+final class MessageDispatcher {
+
+    private static final String TAG = LogUtils.makeLogTag(MessageDispatcher.class);
+    private static final String THREAD_NAME = "CCL-MessageDispatcher";
+
+    private final Executor mExecutor;
+    private final Map<String, SerialQueue> mQueues = new HashMap<String, SerialQueue>();
+    private HandlerThreadExecutor mFallbackExecutor;
+
+    MessageDispatcher(Executor executor) {
+        mExecutor = (executor == null) ? new HandlerThreadExecutor() : executor;
+    }
+
+    void dispatch(String namespace, Runnable task) {
+        SerialQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(namespace);
+            if (queue == null) {
+                queue = new SerialQueue();
+                mQueues.put(namespace, queue);
+            }
+        }
+        queue.enqueue(task);
+    }
+
+    /**
+     * Drops the pending tasks and stops the default background thread, if any. Tasks currently
+     * running are not interrupted.
+     */
+    void shutdown() {
+        synchronized (mQueues) {
+            for (SerialQueue queue : mQueues.values()) {
+                queue.clear();
+            }
+            mQueues.clear();
+        }
+        if (mExecutor instanceof HandlerThreadExecutor) {
+            ((HandlerThreadExecutor) mExecutor).quit();
+        }
+        synchronized (this) {
+            if (mFallbackExecutor != null) {
+                mFallbackExecutor.quit();
+                mFallbackExecutor = null;
+            }
+        }
+    }
+
+    private synchronized Executor getFallbackExecutor() {
+        if (mFallbackExecutor == null) {
+            mFallbackExecutor = new HandlerThreadExecutor();
+        }
+        return mFallbackExecutor;
+    }
+
+    private class SerialQueue implements Runnable {
+
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        private boolean mScheduled;
+
+        synchronized void enqueue(Runnable task) {
+            mTasks.offer(task);
+            if (!mScheduled) {
+                mScheduled = true;
+                try {
+                    execute();
+                } catch (RuntimeException e) {
+                    // Otherwise the namespace would never be dispatched again
+                    mScheduled = false;
+                    throw e;
+                }
+            }
+        }
+
+        private void execute() {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                LOGE(TAG, "The executor rejected a delivery, using the internal thread instead", e);
+                getFallbackExecutor().execute(this);
+            }
+        }
+
+        synchronized void clear() {
+            mTasks.clear();
+        }
+
+        private synchronized Runnable poll() {
+            Runnable task = mTasks.poll();
+            if (task == null) {
+                mScheduled = false;
+            }
+            return task;
+        }
+
+        @Override
+        public void run() {
+            // Drain the whole queue in one go to avoid a round trip to the executor per message
+            Runnable task;
+            while ((task = poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOGE(TAG, "Failed to dispatch message", e);
+                }
+            }
+        }
+    }
+
+    private static class HandlerThreadExecutor implements Executor {
+
+        private HandlerThread mThread;
+        private Handler mHandler;
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            if (mHandler == null) {
+                mThread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+            }
+            mHandler.post(command);
+        }
+
+        synchronized void quit() {
+            if (mThread != null) {
+                mThread.quit();
+                mThread = null;
+                mHandler = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.sample.castcompanionlibrary.utils.LatencyHistogram;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Per-namespace queues of outgoing messages. At most <code>maxInFlight</code> messages of a
+ * namespace are sent without having received their result, the next ones wait in the queue. When
+ * the queue is full, the overflow policy decides which message is dropped, if any. Dropped
+ * messages complete with {@link CastStatusCodes#MESSAGE_SEND_BUFFER_TOO_FULL}.
+ * <p/>
+ * With {@link #OVERFLOW_WAIT}, the messages which don't fit wait outside of the queue, up to
+ * <code>maxDepth</code> of them, and the next ones are dropped. The future of such a lane
+ * completes when the message is admitted into the queue, so producers on worker threads can
+ * block on it. It must never be awaited on the main thread, which also drains the queue, or it
+ * deadlocks. The result of the send is only reported to
+ * {@link Transport#onSendFailed(String, Status)}.
+ * <p/>
+ * Namespaces which are not configured are not limited.
+ * <p/>
+ * Each namespace also has a priority class. High and normal priority lanes send as soon as their
+ * own limits allow. Bulk lanes are scheduled together: only a small window of bulk messages is
+ * handed to the Cast API at a time, and none while a high priority message is waiting, so a
+ * high priority message is never stuck behind a large backlog of bulk messages. The bulk lanes
+ * take turns, each one keeping the window for a time slice while it has messages to send.
+ */
+final class OutboundQueue {
+
+    interface Transport {
+
+        /**
+         * Sends the message and registers the callback for its result.
+         *
+         * @throws IllegalStateException If the message can't be sent
+         */
+        void send(String namespace, String message, ResultCallback<Status> callback);
+
+        /**
+         * Called for each message which was not sent successfully, including dropped ones.
+         */
+        void onSendFailed(String namespace, Status status);
+    }
+
+    static final int OVERFLOW_DROP_OLDEST = 0;
+    static final int OVERFLOW_DROP_NEWEST = 1;
+    static final int OVERFLOW_WAIT = 2;
+
+    static final int PRIORITY_HIGH = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_BULK = 2;
+    static final int DEFAULT_BULK_WINDOW = 1;
+    static final long DEFAULT_BULK_TIME_SLICE_MS = 50L;
+
+    private static final String TAG = LogUtils.makeLogTag(OutboundQueue.class);
+
+    private final Transport mTransport;
+    private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+    private final BulkScheduler mBulkScheduler = new BulkScheduler();
+    private final LatencyHistogram[] mPriorityLatencies = new LatencyHistogram[] {
+            new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()
+    };
+
+    OutboundQueue(Transport transport) {
+        mTransport = transport;
+    }
+
+    void setPolicy(String namespace, int maxInFlight, int maxDepth, int overflowPolicy) {
+        getLane(namespace).setPolicy(maxInFlight, maxDepth, overflowPolicy);
+    }
+
+    void setPriority(String namespace, int priority) {
+        Lane lane = getLane(namespace);
+        int oldPriority = lane.setPriority(priority);
+        if (oldPriority != priority) {
+            mBulkScheduler.onPriorityChanged(lane, oldPriority, priority);
+            lane.drain();
+            // Bulk lanes may have been waiting for this one
+            mBulkScheduler.drain();
+        }
+    }
+
+    /**
+     * @param window Maximum number of bulk messages in flight, over all the bulk lanes
+     * @param timeSliceMs How long a bulk lane keeps the window while others are waiting
+     */
+    void setBulkScheduling(int window, long timeSliceMs) {
+        mBulkScheduler.setPolicy(window, timeSliceMs);
+    }
+
+    /**
+     * @param future The future to complete with the result, or null to create a new one.
+     */
+    SendFuture enqueue(String namespace, String message, SendFuture future) {
+        if (future == null) {
+            future = new SendFuture();
+        }
+        getLane(namespace).enqueue(namespace, message, future);
+        return future;
+    }
+
+    int getQueueDepth(String namespace) {
+        return getLane(namespace).getQueueDepth();
+    }
+
+    int getInFlightCount(String namespace) {
+        return getLane(namespace).getInFlightCount();
+    }
+
+    /**
+     * @return The histogram of the delays between the enqueuing of the messages and their result.
+     */
+    LatencyHistogram getLatency(String namespace) {
+        return getLane(namespace).mLatency;
+    }
+
+    /**
+     * @return The histogram of the delays of the messages of all the lanes of a priority class.
+     */
+    LatencyHistogram getPriorityLatency(int priority) {
+        return mPriorityLatencies[priority];
+    }
+
+    /**
+     * Fails all the queued messages, and forgets the ones in flight, typically after a
+     * disconnection.
+     */
+    void clear() {
+        Lane[] lanes;
+        synchronized (mLanes) {
+            lanes = mLanes.values().toArray(new Lane[mLanes.size()]);
+        }
+        mBulkScheduler.clear();
+        Status status = new Status(CastStatusCodes.NETWORK_ERROR);
+        for (Lane lane : lanes) {
+            for (Entry entry : lane.clear()) {
+                fail(entry, status);
+            }
+        }
+    }
+
+    private Lane getLane(String namespace) {
+        synchronized (mLanes) {
+            Lane lane = mLanes.get(namespace);
+            if (lane == null) {
+                lane = new Lane();
+                mLanes.put(namespace, lane);
+            }
+            return lane;
+        }
+    }
+
+    private void fail(Entry entry, Status status) {
+        boolean failed = entry.mFuture.complete(status);
+        if (entry.mAdmission != null) {
+            // No-op if the message was already admitted
+            entry.mAdmission.complete(status);
+        }
+        if (failed) {
+            mTransport.onSendFailed(entry.mNamespace, status);
+        }
+    }
+
+    private void send(Lane lane, Entry entry) {
+        try {
+            mTransport.send(entry.mNamespace, entry.mMessage, entry);
+        } catch (RuntimeException e) {
+            LOGD(TAG, "send(): Failed to send message: " + e.getMessage());
+            // Not going through onResult() avoids a recursive drain of the queue
+            fail(entry, new Status(CastStatusCodes.NETWORK_ERROR));
+            lane.release(entry);
+            mBulkScheduler.release(entry);
+        }
+    }
+
+    /*
+     * Shares a window of in-flight messages between the bulk lanes. Bulk lanes never send by
+     * themselves, they go through the scheduler.
+     */
+    private class BulkScheduler {
+
+        private final List<Lane> mHighPriorityLanes = new ArrayList<Lane>();
+        private final List<Lane> mBulkLanes = new ArrayList<Lane>();
+        private int mWindow = DEFAULT_BULK_WINDOW;
+        private long mTimeSliceMs = DEFAULT_BULK_TIME_SLICE_MS;
+        private int mInFlight;
+        private int mGeneration;
+        // Index of the bulk lane holding the window, and since when
+        private int mCurrent;
+        private long mSliceStart;
+        private boolean mDraining;
+
+        void setPolicy(int window, long timeSliceMs) {
+            synchronized (this) {
+                mWindow = Math.max(1, window);
+                mTimeSliceMs = Math.max(0L, timeSliceMs);
+            }
+            drain();
+        }
+
+        synchronized void onPriorityChanged(Lane lane, int oldPriority, int priority) {
+            List<Lane> lanes = getLanes(oldPriority);
+            if (lanes != null) {
+                lanes.remove(lane);
+            }
+            lanes = getLanes(priority);
+            if (lanes != null) {
+                lanes.add(lane);
+            }
+        }
+
+        /*
+         * Normal priority lanes are not tracked.
+         */
+
+        private List<Lane> getLanes(int priority) {
+            switch (priority) {
+                case PRIORITY_HIGH:
+                    return mHighPriorityLanes;
+                case PRIORITY_BULK:
+                    return mBulkLanes;
+                default:
+                    return null;
+            }
+        }
+
+        synchronized void clear() {
+            mInFlight = 0;
+            mGeneration++;
+        }
+
+        void drain() {
+            synchronized (this) {
+                if (mDraining) {
+                    return;
+                }
+                mDraining = true;
+            }
+            Entry entry;
+            while ((entry = poll()) != null) {
+                send(entry.mLane, entry);
+                // Polling may have made room for waiting messages
+                entry.mLane.completeAdmitted();
+            }
+        }
+
+        private synchronized Entry poll() {
+            Entry entry = null;
+            if ((mInFlight < mWindow) && !hasHighPriorityBacklog()) {
+                entry = pollBulkLanes();
+            }
+            if (entry == null) {
+                mDraining = false;
+            } else {
+                mInFlight++;
+                entry.mScheduled = true;
+                entry.mSchedulerGeneration = mGeneration;
+            }
+            return entry;
+        }
+
+        private boolean hasHighPriorityBacklog() {
+            for (Lane lane : mHighPriorityLanes) {
+                if (lane.getQueueDepth() > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Entry pollBulkLanes() {
+            int count = mBulkLanes.size();
+            if (count == 0) {
+                return null;
+            }
+            long now = SystemClock.elapsedRealtime();
+            mCurrent %= count;
+            if (now - mSliceStart < mTimeSliceMs) {
+                Entry entry = mBulkLanes.get(mCurrent).pollNext();
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            // The slice is over or the lane has nothing to send: next lane in turn
+            for (int i = 1; i <= count; i++) {
+                int index = (mCurrent + i) % count;
+                Entry entry = mBulkLanes.get(index).pollNext();
+                if (entry != null) {
+                    mCurrent = index;
+                    mSliceStart = now;
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        void release(Entry entry) {
+            synchronized (this) {
+                if (!entry.mScheduled || (entry.mSchedulerGeneration != mGeneration)) {
+                    return;
+                }
+                mInFlight--;
+            }
+        }
+    }
+
+    private class Lane {
+
+        private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+        // OVERFLOW_WAIT: messages waiting for room in the queue
+        private final ArrayDeque<Entry> mWaiting = new ArrayDeque<Entry>();
+        // Messages moved from mWaiting to mQueue, whose admission is not signalled yet
+        private final List<Entry> mAdmitted = new ArrayList<Entry>();
+        final LatencyHistogram mLatency = new LatencyHistogram();
+        private int mMaxInFlight = Integer.MAX_VALUE;
+        private int mMaxDepth = Integer.MAX_VALUE;
+        private int mOverflowPolicy = OVERFLOW_DROP_NEWEST;
+        private int mPriority = PRIORITY_NORMAL;
+        private int mInFlight;
+        // Incremented when the lane is cleared, so late results don't update the new state
+        private int mGeneration;
+        // Only one thread sends at a time, so messages leave in the order they were queued
+        private boolean mDraining;
+
+        void setPolicy(int maxInFlight, int maxDepth, int overflowPolicy) {
+            synchronized (this) {
+                mMaxInFlight = Math.max(1, maxInFlight);
+                mMaxDepth = Math.max(0, maxDepth);
+                mOverflowPolicy = overflowPolicy;
+                if (overflowPolicy != OVERFLOW_WAIT) {
+                    // The other policies never hold messages back
+                    mAdmitted.addAll(mWaiting);
+                    mQueue.addAll(mWaiting);
+                    mWaiting.clear();
+                } else {
+                    admitWaiting();
+                }
+            }
+            drain();
+        }
+
+        /**
+         * @return The previous priority.
+         */
+        synchronized int setPriority(int priority) {
+            int oldPriority = mPriority;
+            mPriority = priority;
+            return oldPriority;
+        }
+
+        synchronized int getPriority() {
+            return mPriority;
+        }
+
+        synchronized int getQueueDepth() {
+            return mQueue.size() + mWaiting.size();
+        }
+
+        synchronized int getInFlightCount() {
+            return mInFlight;
+        }
+
+        void enqueue(String namespace, String message, SendFuture future) {
+            Entry entry;
+            Entry dropped = null;
+            boolean admitted = false;
+            synchronized (this) {
+                if (mOverflowPolicy == OVERFLOW_WAIT) {
+                    // The future of the caller signals the admission, the send has its own
+                    entry = new Entry(this, namespace, message, new SendFuture(), future);
+                    if (mWaiting.isEmpty() && !isFull()) {
+                        mQueue.offer(entry);
+                        admitted = true;
+                    } else if (mWaiting.size() < Math.max(1, mMaxDepth)) {
+                        mWaiting.offer(entry);
+                    } else {
+                        dropped = entry;
+                    }
+                } else {
+                    entry = new Entry(this, namespace, message, future, null);
+                    if (isFull()) {
+                        dropped = (mOverflowPolicy == OVERFLOW_DROP_OLDEST) ? mQueue.poll() : entry;
+                    }
+                    if (dropped != entry) {
+                        mQueue.offer(entry);
+                    }
+                }
+            }
+            if (admitted) {
+                entry.mAdmission.complete(new Status(CastStatusCodes.SUCCESS));
+            }
+            if (dropped != null) {
+                LOGD(TAG, "enqueue(): Queue full, dropping message for " + dropped.mNamespace);
+                fail(dropped, new Status(CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL));
+            }
+            drain();
+        }
+
+        synchronized Entry[] clear() {
+            List<Entry> entries = new ArrayList<Entry>(mQueue);
+            entries.addAll(mWaiting);
+            mQueue.clear();
+            mWaiting.clear();
+            mAdmitted.clear();
+            mInFlight = 0;
+            mGeneration++;
+            return entries.toArray(new Entry[entries.size()]);
+        }
+
+        private boolean isFull() {
+            return (mQueue.size() >= mMaxDepth) && (mInFlight >= mMaxInFlight);
+        }
+
+        /*
+         * Moves the waiting messages which fit into the queue. The lock must be held.
+         */
+        private void admitWaiting() {
+            while (!mWaiting.isEmpty() && !isFull()) {
+                Entry entry = mWaiting.poll();
+                mQueue.offer(entry);
+                mAdmitted.add(entry);
+            }
+        }
+
+        /**
+         * Signals the admission of the messages moved into the queue, outside of the lock.
+         */
+        void completeAdmitted() {
+            Entry[] admitted;
+            synchronized (this) {
+                if (mAdmitted.isEmpty()) {
+                    return;
+                }
+                admitted = mAdmitted.toArray(new Entry[mAdmitted.size()]);
+                mAdmitted.clear();
+            }
+            Status status = new Status(CastStatusCodes.SUCCESS);
+            for (Entry entry : admitted) {
+                entry.mAdmission.complete(status);
+            }
+        }
+
+        private synchronized Entry poll() {
+            Entry entry = (mPriority != PRIORITY_BULK) ? pollNext() : null;
+            if (entry == null) {
+                mDraining = false;
+            }
+            return entry;
+        }
+
+        /**
+         * @return The next message to send if the lane limit allows it, counted as in flight.
+         */
+        synchronized Entry pollNext() {
+            Entry entry = (mInFlight < mMaxInFlight) ? mQueue.poll() : null;
+            if (entry != null) {
+                mInFlight++;
+                entry.mGeneration = mGeneration;
+                admitWaiting();
+            }
+            return entry;
+        }
+
+        void drain() {
+            // Admissions made by other threads while this lane was being drained
+            completeAdmitted();
+            boolean bulk;
+            synchronized (this) {
+                bulk = (mPriority == PRIORITY_BULK);
+                if (!bulk) {
+                    if (mDraining) {
+                        return;
+                    }
+                    mDraining = true;
+                }
+            }
+            if (bulk) {
+                // Outside of the lock, as the scheduler locks the lanes it polls
+                mBulkScheduler.drain();
+                return;
+            }
+            Entry entry;
+            while ((entry = poll()) != null) {
+                send(this, entry);
+            }
+            completeAdmitted();
+        }
+
+        void onResult(Entry entry) {
+            release(entry);
+            mBulkScheduler.release(entry);
+            drain();
+            if (getPriority() != PRIORITY_NORMAL) {
+                // Frees a slot of the bulk window, or maybe the high priority backlog
+                mBulkScheduler.drain();
+            }
+        }
+
+        void release(Entry entry) {
+            int priority;
+            synchronized (this) {
+                if (entry.mGeneration == mGeneration) {
+                    mInFlight--;
+                    admitWaiting();
+                }
+                priority = mPriority;
+            }
+            long latency = SystemClock.elapsedRealtime() - entry.mEnqueueTime;
+            mLatency.record(latency);
+            mPriorityLatencies[priority].record(latency);
+        }
+    }
+
+    private class Entry implements ResultCallback<Status> {
+
+        final String mNamespace;
+        final String mMessage;
+        final SendFuture mFuture;
+        // OVERFLOW_WAIT only: completed when the message enters the queue
+        final SendFuture mAdmission;
+        final long mEnqueueTime = SystemClock.elapsedRealtime();
+        final Lane mLane;
+        int mGeneration;
+        boolean mScheduled;
+        int mSchedulerGeneration;
+
+        Entry(Lane lane, String namespace, String message, SendFuture future,
+                SendFuture admission) {
+            mLane = lane;
+            mNamespace = namespace;
+            mMessage = message;
+            mFuture = future;
+            mAdmission = admission;
+        }
+
+        @Override
+        public void onResult(Status result) {
+            if (result.isSuccess()) {
+                mFuture.complete(result);
+            } else {
+                fail(this, result);
+            }
+            mLane.onResult(this);
+        }
+    }
+}
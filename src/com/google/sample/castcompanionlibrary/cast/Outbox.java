@@ -0,0 +1,129 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+
+import java.util.ArrayDeque;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Buffers the messages sent while the connection is suspended, so they can be sent in order once
+ * it is recovered. The outbox is bounded by the total size of its messages: the oldest ones are
+ * dropped when it is full. Messages older than the TTL are dropped instead of being sent.
+ * <p/>
+ * Dropped messages get a result callback with {@link CastStatusCodes#MESSAGE_SEND_BUFFER_TOO_FULL}
+ * or {@link CastStatusCodes#TIMEOUT}.
+ */
+final class Outbox {
+
+    interface Sender {
+
+        void send(String namespace, String message, ResultCallback<Status> callback);
+    }
+
+    private static final String TAG = LogUtils.makeLogTag(Outbox.class);
+
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<Entry>();
+    private long mMaxBytes;
+    private long mTtlMs;
+    private long mSize;
+
+    /**
+     * @param maxBytes Approximate maximum size of the buffered messages, or 0 to disable the outbox
+     * @param ttlMs Maximum age of the messages when they are sent, or 0 for no limit
+     */
+    void setPolicy(long maxBytes, long ttlMs) {
+        synchronized (this) {
+            mMaxBytes = Math.max(0L, maxBytes);
+            mTtlMs = Math.max(0L, ttlMs);
+        }
+        evict();
+    }
+
+    synchronized boolean isEnabled() {
+        return mMaxBytes > 0L;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    void add(String namespace, String message, ResultCallback<Status> callback) {
+        synchronized (this) {
+            mEntries.offer(new Entry(namespace, message, callback));
+            mSize += message.length();
+        }
+        evict();
+    }
+
+    /**
+     * Sends the buffered messages in order, except the expired ones.
+     */
+    void replay(Sender sender) {
+        long ttlMs;
+        int count;
+        synchronized (this) {
+            ttlMs = mTtlMs;
+            // Messages buffered again during the replay are left for the next one
+            count = mEntries.size();
+        }
+        Entry entry;
+        while ((count-- > 0) && ((entry = poll()) != null)) {
+            if ((ttlMs > 0L) && (SystemClock.elapsedRealtime() - entry.mTime > ttlMs)) {
+                LOGD(TAG, "replay(): Dropping expired message for " + entry.mNamespace);
+                entry.mCallback.onResult(new Status(CastStatusCodes.TIMEOUT));
+            } else {
+                sender.send(entry.mNamespace, entry.mMessage, entry.mCallback);
+            }
+        }
+    }
+
+    /**
+     * Drops all the buffered messages, typically after a disconnection.
+     */
+    void clear() {
+        Entry entry;
+        while ((entry = poll()) != null) {
+            entry.mCallback.onResult(new Status(CastStatusCodes.NETWORK_ERROR));
+        }
+    }
+
+    private synchronized Entry poll() {
+        Entry entry = mEntries.poll();
+        if (entry != null) {
+            mSize -= entry.mMessage.length();
+        }
+        return entry;
+    }
+
+    private void evict() {
+        Entry entry;
+        while ((entry = pollOverflow()) != null) {
+            LOGD(TAG, "evict(): Outbox full, dropping message for " + entry.mNamespace);
+            entry.mCallback.onResult(new Status(CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL));
+        }
+    }
+
+    private synchronized Entry pollOverflow() {
+        return (mSize > mMaxBytes) ? poll() : null;
+    }
+
+    private static class Entry {
+
+        final String mNamespace;
+        final String mMessage;
+        final ResultCallback<Status> mCallback;
+        final long mTime = SystemClock.elapsedRealtime();
+
+        Entry(String namespace, String message, ResultCallback<Status> callback) {
+            mNamespace = namespace;
+            mMessage = message;
+            mCallback = callback;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+
+import java.util.Random;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Spaces reconnection attempts with a jittered exponential backoff. The delay before an attempt
+ * doubles with each attempt up to a cap, and a random part of up to half of it spreads the
+ * attempts of many clients after a shared outage. An attempt which does not succeed before the
+ * next one starts is considered failed. The backoff is reset when a reconnection succeeds.
+ * <p/>
+ * Triggers received while an attempt is already scheduled are merged into it, so flapping
+ * connectivity can't cause a storm of attempts. This class must be used on the main thread.
+ */
+final class ReconnectionScheduler {
+
+    interface Task {
+
+        /**
+         * Starts an attempt. The scheduler has to be told about its success.
+         *
+         * @param attempt The number of the attempt since the last success, starting at 1
+         */
+        void attempt(int attempt);
+
+        void onAttemptFinished(int attempt, long delayMs, long durationMs, boolean success);
+    }
+
+    static final long DEFAULT_INITIAL_DELAY_MS = 1000L;
+    static final long DEFAULT_MAX_DELAY_MS = 60000L;
+
+    private static final String TAG = LogUtils.makeLogTag(ReconnectionScheduler.class);
+
+    private final Task mTask;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private long mInitialDelayMs = DEFAULT_INITIAL_DELAY_MS;
+    private long mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+    // Number of attempts since the last success
+    private int mAttempt;
+    private boolean mScheduled;
+    private long mScheduledDelayMs;
+    // Delay and start time of the running attempt, the start time being 0 if there is none
+    private long mAttemptDelayMs;
+    private long mAttemptStart;
+    private final Runnable mAttemptRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mScheduled = false;
+            finishAttempt(false);
+            mAttempt++;
+            mAttemptDelayMs = mScheduledDelayMs;
+            mAttemptStart = SystemClock.elapsedRealtime();
+            LOGD(TAG, "Reconnection attempt " + mAttempt + " after " + mAttemptDelayMs + "ms");
+            // Acts as the timeout of this attempt
+            scheduleNext();
+            mTask.attempt(mAttempt);
+        }
+    };
+
+    ReconnectionScheduler(Task task) {
+        mTask = task;
+    }
+
+    void setPolicy(long initialDelayMs, long maxDelayMs) {
+        mInitialDelayMs = Math.max(1L, initialDelayMs);
+        mMaxDelayMs = Math.max(mInitialDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Schedules an attempt, unless one is already scheduled.
+     */
+    void schedule() {
+        if (!mScheduled) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Ends the running attempt, if any, as a success and resets the backoff.
+     */
+    void onSuccess() {
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mScheduled = false;
+        finishAttempt(true);
+        mAttempt = 0;
+    }
+
+    /**
+     * Cancels the scheduled attempt but keeps the backoff, for instance while there is no network
+     * to reconnect through.
+     */
+    void suspend() {
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mScheduled = false;
+        finishAttempt(false);
+    }
+
+    /**
+     * Cancels the scheduled attempt and resets the backoff.
+     */
+    void stop() {
+        suspend();
+        mAttempt = 0;
+    }
+
+    private void scheduleNext() {
+        long delay = mInitialDelayMs;
+        for (int i = 0; (i < mAttempt) && (delay < mMaxDelayMs); i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxDelayMs);
+        mScheduledDelayMs = delay / 2 + (long) (mRandom.nextDouble() * (delay - delay / 2));
+        mScheduled = true;
+        mHandler.postDelayed(mAttemptRunnable, mScheduledDelayMs);
+    }
+
+    private void finishAttempt(boolean success) {
+        if (mAttemptStart == 0L) {
+            return;
+        }
+        long duration = SystemClock.elapsedRealtime() - mAttemptStart;
+        mAttemptStart = 0L;
+        mTask.onAttemptFinished(mAttempt, mAttemptDelayMs, duration, success);
+    }
+}
@@ -0,0 +1,194 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.support.v7.media.MediaRouteSelector;
+import android.support.v7.media.MediaRouter.RouteInfo;
+
+import com.google.android.gms.cast.CastDevice;
+import com.google.sample.castcompanionlibrary.cast.callbacks.RouteListener;
+import com.google.sample.castcompanionlibrary.utils.ListenerRegistry;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+import com.google.sample.castcompanionlibrary.utils.Utils;
+
+/**
+ * The cast routes discovered on the network, indexed by route id and by device id. The registry is
+ * kept up to date by the {@link CastMediaRouterCallback} while discovery is running, and is
+ * resynchronized with the media router when discovery starts again. It also caches the id of the
+ * route persisted for session recovery, so it is only read from the preferences once.
+ */
+public final class RouteRegistry {
+
+    private static final String TAG = LogUtils.makeLogTag(RouteRegistry.class);
+
+    private final Context mContext;
+    private final Map<String, RouteInfo> mRoutesById = new HashMap<String, RouteInfo>();
+    private final Map<String, RouteInfo> mRoutesByDeviceId = new HashMap<String, RouteInfo>();
+    // Route id -> device id, to unindex routes whose extras changed
+    private final Map<String, String> mDeviceIds = new HashMap<String, String>();
+    private final ListenerRegistry<RouteListener> mListeners =
+            new ListenerRegistry<RouteListener>(RouteListener.class);
+    private String mPersistedRouteId;
+    private boolean mPersistedRouteIdLoaded;
+
+    RouteRegistry(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * @return The route with the given id, or null if it is not available.
+     */
+    public synchronized RouteInfo getRoute(String routeId) {
+        return mRoutesById.get(routeId);
+    }
+
+    /**
+     * @return The route of the device with the given id, as returned by
+     *         {@link CastDevice#getDeviceId()}, or null if it is not available.
+     */
+    public synchronized RouteInfo getRouteForDevice(String deviceId) {
+        return mRoutesByDeviceId.get(deviceId);
+    }
+
+    /**
+     * @return A copy of the available routes.
+     */
+    public synchronized List<RouteInfo> getRoutes() {
+        return new ArrayList<RouteInfo>(mRoutesById.values());
+    }
+
+    public synchronized int size() {
+        return mRoutesById.size();
+    }
+
+    /**
+     * @return The id of the route of the last successful connection, or null.
+     */
+    public synchronized String getPersistedRouteId() {
+        if (!mPersistedRouteIdLoaded) {
+            mPersistedRouteId = Utils.getStringFromPreference(mContext,
+                    BaseCastManager.PREFS_KEY_ROUTE_ID);
+            mPersistedRouteIdLoaded = true;
+        }
+        return mPersistedRouteId;
+    }
+
+    /**
+     * @return The route of the last successful connection, or null if it is not available.
+     */
+    public synchronized RouteInfo getPersistedRoute() {
+        String routeId = getPersistedRouteId();
+        return (null == routeId) ? null : mRoutesById.get(routeId);
+    }
+
+    synchronized void setPersistedRouteId(String routeId) {
+        mPersistedRouteId = routeId;
+        mPersistedRouteIdLoaded = true;
+        Utils.saveStringToPreference(mContext, BaseCastManager.PREFS_KEY_ROUTE_ID, routeId);
+    }
+
+    public void addRouteListener(RouteListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeRouteListener(RouteListener listener) {
+        mListeners.remove(listener);
+    }
+
+    void onRouteAdded(RouteInfo route) {
+        boolean added;
+        synchronized (this) {
+            added = (null == mRoutesById.put(route.getId(), route));
+            index(route);
+        }
+        if (!added) {
+            return;
+        }
+        for (RouteListener listener : mListeners.snapshot()) {
+            try {
+                listener.onRouteAdded(route);
+            } catch (Exception e) {
+                LOGE(TAG, "onRouteAdded(): Failed to inform " + listener, e);
+            }
+        }
+    }
+
+    void onRouteRemoved(RouteInfo route) {
+        synchronized (this) {
+            if (null == mRoutesById.remove(route.getId())) {
+                return;
+            }
+            unindex(route.getId());
+        }
+        for (RouteListener listener : mListeners.snapshot()) {
+            try {
+                listener.onRouteRemoved(route);
+            } catch (Exception e) {
+                LOGE(TAG, "onRouteRemoved(): Failed to inform " + listener, e);
+            }
+        }
+    }
+
+    void onRouteChanged(RouteInfo route) {
+        synchronized (this) {
+            if (!mRoutesById.containsKey(route.getId())) {
+                return;
+            }
+            mRoutesById.put(route.getId(), route);
+            index(route);
+        }
+        for (RouteListener listener : mListeners.snapshot()) {
+            try {
+                listener.onRouteChanged(route);
+            } catch (Exception e) {
+                LOGE(TAG, "onRouteChanged(): Failed to inform " + listener, e);
+            }
+        }
+    }
+
+    /**
+     * Brings the registry in line with the routes of the media router, which may have changed
+     * while they were not observed.
+     */
+    void sync(List<RouteInfo> routes, MediaRouteSelector selector) {
+        Map<String, RouteInfo> current = new HashMap<String, RouteInfo>();
+        if (null != routes) {
+            for (RouteInfo route : routes) {
+                if (!route.isDefault() && route.matchesSelector(selector)) {
+                    current.put(route.getId(), route);
+                }
+            }
+        }
+        for (RouteInfo route : getRoutes()) {
+            if (!current.containsKey(route.getId())) {
+                onRouteRemoved(route);
+            }
+        }
+        for (RouteInfo route : current.values()) {
+            onRouteAdded(route);
+        }
+    }
+
+    private void index(RouteInfo route) {
+        unindex(route.getId());
+        CastDevice device = CastDevice.getFromBundle(route.getExtras());
+        String deviceId = (null == device) ? null : device.getDeviceId();
+        if (null != deviceId) {
+            mDeviceIds.put(route.getId(), deviceId);
+            mRoutesByDeviceId.put(deviceId, route);
+        }
+    }
+
+    private void unindex(String routeId) {
+        String deviceId = mDeviceIds.remove(routeId);
+        if (null != deviceId) {
+            mRoutesByDeviceId.remove(deviceId);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGE;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.sample.castcompanionlibrary.cast.callbacks.RpcCallback;
+import com.google.sample.castcompanionlibrary.cast.exceptions.CastException;
+import com.google.sample.castcompanionlibrary.utils.LatencyHistogram;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Remote method calls over data channels. Each request carries a unique id, which the receiver
+ * copies in its reply, so any number of calls can be outstanding at the same time:
+ *
+ * <pre>
+ * {"__ccl":"rpc","id":"12","method":"getScore","params":{"team":"home"}}
+ * {"__ccl":"rpc-reply","id":"12","result":{"score":3}}
+ * {"__ccl":"rpc-reply","id":"12","error":"Unknown team","code":2001}
+ * </pre>
+ *
+ * Calls fail if no reply arrives before their timeout. The round-trip time of the successful calls
+ * is recorded per method.
+ */
+final class RpcClient {
+
+    interface Sender {
+
+        SendFuture send(String namespace, String message);
+    }
+
+    private static final String TAG = LogUtils.makeLogTag(RpcClient.class);
+    private static final String KEY_ID = "id";
+    private static final String KEY_METHOD = "method";
+    private static final String KEY_PARAMS = "params";
+    private static final String KEY_RESULT = "result";
+    private static final String KEY_ERROR = "error";
+    private static final String KEY_CODE = "code";
+    private static final String TYPE_REQUEST = "rpc";
+    private static final String TYPE_REPLY = "rpc-reply";
+    private static final String REQUEST_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + TYPE_REQUEST + "\"";
+    private static final String REPLY_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + TYPE_REPLY + "\"";
+
+    private final Sender mSender;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Call> mCalls = new HashMap<String, Call>();
+    private final Map<String, LatencyHistogram> mLatencies =
+            new HashMap<String, LatencyHistogram>();
+    private int mNextId;
+
+    RpcClient(Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * @param params The JSON text of the parameters, or null
+     * @param callback May be null
+     */
+    Future<String> call(String namespace, String method, String params, long timeoutMs,
+            RpcCallback callback) {
+        Call call;
+        synchronized (mCalls) {
+            call = new Call(Integer.toString(mNextId++, Character.MAX_RADIX), method, callback);
+            mCalls.put(call.mId, call);
+        }
+        StringBuilder request = new StringBuilder(REQUEST_PREFIX).append(",\"").append(KEY_ID)
+                .append("\":\"").append(call.mId).append("\",\"").append(KEY_METHOD).append("\":")
+                .append(JSONObject.quote(method));
+        if (params != null) {
+            request.append(",\"").append(KEY_PARAMS).append("\":").append(params);
+        }
+        mHandler.postDelayed(call, timeoutMs);
+        call.mStartTime = SystemClock.elapsedRealtime();
+        final Call sentCall = call;
+        SendFuture future = mSender.send(namespace, request.append('}').toString());
+        future.addListener(new SendFuture.Listener() {
+
+            @Override
+            public void onComplete(Status status) {
+                // Fail fast instead of waiting for the timeout
+                if (!status.isSuccess()) {
+                    complete(sentCall, null, status, null);
+                }
+            }
+        });
+        return call;
+    }
+
+    static boolean isReply(String message) {
+        return (message != null) && message.startsWith(REPLY_PREFIX);
+    }
+
+    void onReplyReceived(String message) {
+        JSONObject reply;
+        Call call;
+        try {
+            reply = new JSONObject(message);
+            synchronized (mCalls) {
+                call = mCalls.get(reply.getString(KEY_ID));
+            }
+        } catch (JSONException e) {
+            LOGD(TAG, "onReplyReceived(): Ignoring malformed reply");
+            return;
+        }
+        if (call == null) {
+            // Timed out or cancelled
+            return;
+        }
+        if (reply.has(KEY_ERROR)) {
+            int code = reply.optInt(KEY_CODE, CastStatusCodes.FAILED);
+            complete(call, null, new Status((code == CastStatusCodes.SUCCESS)
+                    ? CastStatusCodes.FAILED : code), reply.optString(KEY_ERROR, null));
+            return;
+        }
+        Object result = reply.opt(KEY_RESULT);
+        getLatency(call.mMethod).record(SystemClock.elapsedRealtime() - call.mStartTime);
+        complete(call, ((result == null) || (result == JSONObject.NULL)) ? null : result.toString(),
+                new Status(CastStatusCodes.SUCCESS), null);
+    }
+
+    /**
+     * @return The live histogram of the round-trip times of the successful calls of the method.
+     */
+    LatencyHistogram getLatency(String method) {
+        synchronized (mLatencies) {
+            LatencyHistogram latency = mLatencies.get(method);
+            if (latency == null) {
+                latency = new LatencyHistogram();
+                mLatencies.put(method, latency);
+            }
+            return latency;
+        }
+    }
+
+    int getPendingCallCount() {
+        synchronized (mCalls) {
+            return mCalls.size();
+        }
+    }
+
+    /**
+     * Fails all the outstanding calls, typically after a disconnection.
+     */
+    void cancelAll() {
+        Call[] calls;
+        synchronized (mCalls) {
+            calls = mCalls.values().toArray(new Call[mCalls.size()]);
+        }
+        Status status = new Status(CastStatusCodes.NETWORK_ERROR);
+        for (Call call : calls) {
+            complete(call, null, status, null);
+        }
+    }
+
+    private void complete(final Call call, final String result, final Status status,
+            final String error) {
+        synchronized (mCalls) {
+            if (mCalls.remove(call.mId) == null) {
+                return;
+            }
+        }
+        mHandler.removeCallbacks(call);
+        call.complete(result, status, error);
+        if (call.mCallback == null) {
+            return;
+        }
+        // Callbacks are always called on the main thread
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (status.isSuccess()) {
+                        call.mCallback.onResult(call.mMethod, result);
+                    } else {
+                        call.mCallback.onError(call.mMethod, status, error);
+                    }
+                } catch (Exception e) {
+                    LOGE(TAG, "Failed to inform " + call.mCallback, e);
+                }
+            }
+        });
+    }
+
+    /*
+     * The call is its own timeout task.
+     */
+    private class Call implements Future<String>, Runnable {
+
+        final String mId;
+        final String mMethod;
+        final RpcCallback mCallback;
+        long mStartTime;
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile Status mStatus;
+        private String mResult;
+        private String mError;
+
+        Call(String id, String method, RpcCallback callback) {
+            mId = id;
+            mMethod = method;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            LOGD(TAG, "Call " + mId + " to " + mMethod + " timed out");
+            RpcClient.this.complete(this, null, new Status(CastStatusCodes.TIMEOUT), null);
+        }
+
+        void complete(String result, Status status, String error) {
+            mResult = result;
+            mError = error;
+            mStatus = status;
+            mLatch.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (mCalls) {
+                if (mCalls.remove(mId) == null) {
+                    return false;
+                }
+            }
+            mHandler.removeCallbacks(this);
+            complete(null, new Status(CastStatusCodes.CANCELED), null);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            Status status = mStatus;
+            return (status != null) && (status.getStatusCode() == CastStatusCodes.CANCELED);
+        }
+
+        @Override
+        public boolean isDone() {
+            return mStatus != null;
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            mLatch.await();
+            return getResult();
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            if (!mLatch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private String getResult() throws ExecutionException {
+            if (mStatus.isSuccess()) {
+                return mResult;
+            }
+            throw new ExecutionException(new CastException("Call to " + mMethod
+                    + " failed with status " + mStatus.getStatusCode()
+                    + ((mError == null) ? "" : ": " + mError)));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.android.gms.common.api.Status;
+
+/**
+ * Result of an outgoing message, completed with the status returned by the Cast API, or with an
+ * error status if the message was dropped before being sent. Sends can't be cancelled.
+ */
+final class SendFuture implements Future<Status> {
+
+    interface Listener {
+
+        void onComplete(Status status);
+    }
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private volatile Status mStatus;
+    // Batched messages share their future, so it can have several listeners
+    private List<Listener> mListeners;
+
+    /**
+     * @return false if the future was already completed.
+     */
+    boolean complete(Status status) {
+        List<Listener> listeners;
+        synchronized (this) {
+            if (mStatus != null) {
+                return false;
+            }
+            mStatus = status;
+            listeners = mListeners;
+            mListeners = null;
+        }
+        mLatch.countDown();
+        if (listeners != null) {
+            for (Listener listener : listeners) {
+                listener.onComplete(status);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a listener called on the thread completing the future, or right away if it is already
+     * completed.
+     */
+    void addListener(Listener listener) {
+        synchronized (this) {
+            if (mStatus == null) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<Listener>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(mStatus);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mStatus != null;
+    }
+
+    @Override
+    public Status get() throws InterruptedException {
+        mLatch.await();
+        return mStatus;
+    }
+
+    @Override
+    public Status get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return mStatus;
+    }
+}
@@ -0,0 +1,232 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.media.MediaRouter;
+import android.support.v7.media.MediaRouter.RouteInfo;
+
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.sample.castcompanionlibrary.R;
+import com.google.sample.castcompanionlibrary.cast.BaseCastManager.ReconnectionStatus;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * State machine rejoining the session persisted by the last successful launch. It is driven by
+ * the events of the media router and of the cast manager, and only schedules a timeout:
+ *
+ * <pre>
+ * INACTIVE --start(), route not discovered yet--> STARTED
+ * INACTIVE --start(), route known--> IN_PROGRESS
+ * STARTED --onRouteAdded(), persisted route--> IN_PROGRESS
+ * IN_PROGRESS --onApplicationConnected(), route to select--> FINALIZE
+ * IN_PROGRESS --onApplicationConnected(), route already selected--> INACTIVE
+ * FINALIZE --onRouteSelected()--> INACTIVE
+ * any --timeout, cancel or failure--> INACTIVE
+ * </pre>
+ *
+ * While the recovery is IN_PROGRESS, the cast manager joins the persisted session instead of
+ * launching the application. This class must be used on the main thread.
+ */
+final class SessionRecovery {
+
+    private static final String TAG = LogUtils.makeLogTag(SessionRecovery.class);
+
+    private final BaseCastManager mCastManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private ReconnectionStatus mStatus = ReconnectionStatus.INACTIVE;
+    private ProgressDialog mDialog;
+    private final Runnable mTimeoutRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            if (mCastManager.isConnected()) {
+                // Only the route selection was pending
+                LOGD(TAG, "Session recovered, route selection still pending");
+                finish(ReconnectionStatus.INACTIVE);
+            } else {
+                LOGD(TAG, "Session recovery timed out");
+                fail();
+            }
+        }
+    };
+
+    SessionRecovery(BaseCastManager castManager) {
+        mCastManager = castManager;
+    }
+
+    ReconnectionStatus getStatus() {
+        return mStatus;
+    }
+
+    void setStatus(ReconnectionStatus status) {
+        mStatus = status;
+    }
+
+    /**
+     * @return true if the application has to join the persisted session rather than launching.
+     */
+    boolean isJoining() {
+        return mStatus == ReconnectionStatus.IN_PROGRESS;
+    }
+
+    /**
+     * Starts a recovery, unless there is nothing to recover or a recovery is already running.
+     */
+    void start(Context context, boolean showDialog, int timeoutInSeconds) {
+        if ((mStatus == ReconnectionStatus.STARTED) || (mStatus == ReconnectionStatus.IN_PROGRESS)
+                || !mCastManager.canConsiderSessionRecovery(context)) {
+            return;
+        }
+        mHandler.postDelayed(mTimeoutRunnable, timeoutInSeconds * 1000L);
+        if (showDialog) {
+            showDialog(context);
+        }
+        RouteInfo route = mCastManager.findPersistedRoute();
+        if (null == route) {
+            // The route has not been discovered yet, onRouteAdded() takes over if it is in time
+            mStatus = ReconnectionStatus.STARTED;
+        } else {
+            selectDevice(route);
+        }
+    }
+
+    void onRouteAdded(RouteInfo route) {
+        if ((mStatus == ReconnectionStatus.STARTED)
+                && route.getId().equals(mCastManager.mRouteRegistry.getPersistedRouteId())) {
+            LOGD(TAG, "onRouteAdded: Attempting to recover a session with info=" + route);
+            selectDevice(route);
+        }
+    }
+
+    /**
+     * @return true if the route was selected by the recovery, and must not be handled as a
+     *         selection by the user.
+     */
+    boolean onRouteSelected() {
+        if (mStatus != ReconnectionStatus.FINALIZE) {
+            return false;
+        }
+        mStatus = ReconnectionStatus.INACTIVE;
+        return true;
+    }
+
+    /**
+     * Completes the recovery once the application session is rejoined, selecting the persisted
+     * route so the cast button reflects the connection.
+     *
+     * @return false if the recovery was running but the persisted route is gone.
+     */
+    boolean onApplicationConnected() {
+        if (mStatus != ReconnectionStatus.IN_PROGRESS) {
+            return true;
+        }
+        RouteInfo route = mCastManager.findPersistedRoute();
+        if (null == route) {
+            finish(ReconnectionStatus.INACTIVE);
+            return false;
+        }
+        LOGD(TAG, "Found the correct route during reconnection attempt");
+        MediaRouter mediaRouter = mCastManager.mMediaRouter;
+        if (mediaRouter.getSelectedRoute().equals(route)) {
+            finish(ReconnectionStatus.INACTIVE);
+        } else {
+            // onRouteSelected() ends the recovery
+            finish(ReconnectionStatus.FINALIZE);
+            mediaRouter.selectRoute(route);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the failure ended the recovery.
+     */
+    boolean onApplicationConnectionFailed(int errorCode) {
+        if (mStatus != ReconnectionStatus.IN_PROGRESS) {
+            return false;
+        }
+        if (errorCode == CastStatusCodes.APPLICATION_NOT_RUNNING) {
+            // The session is over, there is nothing to rejoin
+            fail();
+        }
+        return true;
+    }
+
+    /**
+     * Called when the device can't be reached while rejoining.
+     */
+    void onConnectionLost() {
+        if (mStatus == ReconnectionStatus.IN_PROGRESS) {
+            fail();
+        }
+    }
+
+    /**
+     * Stops the recovery without touching the connection.
+     */
+    void cancel() {
+        if (mStatus != ReconnectionStatus.INACTIVE) {
+            LOGD(TAG, "Cancelling session recovery");
+        }
+        finish(ReconnectionStatus.INACTIVE);
+    }
+
+    /*
+     * Stops the recovery and drops the partially established connection, if any.
+     */
+    private void fail() {
+        boolean running = (mStatus != ReconnectionStatus.INACTIVE);
+        finish(ReconnectionStatus.INACTIVE);
+        if (running) {
+            mCastManager.onDeviceSelected(null);
+        }
+    }
+
+    private void finish(ReconnectionStatus status) {
+        mStatus = status;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (null != mDialog) {
+            mDialog.dismiss();
+            mDialog = null;
+        }
+        mCastManager.updateDiscovery();
+    }
+
+    private void selectDevice(RouteInfo route) {
+        mStatus = ReconnectionStatus.IN_PROGRESS;
+        CastDevice device = CastDevice.getFromBundle(route.getExtras());
+        if (null != device) {
+            LOGD(TAG, "Attempting to recover a session with device: " + device.getFriendlyName());
+            mCastManager.onDeviceSelected(device);
+        }
+    }
+
+    private void showDialog(Context context) {
+        DialogInterface.OnClickListener cancelListener = new DialogInterface.OnClickListener() {
+
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                fail();
+            }
+        };
+        mDialog = new ProgressDialog(context);
+        mDialog.setMessage(context.getString(R.string.session_reconnection_attempt));
+        mDialog.setIndeterminate(true);
+        mDialog.setCancelable(true);
+        mDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                fail();
+            }
+        });
+        mDialog.setButton(ProgressDialog.BUTTON_NEGATIVE,
+                context.getString(android.R.string.cancel), cancelListener);
+        mDialog.show();
+    }
+}
@@ -0,0 +1,310 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Mirrors a JSON state object per namespace to the receiver. Each update is numbered, and is sent
+ * either as a full snapshot or as a patch against the last version acknowledged by the receiver:
+ *
+ * <pre>
+ * {"__ccl":"state","version":7,"state":{"red":2,"blue":1}}
+ * {"__ccl":"state-patch","version":8,"base":7,"ops":[{"op":"replace","path":"/red","value":3}]}
+ * </pre>
+ *
+ * The operations follow JSON Patch (RFC 6902) and only use <code>add</code>,
+ * <code>remove</code> and <code>replace</code>. Arrays are replaced as a whole. The receiver
+ * acknowledges each version it applies, and asks for a snapshot when it can't apply a patch:
+ *
+ * <pre>
+ * {"__ccl":"state-ack","version":8}
+ * {"__ccl":"state-resync"}
+ * </pre>
+ *
+ * A snapshot is sent when no version was acknowledged yet, every <code>snapshotInterval</code>
+ * updates, and whenever the patch would not be shorter than the snapshot.
+ */
+final class StateSynchronizer {
+
+    interface Sender {
+
+        /**
+         * Sends a message of any length, chunking it if it doesn't fit in a single Cast message.
+         */
+        SendFuture send(String namespace, String message);
+    }
+
+    static final int DEFAULT_SNAPSHOT_INTERVAL = 50;
+    private static final String TAG = LogUtils.makeLogTag(StateSynchronizer.class);
+    // Bounds the memory used when the receiver stops acknowledging
+    private static final int MAX_PENDING_VERSIONS = 32;
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_BASE = "base";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_OPS = "ops";
+    private static final String KEY_OP = "op";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_VALUE = "value";
+    private static final String OP_ADD = "add";
+    private static final String OP_REMOVE = "remove";
+    private static final String OP_REPLACE = "replace";
+    private static final String TYPE_SNAPSHOT = "state";
+    private static final String TYPE_PATCH = "state-patch";
+    private static final String TYPE_ACK = "state-ack";
+    private static final String TYPE_RESYNC = "state-resync";
+    private static final String SNAPSHOT_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + TYPE_SNAPSHOT + "\"";
+    private static final String PATCH_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + TYPE_PATCH + "\"";
+    private static final String ACK_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + TYPE_ACK + "\"";
+    private static final String RESYNC_PREFIX =
+            "{\"" + MessageBatcher.KEY_TYPE + "\":\"" + TYPE_RESYNC + "\"";
+
+    private final Sender mSender;
+    private final Map<String, Channel> mChannels = new HashMap<String, Channel>();
+    private int mSnapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+    StateSynchronizer(Sender sender) {
+        mSender = sender;
+    }
+
+    synchronized void setSnapshotInterval(int updates) {
+        mSnapshotInterval = Math.max(1, updates);
+    }
+
+    /**
+     * Records a copy of the state and sends it to the receiver, as a patch if possible.
+     *
+     * @throws IllegalArgumentException If the state can't be serialized.
+     */
+    synchronized SendFuture update(String namespace, JSONObject state) {
+        String text = state.toString();
+        if (null == text) {
+            // Android's JSONObject returns null for NaN and infinite numbers
+            throw new IllegalArgumentException("state is not valid JSON");
+        }
+        JSONObject copy;
+        try {
+            copy = new JSONObject(text);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("state is not valid JSON", e);
+        }
+        Channel channel = mChannels.get(namespace);
+        if (null == channel) {
+            channel = new Channel();
+            mChannels.put(namespace, channel);
+        } else if (jsonEquals(channel.mState, copy)) {
+            SendFuture future = new SendFuture();
+            future.complete(new Status(CastStatusCodes.SUCCESS));
+            return future;
+        }
+        channel.mState = copy;
+        channel.mVersion++;
+        String message = null;
+        if ((null != channel.mAckedState) && (channel.mUpdatesSinceSnapshot < mSnapshotInterval)) {
+            JSONArray ops = new JSONArray();
+            try {
+                diff(channel.mAckedState, copy, "", ops);
+                message = new StringBuilder(PATCH_PREFIX).append(",\"").append(KEY_VERSION)
+                        .append("\":").append(channel.mVersion).append(",\"").append(KEY_BASE)
+                        .append("\":").append(channel.mAckedVersion).append(",\"")
+                        .append(KEY_OPS).append("\":").append(ops.toString()).append('}')
+                        .toString();
+            } catch (JSONException e) {
+                LOGD(TAG, "update(): Failed to compute the patch for " + namespace);
+            }
+        }
+        if ((null == message) || (message.length() >= text.length() + SNAPSHOT_PREFIX.length())) {
+            message = buildSnapshot(channel.mVersion, text);
+            channel.mUpdatesSinceSnapshot = 0;
+        } else {
+            channel.mUpdatesSinceSnapshot++;
+        }
+        channel.addPending(copy);
+        return mSender.send(namespace, message);
+    }
+
+    synchronized void remove(String namespace) {
+        mChannels.remove(namespace);
+    }
+
+    /**
+     * Sends a snapshot of all the states, forgetting what the receiver acknowledged.
+     */
+    synchronized void resyncAll() {
+        for (Map.Entry<String, Channel> entry : mChannels.entrySet()) {
+            resync(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Forgets what the receiver acknowledged, without sending anything. The states are kept.
+     */
+    synchronized void reset() {
+        for (Channel channel : mChannels.values()) {
+            channel.mAckedState = null;
+            channel.mPending.clear();
+        }
+    }
+
+    static boolean isControlMessage(String message) {
+        return (message != null)
+                && (message.startsWith(ACK_PREFIX) || message.startsWith(RESYNC_PREFIX));
+    }
+
+    synchronized void onControlMessageReceived(String namespace, String message) {
+        Channel channel = mChannels.get(namespace);
+        if (null == channel) {
+            return;
+        }
+        if (message.startsWith(RESYNC_PREFIX)) {
+            LOGD(TAG, "onControlMessageReceived(): Resync requested for " + namespace);
+            resync(namespace, channel);
+            return;
+        }
+        int version;
+        try {
+            version = new JSONObject(message).getInt(KEY_VERSION);
+        } catch (JSONException e) {
+            LOGD(TAG, "onControlMessageReceived(): Ignoring malformed ack for " + namespace);
+            return;
+        }
+        JSONObject state = channel.mPending.get(version);
+        if (null == state) {
+            // Stale, or older than the last resync
+            return;
+        }
+        channel.mAckedState = state;
+        channel.mAckedVersion = version;
+        Iterator<Integer> iterator = channel.mPending.keySet().iterator();
+        while (iterator.hasNext() && (iterator.next() <= version)) {
+            iterator.remove();
+        }
+    }
+
+    private void resync(String namespace, Channel channel) {
+        channel.mAckedState = null;
+        channel.mPending.clear();
+        channel.mVersion++;
+        channel.mUpdatesSinceSnapshot = 0;
+        channel.addPending(channel.mState);
+        mSender.send(namespace, buildSnapshot(channel.mVersion, channel.mState.toString()));
+    }
+
+    private static String buildSnapshot(int version, String state) {
+        return new StringBuilder(state.length() + SNAPSHOT_PREFIX.length() + 32)
+                .append(SNAPSHOT_PREFIX).append(",\"").append(KEY_VERSION).append("\":")
+                .append(version).append(",\"").append(KEY_STATE).append("\":").append(state)
+                .append('}').toString();
+    }
+
+    private static void diff(JSONObject from, JSONObject to, String path, JSONArray ops)
+            throws JSONException {
+        Iterator<?> keys = from.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (!to.has(key)) {
+                ops.put(new JSONObject().put(KEY_OP, OP_REMOVE).put(KEY_PATH,
+                        path + '/' + escape(key)));
+            }
+        }
+        keys = to.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            String childPath = path + '/' + escape(key);
+            Object value = to.get(key);
+            if (!from.has(key)) {
+                ops.put(new JSONObject().put(KEY_OP, OP_ADD).put(KEY_PATH, childPath)
+                        .put(KEY_VALUE, value));
+                continue;
+            }
+            Object oldValue = from.get(key);
+            if ((oldValue instanceof JSONObject) && (value instanceof JSONObject)) {
+                diff((JSONObject) oldValue, (JSONObject) value, childPath, ops);
+            } else if (!jsonEquals(oldValue, value)) {
+                ops.put(new JSONObject().put(KEY_OP, OP_REPLACE).put(KEY_PATH, childPath)
+                        .put(KEY_VALUE, value));
+            }
+        }
+    }
+
+    /*
+     * Escapes a key as a JSON Pointer (RFC 6901) reference token.
+     */
+    private static String escape(String key) {
+        if ((key.indexOf('~') < 0) && (key.indexOf('/') < 0)) {
+            return key;
+        }
+        return key.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static boolean jsonEquals(Object a, Object b) {
+        if ((a instanceof JSONObject) && (b instanceof JSONObject)) {
+            JSONObject objectA = (JSONObject) a;
+            JSONObject objectB = (JSONObject) b;
+            if (objectA.length() != objectB.length()) {
+                return false;
+            }
+            Iterator<?> keys = objectA.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                if (!objectB.has(key) || !jsonEquals(objectA.opt(key), objectB.opt(key))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if ((a instanceof JSONArray) && (b instanceof JSONArray)) {
+            JSONArray arrayA = (JSONArray) a;
+            JSONArray arrayB = (JSONArray) b;
+            if (arrayA.length() != arrayB.length()) {
+                return false;
+            }
+            for (int i = 0; i < arrayA.length(); i++) {
+                if (!jsonEquals(arrayA.opt(i), arrayB.opt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if ((a instanceof Number) && (b instanceof Number)) {
+            // The parser may pick different types for the same number
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        }
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    private static class Channel {
+
+        JSONObject mState;
+        int mVersion;
+        JSONObject mAckedState;
+        int mAckedVersion;
+        int mUpdatesSinceSnapshot;
+        // Version -> state sent but not acknowledged yet, in increasing versions
+        final LinkedHashMap<Integer, JSONObject> mPending =
+                new LinkedHashMap<Integer, JSONObject>();
+
+        void addPending(JSONObject state) {
+            mPending.put(mVersion, state);
+            if (mPending.size() > MAX_PENDING_VERSIONS) {
+                Iterator<Integer> iterator = mPending.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGE;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.google.android.gms.cast.CastDevice;
+import com.google.sample.castcompanionlibrary.cast.callbacks.MessageDecoder;
+import com.google.sample.castcompanionlibrary.cast.callbacks.TypedMessageListener;
+import com.google.sample.castcompanionlibrary.utils.ListenerRegistry;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
+/**
+ * Decodes each incoming message once with the {@link MessageDecoder} registered for its
+ * namespace and type, and shares the result with all the listeners of this type.
+ * <p/>
+ * The type of a message is the string value of its type field. It is found by skipping over the
+ * values which precede it, which is cheap when the type comes first. Messages of namespaces
+ * without typed routes are not read at all.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+final class TypedMessageRouter {
+
+    private static final String TAG = LogUtils.makeLogTag(TypedMessageRouter.class);
+
+    private volatile String mTypeField;
+    // Namespace -> type -> route. The null type matches the messages without a specific route.
+    private final Map<String, Map<String, Route<?>>> mRoutes =
+            new HashMap<String, Map<String, Route<?>>>();
+
+    TypedMessageRouter(String typeField) {
+        mTypeField = typeField;
+    }
+
+    void setTypeField(String typeField) {
+        mTypeField = typeField;
+    }
+
+    synchronized <T> void setDecoder(String namespace, String type, MessageDecoder<T> decoder,
+            int dispatchThread) {
+        Map<String, Route<?>> routes = mRoutes.get(namespace);
+        if (routes == null) {
+            routes = new HashMap<String, Route<?>>();
+            mRoutes.put(namespace, routes);
+        }
+        if (decoder == null) {
+            routes.remove(type);
+        } else {
+            // Listeners are kept when the decoder is replaced
+            Route<?> previous = routes.get(type);
+            routes.put(type, new Route<T>(decoder, dispatchThread,
+                    (previous == null) ? newListenerRegistry() : previous.mListeners));
+        }
+    }
+
+    /**
+     * @return false if there is no decoder for this namespace and type.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> boolean addListener(String namespace, String type,
+            TypedMessageListener<T> listener) {
+        Route<T> route = (Route<T>) getRoute(namespace, type);
+        if (route == null) {
+            return false;
+        }
+        route.mListeners.add(listener);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized <T> void removeListener(String namespace, String type,
+            TypedMessageListener<T> listener) {
+        Route<T> route = (Route<T>) getRoute(namespace, type);
+        if (route != null) {
+            route.mListeners.remove(listener);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static ListenerRegistry<TypedMessageListener> newListenerRegistry() {
+        return new ListenerRegistry<TypedMessageListener>(TypedMessageListener.class);
+    }
+
+    private Route<?> getRoute(String namespace, String type) {
+        Map<String, Route<?>> routes = mRoutes.get(namespace);
+        return (routes == null) ? null : routes.get(type);
+    }
+
+    /**
+     * @return The delivery of the message to run on the thread of its route, or null if the
+     *         message has no route or no listener.
+     */
+    Delivery<?> route(CastDevice castDevice, String namespace, String message) {
+        boolean hasTypedRoutes;
+        synchronized (this) {
+            Map<String, Route<?>> routes = mRoutes.get(namespace);
+            if ((routes == null) || routes.isEmpty()) {
+                return null;
+            }
+            hasTypedRoutes = (routes.size() > 1) || !routes.containsKey(null);
+        }
+        // Read outside of the lock, this is the only part depending on the message size
+        String type = hasTypedRoutes ? readType(message, mTypeField) : null;
+        Route<?> route;
+        synchronized (this) {
+            route = (type == null) ? null : getRoute(namespace, type);
+            if (route == null) {
+                route = getRoute(namespace, null);
+            }
+        }
+        if ((route == null) || route.mListeners.isEmpty()) {
+            return null;
+        }
+        return route.newDelivery(castDevice, namespace, message);
+    }
+
+    /**
+     * @return The string value of the type field of the message, or null if it has none.
+     */
+    static String readType(String message, String typeField) {
+        JsonReader reader = new JsonReader(new StringReader(message));
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (typeField.equals(reader.nextName())) {
+                    return (reader.peek() == JsonToken.STRING) ? reader.nextString() : null;
+                }
+                reader.skipValue();
+            }
+        } catch (IOException e) {
+            // Malformed message
+        } catch (IllegalStateException e) {
+            // Malformed message
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        return null;
+    }
+
+    private static class Route<T> {
+
+        final MessageDecoder<T> mDecoder;
+        final int mDispatchThread;
+        @SuppressWarnings("rawtypes")
+        final ListenerRegistry<TypedMessageListener> mListeners;
+
+        @SuppressWarnings("rawtypes")
+        Route(MessageDecoder<T> decoder, int dispatchThread,
+                ListenerRegistry<TypedMessageListener> listeners) {
+            mDecoder = decoder;
+            mDispatchThread = dispatchThread;
+            mListeners = listeners;
+        }
+
+        Delivery<T> newDelivery(CastDevice castDevice, String namespace, String message) {
+            return new Delivery<T>(this, castDevice, namespace, message);
+        }
+    }
+
+    static class Delivery<T> implements Runnable {
+
+        private final Route<T> mRoute;
+        private final CastDevice mCastDevice;
+        private final String mNamespace;
+        private final String mMessage;
+
+        Delivery(Route<T> route, CastDevice castDevice, String namespace, String message) {
+            mRoute = route;
+            mCastDevice = castDevice;
+            mNamespace = namespace;
+            mMessage = message;
+        }
+
+        int getDispatchThread() {
+            return mRoute.mDispatchThread;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            T decoded = null;
+            JsonReader reader = new JsonReader(new StringReader(mMessage));
+            try {
+                decoded = mRoute.mDecoder.decode(reader);
+            } catch (Exception e) {
+                LOGE(TAG, "Failed to decode message of namespace " + mNamespace, e);
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            if (decoded == null) {
+                return;
+            }
+            for (TypedMessageListener<T> listener : mRoute.mListeners.snapshot()) {
+                try {
+                    listener.onMessageReceived(mCastDevice, mNamespace, decoded);
+                } catch (Exception e) {
+                    LOGE(TAG, "onMessageReceived(): Failed to inform " + listener, e);
+                }
+            }
+        }
+    }
+}
@@ -20,7 +20,6 @@ import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGD;
 import static com.google.sample.castcompanionlibrary.utils.LogUtils.LOGE;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.json.JSONObject;
@@ -31,6 +30,7 @@ import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.AudioManager;
@@ -38,9 +38,12 @@ import android.media.MediaMetadataRetriever;
 import android.media.RemoteControlClient;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.app.MediaRouteDialogFactory;
 import android.support.v7.media.MediaRouter.RouteInfo;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 
 import com.google.android.gms.cast.ApplicationMetadata;
 import com.google.android.gms.cast.Cast;
@@ -68,10 +71,13 @@ import com.google.sample.castcompanionlibrary.cast.exceptions.OnFailedListener;
 import com.google.sample.castcompanionlibrary.cast.exceptions.TransientNetworkDisconnectionException;
 import com.google.sample.castcompanionlibrary.cast.imageloader.DefaultImageLoader;
 import com.google.sample.castcompanionlibrary.cast.imageloader.ImageLoader;
+import com.google.sample.castcompanionlibrary.cast.imageloader.ReusableImageLoader;
+import com.google.sample.castcompanionlibrary.cast.imageloader.SizedImageLoader;
 import com.google.sample.castcompanionlibrary.cast.player.VideoCastControllerActivity;
 import com.google.sample.castcompanionlibrary.notification.VideoCastNotificationService;
 import com.google.sample.castcompanionlibrary.remotecontrol.RemoteControlClientCompat;
 import com.google.sample.castcompanionlibrary.remotecontrol.VideoIntentReceiver;
+import com.google.sample.castcompanionlibrary.utils.ListenerRegistry;
 import com.google.sample.castcompanionlibrary.utils.LogUtils;
 import com.google.sample.castcompanionlibrary.utils.Utils;
 import com.google.sample.castcompanionlibrary.widgets.IMiniController;
@@ -127,9 +133,12 @@ public class VideoCastManager extends BaseCastManager
     }
 
     static final String TAG = LogUtils.makeLogTag(VideoCastManager.class);
+    // One frame
+    private static final long STATUS_COALESCING_DELAY_MS = 16L;
     private static VideoCastManager sInstance;
     private final Class<? extends Activity> mTargetActivity;
-    final List<IMiniController> mMiniControllers;
+    // MiniControllers are views: don't leak them if they are not removed
+    final ListenerRegistry<IMiniController> mMiniControllers;
     Bitmap mMiniControllersIcon;
     ImageLoader.Request mMiniControllersIconRequest;
     private final AudioManager mAudioManager;
@@ -140,11 +149,40 @@ public class VideoCastManager extends BaseCastManager
     private VolumeType mVolumeType = VolumeType.DEVICE;
     private int mState = MediaStatus.PLAYER_STATE_IDLE;
     private int mIdleReason;
+    private final Handler mStatusHandler = new Handler(Looper.getMainLooper());
+    boolean mStatusDispatchPending;
+    // The notification service is started once the first status arrived
+    private boolean mNotificationServicePending;
+    // Last status dispatched to the consumers
+    private MediaStatusSnapshot mLastStatus;
     private Bitmap mVideoArtBitmap;
     private final ComponentName mMediaButtonReceiverComponent;
     private final String mDataNamespace;
     private Cast.MessageReceivedCallback mDataChannel;
-    final List<IVideoCastConsumer> mVideoConsumers;
+    private final MessageBatcher mDataMessageBatcher = new MessageBatcher(new MessageBatcher.Sink() {
+
+        @Override
+        public void send(String namespace, String message, SendFuture future) {
+            sendDataMessageNow(message);
+        }
+    });
+    private final Outbox.Sender mOutboxSender = new Outbox.Sender() {
+
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            sendDataMessageNow(message);
+        }
+    };
+    private final ResultCallback<Status> mDataMessageResultCallback = new ResultCallback<Status>() {
+
+        @Override
+        public void onResult(Status result) {
+            if (!result.isSuccess()) {
+                onMessageSendFailed(result.getStatusCode());
+            }
+        }
+    };
+    final ListenerRegistry<IVideoCastConsumer> mVideoConsumers;
     private final ImageLoader mImageLoader;
 
     /**
@@ -224,20 +262,20 @@ public class VideoCastManager extends BaseCastManager
             String dataNamespace, ImageLoader imageLoader) {
         super(context, applicationId);
         LOGD(TAG, "VideoCastManager is instantiated");
-        mVideoConsumers = new ArrayList<IVideoCastConsumer>();
+        mVideoConsumers = new ListenerRegistry<IVideoCastConsumer>(IVideoCastConsumer.class);
         mDataNamespace = dataNamespace;
         if (null == targetActivity) {
             targetActivity = VideoCastControllerActivity.class;
         }
         mTargetActivity = targetActivity;
 
-        mMiniControllers = new ArrayList<IMiniController>();
+        mMiniControllers = new ListenerRegistry<IMiniController>(IMiniController.class, true);
 
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         mMediaButtonReceiverComponent = new ComponentName(context, VideoIntentReceiver.class);
 
         if (null == imageLoader) {
-        	imageLoader = new DefaultImageLoader();
+        	imageLoader = new DefaultImageLoader(context);
         }
         mImageLoader = imageLoader;
     }
@@ -246,7 +284,27 @@ public class VideoCastManager extends BaseCastManager
     	return mImageLoader;
     }
 
+    /**
+     * Loads an image at its original size. Prefer
+     * {@link #loadImage(String, int, int, Bitmap.Config, ImageLoader.Callbacks, ImageLoader.Request)}
+     * when the display size is known.
+     */
     public ImageLoader.Request loadImage(String url, ImageLoader.Callbacks callbacks, ImageLoader.Request previousRequest) {
+    	return loadImage(url, 0, 0, null, callbacks, previousRequest);
+    }
+
+    /**
+     * Loads an image downscaled to cover the specified size. If the image loader is not a
+     * {@link SizedImageLoader}, the image is loaded at its original size.
+     *
+     * @param width Target width in pixels, or 0 if the width is not constrained.
+     * @param height Target height in pixels, or 0 if the height is not constrained.
+     * @param config Preferred bitmap configuration, or null to use the default one.
+     * @param previousRequest The previous request made by the caller, which will be reused if it
+     * is for the same url, or cancelled otherwise.
+     */
+    public ImageLoader.Request loadImage(String url, int width, int height, Bitmap.Config config,
+            ImageLoader.Callbacks callbacks, ImageLoader.Request previousRequest) {
     	if (TextUtils.isEmpty(url)) {
 			cancelImageRequest(previousRequest);
 			callbacks.onResponse(null);
@@ -260,6 +318,9 @@ public class VideoCastManager extends BaseCastManager
     			mImageLoader.cancelRequest(previousRequest);
     		}
     	}
+    	if (mImageLoader instanceof SizedImageLoader) {
+    		return ((SizedImageLoader) mImageLoader).load(url, width, height, config, callbacks);
+    	}
     	return mImageLoader.load(url, callbacks);
     }
 
@@ -269,6 +330,17 @@ public class VideoCastManager extends BaseCastManager
     	}
     }
 
+    /**
+     * Signals that a bitmap delivered by a request of this manager is not displayed anymore, so
+     * the image loader may reuse its memory. Does nothing if the loader is not a
+     * {@link ReusableImageLoader}.
+     */
+    public void releaseImage(Bitmap bitmap) {
+    	if ((bitmap != null) && (mImageLoader instanceof ReusableImageLoader)) {
+    		((ReusableImageLoader) mImageLoader).releaseBitmap(bitmap);
+    	}
+    }
+
     /*============================================================================================*/
     /*========== MiniControllers managemen =======================================================*/
     /*============================================================================================*/
@@ -292,7 +364,7 @@ public class VideoCastManager extends BaseCastManager
     private void updateMiniControllers(MediaInfo mediaInfo) {
         if (!mMiniControllers.isEmpty()) {
         	loadMiniControllersIcon(mediaInfo);
-            for (IMiniController controller : mMiniControllers) {
+            for (IMiniController controller : mMiniControllers.snapshot()) {
                 try {
                     updateMiniController(controller, mediaInfo);
                 } catch (Exception e) {/* silent failure */
@@ -306,7 +378,7 @@ public class VideoCastManager extends BaseCastManager
      */
     private void updateMiniControllersPlaybackStatus() {
     	if (!mMiniControllers.isEmpty()) {
-            for (IMiniController controller : mMiniControllers) {
+            for (IMiniController controller : mMiniControllers.snapshot()) {
                 try {
                 	controller.setPlaybackStatus(mState, mIdleReason);
                 } catch (Exception e) {/* silent failure */
@@ -323,10 +395,13 @@ public class VideoCastManager extends BaseCastManager
 				// Retry next time
 				mMiniControllersIconRequest = null;
 			}
+			Bitmap previousIcon = mMiniControllersIcon;
 			mMiniControllersIcon = bitmap;
-            for (IMiniController controller : mMiniControllers) {
+            for (IMiniController controller : mMiniControllers.snapshot()) {
                 controller.setIcon(bitmap);
             }
+            // No longer displayed by any MiniController
+            releaseImage(previousIcon);
 		}
     };
 
@@ -339,7 +414,10 @@ public class VideoCastManager extends BaseCastManager
         if (!mm.getImages().isEmpty()) {
         	url = mm.getImages().get(0).getUrl().toString();
         }
-        mMiniControllersIconRequest = loadImage(url, mMiniControllerImageLoaderCallbacks, mMiniControllersIconRequest);
+        Resources res = mContext.getResources();
+        mMiniControllersIconRequest = loadImage(url, res.getDimensionPixelSize(R.dimen.mini_controller_icon_width),
+                res.getDimensionPixelSize(R.dimen.mini_controller_icon_height), Bitmap.Config.RGB_565,
+                mMiniControllerImageLoaderCallbacks, mMiniControllersIconRequest);
     }
 
     /*
@@ -385,7 +463,7 @@ public class VideoCastManager extends BaseCastManager
      */
     public void updateMiniControllersVisibility(boolean visible) {
         if (!mMiniControllers.isEmpty()) {
-	        for (IMiniController controller : mMiniControllers) {
+	        for (IMiniController controller : mMiniControllers.snapshot()) {
 	            controller.setVisibility(visible);
 	        }
         }
@@ -803,7 +881,19 @@ public class VideoCastManager extends BaseCastManager
         return null != mContext.startService(service);
     }
 
+    /*
+     * Starts the notification service deferred by onApplicationConnected(), once the first status
+     * arrived or the status request failed.
+     */
+    private void startPendingNotificationService() {
+        if (mNotificationServicePending) {
+            mNotificationServicePending = false;
+            startNotificationService();
+        }
+    }
+
     private void stopNotificationService() {
+        mNotificationServicePending = false;
         if (!isFeatureEnabled(FEATURE_NOTIFICATION)) {
             return;
         }
@@ -819,7 +909,7 @@ public class VideoCastManager extends BaseCastManager
     void onApplicationDisconnected(int errorCode) {
         LOGD(TAG, "onApplicationDisconnected() reached with error code: " + errorCode);
         removeRemoteControlClient();
-        for (IVideoCastConsumer consumer : mVideoConsumers) {
+        for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
             try {
                 consumer.onApplicationDisconnected(errorCode);
             } catch (Exception e) {
@@ -841,7 +931,7 @@ public class VideoCastManager extends BaseCastManager
             appStatus = Cast.CastApi.getApplicationStatus(mApiClient);
             LOGD(TAG, "onApplicationStatusChanged() reached: "
                     + Cast.CastApi.getApplicationStatus(mApiClient));
-            for (IVideoCastConsumer consumer : mVideoConsumers) {
+            for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
                 try {
                     consumer.onApplicationStatusChanged(appStatus);
                 } catch (Exception e) {
@@ -858,7 +948,14 @@ public class VideoCastManager extends BaseCastManager
         try {
             double volume = getVolume();
             boolean isMute = isMute();
-            for (IVideoCastConsumer consumer : mVideoConsumers) {
+            if (null != mLastStatus) {
+                if (!mLastStatus.isVolumeDifferent(volume) && (mLastStatus.isMute == isMute)) {
+                    // Already dispatched along with the media status
+                    return;
+                }
+                mLastStatus = mLastStatus.withVolume(volume, isMute);
+            }
+            for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
                 try {
                     consumer.onVolumeChanged(volume, isMute);
                 } catch (Exception e) {
@@ -874,45 +971,46 @@ public class VideoCastManager extends BaseCastManager
     void onApplicationConnected(ApplicationMetadata appMetadata,
             String applicationStatus, String sessionId, boolean wasLaunched) {
         LOGD(TAG, "onApplicationConnected() reached with sessionId: " + sessionId
-                + ", and mReconnectionStatus=" + mReconnectionStatus);
-
-        if (mReconnectionStatus == ReconnectionStatus.IN_PROGRESS) {
-            // we have tried to reconnect and successfully launched the app, so
-            // it is time to select the route and make the cast icon happy :-)
-            List<RouteInfo> routes = mMediaRouter.getRoutes();
-            if (null != routes) {
-                String routeId = Utils.getStringFromPreference(mContext, PREFS_KEY_ROUTE_ID);
-                for (RouteInfo routeInfo : routes) {
-                    if (routeId.equals(routeInfo.getId())) {
-                        // found the right route
-                        LOGD(TAG, "Found the correct route during reconnection attempt");
-                        mReconnectionStatus = ReconnectionStatus.FINALIZE;
-                        mMediaRouter.selectRoute(routeInfo);
-                        break;
-                    }
-                }
-            }
+                + ", and reconnection status=" + mSessionRecovery.getStatus());
+        mConnectionTimer.mark(ConnectionTiming.PHASE_APPLICATION_CONNECTED);
+
+        // If the session was recovered, this selects its route and makes the cast icon happy
+        if (!mSessionRecovery.onApplicationConnected()) {
+            // we were hoping to have the route that we wanted, but we
+            // didn't so we deselect the device
+            onDeviceSelected(null);
+            return;
         }
-        startNotificationService();
         try {
-            attachDataChannel();
-            attachMediaChannel();
+            // The media channel and the status request are on the path to the first status, the
+            // rest is done once the request is on its way
             mSessionId = sessionId;
-            // saving device for future retrieval; we only save the last session info
-            Utils.saveStringToPreference(mContext, PREFS_KEY_SESSION_ID, mSessionId);
+            attachMediaChannel();
+            mConnectionTimer.mark(ConnectionTiming.PHASE_CHANNEL_ATTACHED);
             mRemoteMediaPlayer.requestStatus(mApiClient).
                     setResultCallback(new ResultCallback<RemoteMediaPlayer.MediaChannelResult>() {
 
                         @Override
                         public void onResult(MediaChannelResult result) {
                             if (!result.getStatus().isSuccess()) {
+                                mConnectionTimer.abort();
                                 onFailed(R.string.failed_status_request,
                                         result.getStatus().getStatusCode());
+                            } else {
+                                mConnectionTimer.finish(ConnectionTiming.PHASE_FIRST_STATUS,
+                                        mSessionId);
                             }
-
+                            startPendingNotificationService();
                         }
                     });
-            for (IVideoCastConsumer consumer : mVideoConsumers) {
+            attachDataChannel();
+            // saving device for future retrieval; we only save the last session info. The write
+            // to disk is asynchronous.
+            Utils.saveStringToPreference(mContext, PREFS_KEY_SESSION_ID, mSessionId);
+            // Starting a service is slow and competes with the status on the main thread, so it
+            // waits for the first status
+            mNotificationServicePending = true;
+            for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
                 try {
                     consumer.onApplicationConnected(appMetadata, mSessionId, wasLaunched);
                 } catch (Exception e) {
@@ -931,12 +1029,22 @@ public class VideoCastManager extends BaseCastManager
 
     /*
      * (non-Javadoc)
-     * @see com.google.sample.castcompanionlibrary.cast.BaseCastManager# onConnectivityRecovered()
+     * @see com.google.sample.castcompanionlibrary.cast.BaseCastManager#onReattachChannels()
      */
     @Override
-    public void onConnectivityRecovered() {
+    void onReattachChannels() {
         reattachMediaChannel();
         reattachDataChannel();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.google.sample.castcompanionlibrary.cast.BaseCastManager# onConnectivityRecovered()
+     */
+    @Override
+    public void onConnectivityRecovered() {
+        // Buffered messages go first, before the consumers send new ones
+        mOutbox.replay(mOutboxSender);
         super.onConnectivityRecovered();
     }
 
@@ -946,7 +1054,7 @@ public class VideoCastManager extends BaseCastManager
      */
     @Override
     public void onApplicationStopFailed(int errorCode) {
-        for (IVideoCastConsumer consumer : mVideoConsumers) {
+        for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
             try {
                 consumer.onApplicationStopFailed(errorCode);
             } catch (Exception e) {
@@ -958,17 +1066,9 @@ public class VideoCastManager extends BaseCastManager
     @Override
     public void onApplicationConnectionFailed(int errorCode) {
         LOGD(TAG, "onApplicationConnectionFailed() reached with errorCode: " + errorCode);
-        if (mReconnectionStatus == ReconnectionStatus.IN_PROGRESS) {
-            if (errorCode == CastStatusCodes.APPLICATION_NOT_RUNNING) {
-                // while trying to re-establish session, we
-                // found out that the app is not running so we need
-                // to disconnect
-                mReconnectionStatus = ReconnectionStatus.INACTIVE;
-                onDeviceSelected(null);
-            }
-        } else {
+        if (!mSessionRecovery.onApplicationConnectionFailed(errorCode)) {
             boolean showError = false;
-            for (IVideoCastConsumer consumer : mVideoConsumers) {
+            for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
                 try {
                     showError = showError || consumer.onApplicationConnectionFailed(errorCode);
                 } catch (Exception e) {
@@ -1391,11 +1491,12 @@ public class VideoCastManager extends BaseCastManager
 
             @Override
             public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
-                for (IVideoCastConsumer consumer : mVideoConsumers) {
-                    try {
-                        consumer.onDataMessageReceived(message);
-                    } catch (Exception e) {
-                        LOGE(TAG, "onMessageReceived(): Failed to inform " + consumer, e);
+                String[] messages = MessageBatcher.unpack(message);
+                if (null == messages) {
+                    onDataMessageReceived(message);
+                } else {
+                    for (String unpacked : messages) {
+                        onDataMessageReceived(unpacked);
                     }
                 }
             }
@@ -1421,8 +1522,18 @@ public class VideoCastManager extends BaseCastManager
         }
     }
 
+    private void onDataMessageReceived(String message) {
+        for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
+            try {
+                consumer.onDataMessageReceived(message);
+            } catch (Exception e) {
+                LOGE(TAG, "onMessageReceived(): Failed to inform " + consumer, e);
+            }
+        }
+    }
+
     void onMessageSendFailed(int errorCode) {
-        for (IVideoCastConsumer consumer : mVideoConsumers) {
+        for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
             try {
                 consumer.onDataMessageSendFailed(errorCode);
             } catch (Exception e) {
@@ -1447,20 +1558,76 @@ public class VideoCastManager extends BaseCastManager
      */
     public void sendDataMessage(String message) throws TransientNetworkDisconnectionException,
             NoConnectionException {
+        sendDataMessage(message, null);
+    }
+
+    /**
+     * Sends the <code>message</code> on the data channel for the namespace that was provided
+     * during the initialization of this class. If batching is enabled, a pending message with the
+     * same <code>coalescingKey</code> is replaced by this one.
+     *
+     * @param message
+     * @param coalescingKey Key identifying messages which supersede each other, or null
+     * @throws IllegalStateException If the namespace is empty or null
+     * @throws NoConnectionException If no connectivity to the device exists
+     * @throws TransientNetworkDisconnectionException If framework is still trying to recover from
+     * a possibly transient loss of network
+     * @see #setDataMessageBatching(long, int)
+     */
+    public void sendDataMessage(String message, String coalescingKey)
+            throws TransientNetworkDisconnectionException, NoConnectionException {
         if (TextUtils.isEmpty(mDataNamespace)) {
             throw new IllegalStateException("No Data Namespace is configured");
         }
-        checkConnectivity();
-        Cast.CastApi.sendMessage(mApiClient, mDataNamespace, message)
-                .setResultCallback(new ResultCallback<Status>() {
+        if (!shouldBufferMessages()) {
+            checkConnectivity();
+        }
+        if (null == mDataMessageBatcher.add(mDataNamespace, message, coalescingKey)) {
+            sendDataMessageNow(message);
+        }
+    }
 
-                    @Override
-                    public void onResult(Status result) {
-                        if (!result.isSuccess()) {
-                            VideoCastManager.this.onMessageSendFailed(result.getStatusCode());
-                        }
-                    }
-                });
+    private void sendDataMessageNow(String message) {
+        if (shouldBufferMessages()) {
+            mOutbox.add(mDataNamespace, message, mDataMessageResultCallback);
+            return;
+        }
+        if (!isConnected()) {
+            LOGD(TAG, "sendDataMessageNow(): Not connected, dropping message");
+            onMessageSendFailed(CastStatusCodes.NETWORK_ERROR);
+            return;
+        }
+        try {
+            Cast.CastApi.sendMessage(mApiClient, mDataNamespace, message)
+                    .setResultCallback(mDataMessageResultCallback);
+        } catch (IllegalStateException e) {
+            LOGE(TAG, "sendDataMessageNow(): Failed to send message", e);
+            onMessageSendFailed(CastStatusCodes.NETWORK_ERROR);
+        }
+    }
+
+    /**
+     * Enables batching on the data channel: messages are collected during
+     * <code>windowMs</code> milliseconds, or until they reach <code>maxBytes</code>, and sent as
+     * a single envelope. The receiver has to unpack envelopes of the following format, each
+     * message being a JSON string:
+     *
+     * <pre>
+     * {"__ccl":"batch","messages":["message 1","message 2"]}
+     * </pre>
+     *
+     * Envelopes received from the receiver are unpacked the same way. Batching is disabled by
+     * default.
+     *
+     * @param windowMs Maximum delay before a message is sent, or 0 to disable batching
+     * @param maxBytes Approximate maximum size of an envelope
+     * @throws IllegalStateException If the namespace is empty or null
+     */
+    public void setDataMessageBatching(long windowMs, int maxBytes) {
+        if (TextUtils.isEmpty(mDataNamespace)) {
+            throw new IllegalStateException("No Data Namespace is configured");
+        }
+        mDataMessageBatcher.setPolicy(mDataNamespace, windowMs, maxBytes);
     }
 
     /**
@@ -1501,65 +1668,116 @@ public class VideoCastManager extends BaseCastManager
             LOGD(TAG, "mApiClient or mRemoteMediaPlayer is null, so will not proceed");
             return;
         }
+        mConnectionTimer.finish(ConnectionTiming.PHASE_FIRST_STATUS, mSessionId);
+        startPendingNotificationService();
         mState = mRemoteMediaPlayer.getMediaStatus().getPlayerState();
         mIdleReason = mRemoteMediaPlayer.getMediaStatus().getIdleReason();
 
+        // Bursts of updates are coalesced and only dispatched once per frame
+        if (!mStatusDispatchPending) {
+            mStatusDispatchPending = true;
+            mStatusHandler.postDelayed(mStatusDispatchRunnable, STATUS_COALESCING_DELAY_MS);
+        }
+    }
+
+    private final Runnable mStatusDispatchRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mStatusDispatchPending = false;
+            dispatchRemoteMediaPlayerStatus();
+        }
+    };
+
+    private void cancelStatusDispatch() {
+        mStatusHandler.removeCallbacks(mStatusDispatchRunnable);
+        mStatusDispatchPending = false;
+        mLastStatus = null;
+    }
+
+    /*
+     * Compares the latest status with the last dispatched one, and only notifies the consumers and
+     * the MiniControllers of the fields which changed.
+     */
+    void dispatchRemoteMediaPlayerStatus() {
+        if (null == mApiClient || null == mRemoteMediaPlayer ||
+                null == mRemoteMediaPlayer.getMediaStatus()) {
+            return;
+        }
+        MediaStatusSnapshot status;
         try {
-            double volume = getVolume();
-            boolean isMute = isMute();
-            switch(mState) {
+            status = MediaStatusSnapshot.create(mRemoteMediaPlayer.getMediaStatus(), getVolume(), isMute());
+        } catch (TransientNetworkDisconnectionException e) {
+            LOGE(TAG, "Failed to get volume state due to network issues", e);
+            return;
+        } catch (NoConnectionException e) {
+            LOGE(TAG, "Failed to get volume state due to network issues", e);
+            return;
+        }
+        int changes = status.diff(mLastStatus);
+        mLastStatus = status;
+        if (changes == 0) {
+            LOGD(TAG, "dispatchRemoteMediaPlayerStatus(): nothing changed");
+            return;
+        }
+
+        if ((changes & (MediaStatusSnapshot.CHANGED_PLAYER_STATE
+                | MediaStatusSnapshot.CHANGED_IDLE_REASON)) != 0) {
+            switch (status.playerState) {
             case MediaStatus.PLAYER_STATE_PLAYING:
-            	LOGD(TAG, "onRemoteMediaPlayerStatusUpdated(): Player status = playing");
+                LOGD(TAG, "dispatchRemoteMediaPlayerStatus(): Player status = playing");
                 updateRemoteControl(true);
                 break;
             case MediaStatus.PLAYER_STATE_PAUSED:
-            	LOGD(TAG, "onRemoteMediaPlayerStatusUpdated(): Player status = paused");
+                LOGD(TAG, "dispatchRemoteMediaPlayerStatus(): Player status = paused");
                 updateRemoteControl(false);
-            	break;
+                break;
             case MediaStatus.PLAYER_STATE_IDLE:
-            	LOGD(TAG, "onRemoteMediaPlayerStatusUpdated(): Player status = idle");
+                LOGD(TAG, "dispatchRemoteMediaPlayerStatus(): Player status = idle");
                 updateRemoteControl(false);
-                switch(mIdleReason) {
+                switch (status.idleReason) {
                 case MediaStatus.IDLE_REASON_FINISHED:
-                	removeRemoteControlClient();
-                	break;
+                    removeRemoteControlClient();
+                    break;
                 case MediaStatus.IDLE_REASON_ERROR:
-                	// something bad happened on the cast device
-                    LOGD(TAG, "onRemoteMediaPlayerStatusUpdated(): IDLE reason = ERROR");
+                    // something bad happened on the cast device
+                    LOGD(TAG, "dispatchRemoteMediaPlayerStatus(): IDLE reason = ERROR");
                     removeRemoteControlClient();
                     onFailed(R.string.failed_receiver_player_error, NO_STATUS_CODE);
                     break;
                 case MediaStatus.IDLE_REASON_CANCELED:
-                	LOGD(TAG, "onRemoteMediaPlayerStatusUpdated(): IDLE reason = CANCELLED");
-                	break;
+                    LOGD(TAG, "dispatchRemoteMediaPlayerStatus(): IDLE reason = CANCELLED");
+                    break;
                 }
                 break;
             case MediaStatus.PLAYER_STATE_BUFFERING:
-            	LOGD(TAG, "onRemoteMediaPlayerStatusUpdated(): Player status = buffering");
-            	break;
+                LOGD(TAG, "dispatchRemoteMediaPlayerStatus(): Player status = buffering");
+                break;
             default:
-            	LOGD(TAG, "onRemoteMediaPlayerStatusUpdated(): Player status = unknown");
+                LOGD(TAG, "dispatchRemoteMediaPlayerStatus(): Player status = unknown");
             }
-            boolean uiVisible = shouldRemoteUiBeVisible(mState, mIdleReason);
+            boolean uiVisible = shouldRemoteUiBeVisible(status.playerState, status.idleReason);
             if (uiVisible) {
-            	updateMiniControllersPlaybackStatus();
+                updateMiniControllersPlaybackStatus();
             }
             updateMiniControllersVisibility(uiVisible);
-            for (IVideoCastConsumer consumer : mVideoConsumers) {
-                try {
+        }
+
+        boolean statusChanged = (changes & MediaStatusSnapshot.MASK_STATUS) != 0;
+        boolean volumeChanged = (changes & MediaStatusSnapshot.MASK_VOLUME) != 0;
+        for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
+            try {
+                if (statusChanged) {
                     consumer.onRemoteMediaPlayerStatusUpdated();
-                    consumer.onVolumeChanged(volume, isMute);
-                } catch (Exception e) {
-                    LOGE(TAG, "onRemoteMediaPlayerStatusUpdated(): Failed to inform "
-                            + consumer, e);
                 }
+                if (volumeChanged) {
+                    consumer.onVolumeChanged(status.volume, status.isMute);
+                }
+            } catch (Exception e) {
+                LOGE(TAG, "dispatchRemoteMediaPlayerStatus(): Failed to inform "
+                        + consumer, e);
             }
-        } catch (TransientNetworkDisconnectionException e) {
-            LOGE(TAG, "Failed to get volume state due to network issues", e);
-        } catch (NoConnectionException e) {
-            LOGE(TAG, "Failed to get volume state due to network issues", e);
         }
-
     }
 
     /*
@@ -1567,7 +1785,7 @@ public class VideoCastManager extends BaseCastManager
      */
     public void onRemoteMediaPlayerMetadataUpdated() {
         LOGD(TAG, "onRemoteMediaPlayerMetadataUpdated() reached");
-        for (IVideoCastConsumer consumer : mVideoConsumers) {
+        for (IVideoCastConsumer consumer : mVideoConsumers.snapshot()) {
             try {
                 consumer.onRemoteMediaPlayerMetadataUpdated();
             } catch (Exception e) {
@@ -1633,8 +1851,11 @@ public class VideoCastManager extends BaseCastManager
     			mLockScreenImageRequest = null;
     			return;
     		}
-    		// Create a new copy of the bitmap since the MetadataEditor may recycle it
-    		Bitmap bm2 = bm.copy(bm.getConfig(), false);
+    		// Take ownership of the bitmap since the MetadataEditor may recycle it. A reusable
+    		// loader only copies it if it is still used elsewhere.
+    		Bitmap bm2 = (mImageLoader instanceof ReusableImageLoader)
+    				? ((ReusableImageLoader) mImageLoader).detachBitmap(bm)
+    				: bm.copy(bm.getConfig(), false);
 			if ((bm2 != null) && (mRemoteControlClientCompat != null)) {
 				mRemoteControlClientCompat.editMetadata(false)
 					.putBitmap(RemoteControlClient.MetadataEditor.BITMAP_KEY_ARTWORK, bm2)
@@ -1666,7 +1887,18 @@ public class VideoCastManager extends BaseCastManager
             }
             return;
         }
-        mLockScreenImageRequest = loadImage(imageUrl, mLockScreenImageLoaderCallbacks, mLockScreenImageRequest);
+        int width;
+        int height;
+        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            // Full-screen artwork
+            DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+        } else {
+            width = height = mContext.getResources().getDimensionPixelSize(R.dimen.lock_screen_artwork_size);
+        }
+        mLockScreenImageRequest = loadImage(imageUrl, width, height, null, mLockScreenImageLoaderCallbacks,
+                mLockScreenImageRequest);
     }
 
     /*
@@ -1838,6 +2070,7 @@ public class VideoCastManager extends BaseCastManager
         	if (mMiniControllers.isEmpty()) {
         		cancelImageRequest(mMiniControllersIconRequest);
         		mMiniControllersIconRequest = null;
+        		releaseImage(mMiniControllersIcon);
         		mMiniControllersIcon = null;
         	}
         }
@@ -1852,6 +2085,9 @@ public class VideoCastManager extends BaseCastManager
         stopNotificationService();
         detachMediaChannel();
         removeDataChannel();
+        mDataMessageBatcher.clear();
+        mOutbox.clear();
+        cancelStatusDispatch();
         mState = MediaStatus.PLAYER_STATE_IDLE;
     }
 
@@ -1878,6 +2114,9 @@ public class VideoCastManager extends BaseCastManager
         updateMiniControllersVisibility(false);
         stopNotificationService();
         removeRemoteControlClient();
+        mDataMessageBatcher.clear();
+        mOutbox.clear();
+        cancelStatusDispatch();
         mState = MediaStatus.PLAYER_STATE_IDLE;
     }
 
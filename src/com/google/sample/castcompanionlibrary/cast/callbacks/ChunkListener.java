@@ -0,0 +1,26 @@
+package com.google.sample.castcompanionlibrary.cast.callbacks;
+
+import com.google.android.gms.cast.CastDevice;
+
+/**
+ * Receives the parts of the chunked data messages as they arrive, so large payloads can be
+ * processed incrementally. Complete messages are still delivered through
+ * {@link IDataCastConsumer#onMessageReceived(CastDevice, String, String)} once reassembled, unless
+ * reassembly is disabled.
+ */
+public interface ChunkListener {
+
+    /**
+     * Called for each chunk of a chunked message, in order.
+     *
+     * @param castDevice
+     * @param namespace
+     * @param streamId Identifies the message the chunk belongs to; the chunks of several messages
+     *            may be interleaved
+     * @param sequence Index of the chunk in the message, starting from 0
+     * @param data The part of the message carried by this chunk
+     * @param last true if this is the last chunk of the message
+     */
+    public void onChunkReceived(CastDevice castDevice, String namespace, String streamId,
+            int sequence, String data, boolean last);
+}
@@ -0,0 +1,11 @@
+package com.google.sample.castcompanionlibrary.cast.callbacks;
+
+import com.google.sample.castcompanionlibrary.cast.ConnectionTiming;
+
+/**
+ * Receives the breakdown of each connection once it is complete, on the main thread.
+ */
+public interface ConnectionTimingListener {
+
+    public void onConnectionTiming(ConnectionTiming timing);
+}
@@ -82,7 +82,8 @@ public interface IDataCastConsumer extends IBaseCastConsumer {
 
     /**
      * Called when a message is received from a given {@link CastDevice} for a given
-     * <code>namespace</code>.
+     * <code>namespace</code>. This is called on the main thread, unless the consumer was
+     * registered with <code>DataCastManager.DISPATCH_BACKGROUND_THREAD</code>.
      * 
      * @param castDevice
      * @param namespace
@@ -86,7 +86,9 @@ public interface IVideoCastConsumer extends IBaseCastConsumer {
     public void onRemoteMediaPlayerMetadataUpdated();
 
     /**
-     * Called when media's status updated.
+     * Called when media's status updated. Bursts of updates are coalesced, and this is only called
+     * when the player state, the idle reason or the media changed, or when the position jumped.
+     * Regular playback progress doesn't trigger this callback.
      */
     public void onRemoteMediaPlayerStatusUpdated();
 
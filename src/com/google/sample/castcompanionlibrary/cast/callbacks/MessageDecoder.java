@@ -0,0 +1,25 @@
+package com.google.sample.castcompanionlibrary.cast.callbacks;
+
+import java.io.IOException;
+
+import android.util.JsonReader;
+
+/**
+ * Decodes the data messages of a given namespace and type into objects, which are then shared by
+ * all the {@link TypedMessageListener}s of this type. Decoders should read the values they need
+ * directly from the stream rather than building an intermediate JSON tree.
+ *
+ * @param <T> The type of the decoded messages
+ */
+public interface MessageDecoder<T> {
+
+    /**
+     * Decodes a message. The reader is positioned at the beginning of the message, before its
+     * first token; the type field, if any, is part of the message.
+     *
+     * @param reader
+     * @return The decoded message, or null to ignore it
+     * @throws IOException If the message is malformed
+     */
+    public T decode(JsonReader reader) throws IOException;
+}
@@ -0,0 +1,21 @@
+package com.google.sample.castcompanionlibrary.cast.callbacks;
+
+/**
+ * Receives the outcome of each reconnection attempt, on the main thread.
+ */
+public interface ReconnectionListener {
+
+    /**
+     * Called when an attempt to reconnect ends, after a temporary disconnection or when the Wi-Fi
+     * connectivity comes back. Attempts are spaced by an exponential backoff, and an attempt
+     * which does not succeed before the next one starts is considered failed.
+     *
+     * @param attempt The number of the attempt since the last successful reconnection, starting
+     *            at 1
+     * @param delayMs How long the attempt was delayed by the backoff
+     * @param durationMs How long the attempt lasted
+     * @param success <code>true</code> if the connection was re-established
+     */
+    public void onReconnectionAttempt(int attempt, long delayMs, long durationMs,
+            boolean success);
+}
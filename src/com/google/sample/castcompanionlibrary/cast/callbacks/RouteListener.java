@@ -0,0 +1,21 @@
+package com.google.sample.castcompanionlibrary.cast.callbacks;
+
+import android.support.v7.media.MediaRouter.RouteInfo;
+
+/**
+ * Receives the changes of the cast routes known to the
+ * {@link com.google.sample.castcompanionlibrary.cast.RouteRegistry}, on the main thread.
+ */
+public interface RouteListener {
+
+    public void onRouteAdded(RouteInfo route);
+
+    public void onRouteRemoved(RouteInfo route);
+
+    /**
+     * Called when the properties of a route change, such as its name, description or volume.
+     *
+     * @param route
+     */
+    public void onRouteChanged(RouteInfo route);
+}
@@ -0,0 +1,30 @@
+package com.google.sample.castcompanionlibrary.cast.callbacks;
+
+import com.google.android.gms.common.api.Status;
+
+/**
+ * Receives the outcome of a remote method call made through the data channel. Exactly one of the
+ * methods is called, on the main thread.
+ */
+public interface RpcCallback {
+
+    /**
+     * Called when the receiver replied with a result.
+     *
+     * @param method
+     * @param result The JSON text of the result, or the string itself if the result is a string;
+     *            null if the result is null
+     */
+    public void onResult(String method, String result);
+
+    /**
+     * Called when the call failed: the receiver replied with an error, the request could not be
+     * sent, or no reply arrived in time (the status code is then
+     * <code>CastStatusCodes.TIMEOUT</code>).
+     *
+     * @param method
+     * @param status
+     * @param error The error message sent by the receiver, or null
+     */
+    public void onError(String method, Status status, String error);
+}
@@ -0,0 +1,22 @@
+package com.google.sample.castcompanionlibrary.cast.callbacks;
+
+import com.google.android.gms.cast.CastDevice;
+
+/**
+ * Receives the data messages of a given namespace and type, once decoded by the
+ * {@link MessageDecoder} registered for this type.
+ *
+ * @param <T> The type of the decoded messages
+ */
+public interface TypedMessageListener<T> {
+
+    /**
+     * Called when a message of the type is received. The message object is shared with the other
+     * listeners and must not be modified.
+     *
+     * @param castDevice
+     * @param namespace
+     * @param message
+     */
+    public void onMessageReceived(CastDevice castDevice, String namespace, T message);
+}
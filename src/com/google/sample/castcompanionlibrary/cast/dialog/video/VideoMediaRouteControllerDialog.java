@@ -56,6 +56,8 @@ public class VideoMediaRouteControllerDialog extends MediaRouteControllerDialog
 	private TextView mEmptyText;
 	private View mLoading;
 	private ImageLoader.Request mIconRequest;
+	// The loaded icon, to release once replaced
+	private Bitmap mIconBitmap;
 	final VideoCastManager mCastManager;
 	private final VideoCastConsumerImpl castConsumerImpl;
 	private final Drawable mPauseDrawable;
@@ -131,16 +133,21 @@ public class VideoMediaRouteControllerDialog extends MediaRouteControllerDialog
 
 		@Override
 		public void onResponse(Bitmap bm) {
+			Bitmap previousIcon = mIconBitmap;
+			mIconBitmap = bm;
 			if (bm == null) {
 				mIcon.setImageResource(R.drawable.video_placeholder_200x200);
 			} else {
 				mIcon.setImageBitmap(bm);
 			}
+			mCastManager.releaseImage(previousIcon);
 		}
 	};
 
 	public void setIcon(String url) {
-		mIconRequest = mCastManager.loadImage(url, mIconImageLoaderCallbacks, mIconRequest);
+		int size = getContext().getResources().getDimensionPixelSize(R.dimen.media_route_controller_icon_size);
+		mIconRequest = mCastManager.loadImage(url, size, size, Bitmap.Config.RGB_565, mIconImageLoaderCallbacks,
+				mIconRequest);
 	}
 
 	void updatePlayPauseState() {
@@ -206,6 +213,12 @@ public class VideoMediaRouteControllerDialog extends MediaRouteControllerDialog
 		mCastManager.removeVideoCastConsumer(castConsumerImpl);
 		mCastManager.cancelImageRequest(mIconRequest);
 		mIconRequest = null;
+		if (mIconBitmap != null) {
+			// The icon is loaded again if the dialog is shown again
+			mIcon.setImageResource(R.drawable.video_placeholder_200x200);
+			mCastManager.releaseImage(mIconBitmap);
+			mIconBitmap = null;
+		}
 		super.onStop();
 	}
 
@@ -0,0 +1,187 @@
+package com.google.sample.castcompanionlibrary.cast.imageloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+import com.google.sample.castcompanionlibrary.cast.imageloader.HttpImageFetcher.ImageSource;
+
+/**
+ * Decodes images directly at the size they will be displayed, so full-resolution artwork never
+ * has to be allocated in memory. When a {@link BitmapPool} is provided, pixel buffers are reused
+ * from it and intermediate bitmaps are given back to it.
+ */
+final class BitmapDecoder {
+
+	private BitmapDecoder() {
+	}
+
+	/**
+	 * Decodes the image in two passes: the first one only reads its bounds to compute the largest
+	 * power-of-two subsampling factor, the second one decodes the subsampled pixels. The result is
+	 * then scaled down to the exact target size if needed.
+	 *
+	 * @param width
+	 *            Target width in pixels, or 0 if the width is not constrained.
+	 * @param height
+	 *            Target height in pixels, or 0 if the height is not constrained.
+	 * @param config
+	 *            Preferred bitmap configuration, or null to use the default one.
+	 * @param pool
+	 *            Pool of reusable bitmaps, or null.
+	 * @return The decoded bitmap, or null in case of error.
+	 */
+	static Bitmap decode(ImageSource source, int width, int height, Bitmap.Config config, BitmapPool pool)
+			throws IOException {
+		if (config == null) {
+			config = Bitmap.Config.ARGB_8888;
+		}
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decodeStream(source, options);
+		if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+			return null;
+		}
+		options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, width, height);
+		options.inJustDecodeBounds = false;
+		options.inPreferredConfig = config;
+
+		Bitmap bitmap;
+		if ((pool != null) && BitmapPool.isReuseSupported()) {
+			bitmap = HoneycombHelper.decodeReusing(source, options, config, pool);
+		} else {
+			bitmap = decodeStream(source, options);
+		}
+		if (bitmap == null) {
+			return null;
+		}
+		return scaleDown(bitmap, width, height, pool);
+	}
+
+	private static Bitmap decodeStream(ImageSource source, BitmapFactory.Options options) throws IOException {
+		InputStream in = source.open();
+		try {
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			DiskLruCache.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * @return The largest power of two which keeps the image at least as large as the target size.
+	 */
+	static int computeSampleSize(int sourceWidth, int sourceHeight, int width, int height) {
+		int sampleSize = 1;
+		while (covers(sourceWidth / (sampleSize * 2), sourceHeight / (sampleSize * 2), width, height)) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	private static boolean covers(int sourceWidth, int sourceHeight, int width, int height) {
+		return (sourceWidth >= width) && (sourceHeight >= height) && (sourceWidth > 0) && (sourceHeight > 0);
+	}
+
+	/**
+	 * Scales the bitmap down to the smallest size which still covers the target size, keeping its
+	 * aspect ratio. If a new bitmap is created, the original one is given back to the pool, or
+	 * recycled if there is no pool.
+	 */
+	static Bitmap scaleDown(Bitmap bitmap, int width, int height, BitmapPool pool) {
+		if (computeScale(bitmap.getWidth(), bitmap.getHeight(), width, height) >= 1f) {
+			return bitmap;
+		}
+		Bitmap scaled = scale(bitmap, width, height, bitmap.getConfig(), pool);
+		if (pool == null) {
+			bitmap.recycle();
+		} else {
+			pool.put(bitmap);
+		}
+		return scaled;
+	}
+
+	/**
+	 * Creates a copy of the bitmap scaled to the smallest size which still covers the target size,
+	 * keeping its aspect ratio. The source bitmap is left untouched.
+	 *
+	 * @param config
+	 *            Preferred bitmap configuration, or null to use the default one. Transparency is
+	 *            always preserved.
+	 */
+	static Bitmap scale(Bitmap source, int width, int height, Bitmap.Config config, BitmapPool pool) {
+		float scale = Math.min(1f, computeScale(source.getWidth(), source.getHeight(), width, height));
+		int scaledWidth = Math.max(1, Math.round(source.getWidth() * scale));
+		int scaledHeight = Math.max(1, Math.round(source.getHeight() * scale));
+		if ((config == null) || ((config == Bitmap.Config.RGB_565) && source.hasAlpha())) {
+			config = Bitmap.Config.ARGB_8888;
+		}
+		Bitmap scaled = (pool == null) ? null : pool.get(scaledWidth, scaledHeight, config);
+		if (scaled == null) {
+			scaled = Bitmap.createBitmap(scaledWidth, scaledHeight, config);
+		} else {
+			scaled.eraseColor(0);
+		}
+		// Drawing into a mutable bitmap keeps the result reusable by the pool
+		Canvas canvas = new Canvas(scaled);
+		canvas.drawBitmap(source, null, new Rect(0, 0, scaledWidth, scaledHeight), new Paint(Paint.FILTER_BITMAP_FLAG));
+		return scaled;
+	}
+
+	static float computeScale(int sourceWidth, int sourceHeight, int width, int height) {
+		float scale = 0f;
+		if (width > 0) {
+			scale = (float) width / sourceWidth;
+		}
+		if (height > 0) {
+			scale = Math.max(scale, (float) height / sourceHeight);
+		}
+		return (scale == 0f) ? 1f : scale;
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static class HoneycombHelper {
+
+		/**
+		 * Decodes the image into a pooled bitmap if a compatible one is available. Falls back to a
+		 * new allocation if the pooled bitmap is rejected by the decoder.
+		 */
+		static Bitmap decodeReusing(ImageSource source, BitmapFactory.Options options, Bitmap.Config config,
+				BitmapPool pool) throws IOException {
+			options.inMutable = true;
+			Bitmap reusable = null;
+			// Decoders may produce ARGB_8888 for images with transparency even if RGB_565 is
+			// preferred, so only reuse 565 bitmaps for JPEG images.
+			if ((config != Bitmap.Config.RGB_565) || "image/jpeg".equals(options.outMimeType)) {
+				int sampleSize = options.inSampleSize;
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+					reusable = pool.get((options.outWidth + sampleSize - 1) / sampleSize,
+							(options.outHeight + sampleSize - 1) / sampleSize, config);
+				} else if (sampleSize == 1) {
+					// Before KitKat, only exact matches without subsampling are supported
+					reusable = pool.get(options.outWidth, options.outHeight, config);
+				}
+			}
+			if (reusable != null) {
+				options.inBitmap = reusable;
+				try {
+					Bitmap bitmap = decodeStream(source, options);
+					if (bitmap != null) {
+						return bitmap;
+					}
+				} catch (IllegalArgumentException e) {
+					// The pooled bitmap was not compatible
+				}
+				options.inBitmap = null;
+				pool.put(reusable);
+			}
+			return decodeStream(source, options);
+		}
+	}
+}
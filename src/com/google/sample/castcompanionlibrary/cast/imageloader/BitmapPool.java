@@ -0,0 +1,162 @@
+package com.google.sample.castcompanionlibrary.cast.imageloader;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Pool of mutable bitmaps which are no longer used, bucketed by allocation size, so their memory
+ * can be reused to decode or scale new images instead of allocating fresh pixel buffers.
+ *
+ * Before KitKat, a bitmap can only be reused for an image of exactly the same dimensions and
+ * config. Starting with KitKat, any bitmap with a large enough allocation can be reconfigured.
+ * Bitmap reuse is not possible before Honeycomb, so the pool stays empty on these versions.
+ */
+final class BitmapPool {
+
+	// On KitKat, don't waste a bitmap much larger than needed
+	private static final int MAX_SIZE_MULTIPLIER = 4;
+
+	private final long maxSize;
+	private long size;
+	// Bitmaps indexed by allocation size
+	private final TreeMap<Integer, List<Bitmap>> buckets = new TreeMap<Integer, List<Bitmap>>();
+	// Eviction order, oldest first
+	private final LinkedList<Bitmap> lruList = new LinkedList<Bitmap>();
+
+	BitmapPool(long maxSizeBytes) {
+		maxSize = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) ? maxSizeBytes : 0L;
+	}
+
+	static boolean isReuseSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	/**
+	 * Gives a bitmap to the pool. The caller must not use it anymore.
+	 */
+	synchronized void put(Bitmap bitmap) {
+		if (bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		int bitmapSize = getAllocationSize(bitmap);
+		if (bitmapSize > maxSize) {
+			return;
+		}
+		List<Bitmap> bucket = buckets.get(bitmapSize);
+		if (bucket == null) {
+			bucket = new ArrayList<Bitmap>(2);
+			buckets.put(bitmapSize, bucket);
+		}
+		bucket.add(bitmap);
+		lruList.addLast(bitmap);
+		size += bitmapSize;
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * Takes a bitmap out of the pool which can hold an image of the specified dimensions and
+	 * config. Starting with KitKat, the bitmap is reconfigured to these dimensions.
+	 *
+	 * @return A reusable bitmap, or null if none is available.
+	 */
+	synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		if (buckets.isEmpty()) {
+			return null;
+		}
+		int requiredSize = width * height * getBytesPerPixel(config);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			Map.Entry<Integer, List<Bitmap>> entry = buckets.ceilingEntry(requiredSize);
+			if ((entry == null) || (entry.getKey() > requiredSize * MAX_SIZE_MULTIPLIER)) {
+				return null;
+			}
+			Bitmap bitmap = remove(entry.getValue(), 0, entry.getKey());
+			KitKatHelper.reconfigure(bitmap, width, height, config);
+			return bitmap;
+		}
+		List<Bitmap> bucket = buckets.get(requiredSize);
+		if (bucket != null) {
+			for (int i = 0, count = bucket.size(); i < count; i++) {
+				Bitmap bitmap = bucket.get(i);
+				if ((bitmap.getWidth() == width) && (bitmap.getHeight() == height) && (bitmap.getConfig() == config)) {
+					return remove(bucket, i, requiredSize);
+				}
+			}
+		}
+		return null;
+	}
+
+	private Bitmap remove(List<Bitmap> bucket, int index, int bitmapSize) {
+		Bitmap bitmap = bucket.remove(index);
+		if (bucket.isEmpty()) {
+			buckets.remove(bitmapSize);
+		}
+		lruList.remove(bitmap);
+		size -= bitmapSize;
+		return bitmap;
+	}
+
+	synchronized void trimToSize(long maxSizeBytes) {
+		Iterator<Bitmap> it = lruList.iterator();
+		while ((size > maxSizeBytes) && it.hasNext()) {
+			Bitmap bitmap = it.next();
+			it.remove();
+			int bitmapSize = getAllocationSize(bitmap);
+			List<Bitmap> bucket = buckets.get(bitmapSize);
+			bucket.remove(bitmap);
+			if (bucket.isEmpty()) {
+				buckets.remove(bitmapSize);
+			}
+			size -= bitmapSize;
+		}
+	}
+
+	synchronized void clear() {
+		trimToSize(0L);
+	}
+
+	long maxSize() {
+		return maxSize;
+	}
+
+	static int getAllocationSize(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return KitKatHelper.getAllocationByteCount(bitmap);
+		}
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == null) {
+			return 4;
+		}
+		switch (config) {
+		case ALPHA_8:
+			return 1;
+		case RGB_565:
+		case ARGB_4444:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static class KitKatHelper {
+
+		static int getAllocationByteCount(Bitmap bitmap) {
+			return bitmap.getAllocationByteCount();
+		}
+
+		static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+			bitmap.reconfigure(width, height, config);
+		}
+	}
+}
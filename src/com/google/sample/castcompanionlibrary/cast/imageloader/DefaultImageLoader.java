@@ -1,93 +1,747 @@
 package com.google.sample.castcompanionlibrary.cast.imageloader;
 
-import java.net.URL;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.support.v4.util.LruCache;
 
+import com.google.sample.castcompanionlibrary.cast.imageloader.HttpImageFetcher.ImageSource;
+import com.google.sample.castcompanionlibrary.utils.LogUtils;
+
 /**
- * Default implementation of an ImageLoader. It performs only one network request at a time and uses
- * a simple memory cache to store the last 2 loaded images.
+ * Default implementation of an ImageLoader. Network requests are performed by a small pool of
+ * background threads, so several images can be fetched in parallel. Concurrent requests for the
+ * same URL share a single fetch. Images are decoded directly at the requested size using
+ * subsampling, then kept in a memory cache whose budget is expressed in bytes, by default 1/8 of
+ * the memory available to the application. Cache hits are delivered immediately, without ever
+ * waiting for a pending network request.
  * 
- * @author Christophe Beyls
+ * An image requested at several sizes is only decoded once, at the largest one, and the smaller
+ * variants are derived from it. A request for a smaller variant of a cached image is also derived
+ * from the cached bitmap instead of fetching the image again.
+ * 
+ * Bitmaps evicted from the memory cache are kept in a pool once nobody uses them anymore, and
+ * their memory is reused to decode the next images. Callers take part in this by calling
+ * releaseBitmap() and detachBitmap() from {@link ReusableImageLoader}.
+ * 
+ * When created with a Context, the cache also shrinks automatically when the system asks the
+ * application to trim its memory. Otherwise, call trimMemory() from your Application.
  * 
+ * When created with a Context, downloaded images are also stored in a persistent disk cache, so
+ * they survive process restarts. Disk entries honor the HTTP caching headers of the server and are
+ * revalidated with conditional requests once stale.
+ *
+ * @author Christophe Beyls
+ *
  */
-public class DefaultImageLoader implements ImageLoader {
+public class DefaultImageLoader implements SizedImageLoader, ReusableImageLoader {
+
+	private static final float DEFAULT_MEMORY_CACHE_FRACTION = 1f / 8f;
+	private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 3;
+	private static final long KEEP_ALIVE_SECONDS = 10L;
+	private static final long DEFAULT_DISK_CACHE_SIZE_BYTES = 10L * 1024L * 1024L;
+	private static final String DISK_CACHE_DIRECTORY = "ccl_images";
+	// A cached variant slightly larger or smaller than requested is used as is
+	private static final float MIN_DIRECT_VARIANT_SCALE = 0.9f;
+	private static final float MAX_DIRECT_VARIANT_SCALE = 1.02f;
+
+	private static final String TAG = LogUtils.makeLogTag(DefaultImageLoader.class);
 
-	// By default, only cache bitmaps smaller than 1/4 of the total heap size
-	private static final long MAX_BITMAP_SIZE = Runtime.getRuntime().maxMemory() / 4L;
+	private final BitmapLruCache cache;
+	private final BitmapPool pool;
+	// Bitmaps handed out to the callers, guarded by itself
+	private final Map<Bitmap, BitmapRef> references = new WeakHashMap<Bitmap, BitmapRef>();
+	private final ThreadPoolExecutor executor;
+	// The disk cache is opened lazily from a worker thread
+	private File diskCacheDirectory;
+	private long diskCacheSizeBytes;
+	private HttpImageFetcher fetcher;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	// Keys of the cached variants of each URL, guarded by references
+	private final Map<String, List<String>> cachedVariants = new HashMap<String, List<String>>();
+	// Only accessed from the UI thread
+	final Map<String, Fetch> pendingFetches = new HashMap<String, Fetch>();
 
-	private final LruCache<String, Bitmap> cache = new LruCache<String, Bitmap>(2);
+	/**
+	 * Size and config of an image, as requested by the callers.
+	 */
+	static class Variant {
 
-	private class DefaultRequest extends AsyncTask<Void, Void, Bitmap> implements ImageLoader.Request {
+		final String key;
+		final int width;
+		final int height;
+		final Bitmap.Config config;
 
-		private final String url;
-		private final Callbacks callbacks;
+		Variant(String url, int width, int height, Bitmap.Config config) {
+			this.key = getCacheKey(url, width, height, config);
+			this.width = width;
+			this.height = height;
+			this.config = config;
+		}
+	}
 
-		public DefaultRequest(String url, Callbacks callbacks) {
+	private static class DefaultRequest implements ImageLoader.Request {
+
+		final String url;
+		final Variant variant;
+		final Callbacks callbacks;
+		Fetch fetch;
+
+		DefaultRequest(String url, Variant variant, Callbacks callbacks) {
 			this.url = url;
+			this.variant = variant;
 			this.callbacks = callbacks;
 		}
 
 		@Override
-		protected Bitmap doInBackground(Void... params) {
-			return performRequest(url);
+		public String getUrl() {
+			return url;
+		}
+	}
+
+	/**
+	 * A fetch shared by all the requests for the same URL, whatever their size. The image is
+	 * either downloaded, or derived from a larger cached variant.
+	 */
+	class Fetch implements Runnable {
+
+		final String url;
+		// Cached bitmap to derive the variants from, or null to download the image
+		final Bitmap base;
+		final List<DefaultRequest> requests = new ArrayList<DefaultRequest>(2);
+		// Variants to produce, guarded by this
+		private final List<Variant> variants = new ArrayList<Variant>(2);
+		private boolean started;
+		private boolean cancelled;
+		Future<?> future;
+
+		Fetch(String url, Bitmap base) {
+			this.url = url;
+			this.base = base;
+		}
+
+		synchronized void addVariant(Variant variant) {
+			if (started) {
+				// Too late, the request will be served once this fetch completes
+				return;
+			}
+			for (Variant v : variants) {
+				if (v.key.equals(variant.key)) {
+					return;
+				}
+			}
+			variants.add(variant);
+		}
+
+		/**
+		 * @return true if the fetch will never run, false if it already started.
+		 */
+		synchronized boolean cancel() {
+			if (!started) {
+				cancelled = true;
+			}
+			return cancelled;
+		}
+
+		@Override
+		public void run() {
+			List<Variant> snapshot;
+			synchronized (this) {
+				if (cancelled) {
+					return;
+				}
+				started = true;
+				snapshot = new ArrayList<Variant>(variants);
+			}
+			final Map<String, Bitmap> results = performRequest(this, snapshot);
+			handler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					onFetchComplete(Fetch.this, results);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Ownership state of a bitmap produced by this loader.
+	 */
+	private static class BitmapRef {
+
+		String url;
+		// Memory cache key, or null if the bitmap is not in the memory cache
+		String key;
+		// Number of deliveries to the callers which have not been released yet
+		int refCount;
+	}
+
+	/**
+	 * Byte-budgeted memory cache.
+	 */
+	private class BitmapLruCache extends LruCache<String, Bitmap> {
+
+		BitmapLruCache(int maxSizeBytes) {
+			super(maxSizeBytes);
 		}
 
 		@Override
-		protected void onPostExecute(Bitmap result) {
-			callbacks.onResponse(result);
+		protected int sizeOf(String key, Bitmap value) {
+			return (int) DefaultImageLoader.sizeOf(value);
 		}
 
 		@Override
-		public String getUrl() {
-			return url;
+		protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+			if (oldValue != newValue) {
+				onRemovedFromCache(key, oldValue);
+			}
 		}
 	}
 
-	Bitmap performRequest(String url) {
-		// Using a single background thread in sync with the cache guarantees that we only
-		// perform a single network request per image.
-		synchronized (cache) {
-			Bitmap bitmap = cache.get(url);
-			if (bitmap != null) {
-				return bitmap;
+	public DefaultImageLoader() {
+		this(DEFAULT_MAX_CONCURRENT_REQUESTS);
+	}
+
+	/**
+	 * @param maxConcurrentRequests
+	 *            Maximum number of images fetched in parallel.
+	 */
+	public DefaultImageLoader(int maxConcurrentRequests) {
+		this((long) (Runtime.getRuntime().maxMemory() * DEFAULT_MEMORY_CACHE_FRACTION), maxConcurrentRequests);
+	}
+
+	/**
+	 * Creates an image loader whose memory cache budget is computed from the memory class of the
+	 * device, and which automatically trims its cache when the system is low on memory.
+	 */
+	public DefaultImageLoader(Context context) {
+		this(context, DEFAULT_MEMORY_CACHE_FRACTION, DEFAULT_MAX_CONCURRENT_REQUESTS);
+	}
+
+	/**
+	 * @param context
+	 *            Used to retrieve the memory class of the device and to register for memory trim
+	 *            events.
+	 * @param memoryCacheFraction
+	 *            Fraction of the application memory class to use for the memory cache, between 0
+	 *            and 1.
+	 * @param maxConcurrentRequests
+	 *            Maximum number of images fetched in parallel.
+	 */
+	public DefaultImageLoader(Context context, float memoryCacheFraction, int maxConcurrentRequests) {
+		this(context, memoryCacheFraction, maxConcurrentRequests, DEFAULT_DISK_CACHE_SIZE_BYTES);
+	}
+
+	/**
+	 * @param context
+	 *            Used to retrieve the memory class of the device, to register for memory trim
+	 *            events and to locate the disk cache directory.
+	 * @param memoryCacheFraction
+	 *            Fraction of the application memory class to use for the memory cache, between 0
+	 *            and 1.
+	 * @param maxConcurrentRequests
+	 *            Maximum number of images fetched in parallel.
+	 * @param diskCacheSizeBytes
+	 *            Maximum size of the disk cache, or 0 to disable it.
+	 */
+	public DefaultImageLoader(Context context, float memoryCacheFraction, int maxConcurrentRequests,
+			long diskCacheSizeBytes) {
+		this(getMemoryClassBytes(context, memoryCacheFraction), maxConcurrentRequests);
+		if (diskCacheSizeBytes < 0L) {
+			throw new IllegalArgumentException("diskCacheSizeBytes must be positive or 0");
+		}
+		if (diskCacheSizeBytes > 0L) {
+			diskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+			this.diskCacheSizeBytes = diskCacheSizeBytes;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			TrimMemoryCallbacks.register(context, this);
+		}
+	}
+
+	private static long getMemoryClassBytes(Context context, float memoryCacheFraction) {
+		if ((memoryCacheFraction <= 0f) || (memoryCacheFraction > 1f)) {
+			throw new IllegalArgumentException("memoryCacheFraction must be between 0 and 1");
+		}
+		ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		return (long) (am.getMemoryClass() * 1024L * 1024L * memoryCacheFraction);
+	}
+
+	private DefaultImageLoader(long memoryCacheSizeBytes, int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+		}
+		cache = new BitmapLruCache((int) Math.min(memoryCacheSizeBytes, Integer.MAX_VALUE));
+		pool = new BitmapPool(cache.maxSize() / 4);
+		executor = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, KEEP_ALIVE_SECONDS,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private static class BackgroundThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "DefaultImageLoader #" + count.getAndIncrement());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private static class TrimMemoryCallbacks implements ComponentCallbacks2 {
+
+		private final DefaultImageLoader imageLoader;
+
+		private TrimMemoryCallbacks(DefaultImageLoader imageLoader) {
+			this.imageLoader = imageLoader;
+		}
+
+		static void register(Context context, DefaultImageLoader imageLoader) {
+			context.getApplicationContext().registerComponentCallbacks(new TrimMemoryCallbacks(imageLoader));
+		}
+
+		@Override
+		public void onTrimMemory(int level) {
+			imageLoader.trimMemory(level);
+		}
+
+		@Override
+		public void onLowMemory() {
+			imageLoader.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+		}
+	}
+
+	/**
+	 * Shrinks the memory cache and the bitmap pool according to the level passed by the system to
+	 * ComponentCallbacks2.onTrimMemory(). This is done automatically if the loader was created
+	 * with a Context.
+	 */
+	public void trimMemory(int level) {
+		if ((level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+				|| (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)) {
+			cache.evictAll();
+			pool.clear();
+		} else if ((level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+				|| (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)) {
+			cache.trimToSize(cache.maxSize() / 2);
+			pool.trimToSize(pool.maxSize() / 2);
+		}
+	}
+
+	/**
+	 * Opens the disk cache on first use. If it can't be opened, images are downloaded without it.
+	 */
+	private synchronized HttpImageFetcher getFetcher() {
+		if (fetcher == null) {
+			DiskLruCache diskCache = null;
+			if (diskCacheDirectory != null) {
+				try {
+					diskCache = DiskLruCache.open(diskCacheDirectory, diskCacheSizeBytes);
+				} catch (IOException e) {
+					LogUtils.LOGE(TAG, "getFetcher(): Failed to open the disk cache", e);
+				}
 			}
+			fetcher = new HttpImageFetcher(diskCache);
+		}
+		return fetcher;
+	}
 
-			try {
-				bitmap = BitmapFactory.decodeStream(new URL(url).openStream());
-				if ((bitmap != null) && shouldCache(url, bitmap)) {
-					cache.put(url, bitmap);
+	/**
+	 * Fetches and decodes an image, then produces all its requested variants. Called from a worker
+	 * thread, possibly concurrently for different URLs.
+	 *
+	 * @return The bitmaps by variant key, or null in case of error. Variants which can't be derived
+	 *         from the base bitmap of the fetch are missing.
+	 */
+	Map<String, Bitmap> performRequest(Fetch fetch, List<Variant> variants) {
+		Map<String, Bitmap> results = null;
+		try {
+			Bitmap base = fetch.base;
+			if (base == null) {
+				ImageSource source = getFetcher().fetch(fetch.url);
+				if (source == null) {
+					return null;
+				}
+				// Decode once at a size covering all the variants
+				base = BitmapDecoder.decode(source, getMaxWidth(variants), getMaxHeight(variants),
+						getDecodeConfig(variants), pool);
+				if (base == null) {
+					return null;
+				}
+			}
+
+			results = new HashMap<String, Bitmap>();
+			boolean baseUsed = false;
+			for (Variant variant : variants) {
+				float scale = BitmapDecoder.computeScale(base.getWidth(), base.getHeight(), variant.width,
+						variant.height);
+				Bitmap bitmap;
+				if (scale < 1f) {
+					bitmap = BitmapDecoder.scale(base, variant.width, variant.height, variant.config, pool);
+				} else if (fetch.base == null) {
+					bitmap = base;
+				} else {
+					// The cached bitmap is too small for this variant
+					continue;
+				}
+				if ((bitmap != base) || !baseUsed) {
+					// Held until onFetchComplete(), so an eviction can't pool it before delivery
+					synchronized (references) {
+						getReference(bitmap).refCount++;
+					}
+					cacheVariant(fetch.url, variant.key, bitmap);
+				}
+				baseUsed |= (bitmap == base);
+				results.put(variant.key, bitmap);
+			}
+			if ((fetch.base == null) && !baseUsed) {
+				pool.put(base);
+			}
+			return results;
+		} catch (Exception e) {
+			releaseAll(results);
+			return null;
+		} catch (OutOfMemoryError e) {
+			LogUtils.LOGE(TAG, "performRequest(): Not enough memory to decode " + fetch.url);
+			releaseAll(results);
+			return null;
+		}
+	}
+
+	private static int getMaxWidth(List<Variant> variants) {
+		int maxWidth = 0;
+		for (Variant variant : variants) {
+			if (variant.width == 0) {
+				return 0;
+			}
+			maxWidth = Math.max(maxWidth, variant.width);
+		}
+		return maxWidth;
+	}
+
+	private static int getMaxHeight(List<Variant> variants) {
+		int maxHeight = 0;
+		for (Variant variant : variants) {
+			if (variant.height == 0) {
+				return 0;
+			}
+			maxHeight = Math.max(maxHeight, variant.height);
+		}
+		return maxHeight;
+	}
+
+	private static Bitmap.Config getDecodeConfig(List<Variant> variants) {
+		for (Variant variant : variants) {
+			if (variant.config != Bitmap.Config.RGB_565) {
+				return Bitmap.Config.ARGB_8888;
+			}
+		}
+		return Bitmap.Config.RGB_565;
+	}
+
+	private void cacheVariant(String url, String key, Bitmap bitmap) {
+		if (!shouldCache(url, bitmap)) {
+			return;
+		}
+		synchronized (references) {
+			BitmapRef ref = getReference(bitmap);
+			ref.url = url;
+			ref.key = key;
+			List<String> keys = cachedVariants.get(url);
+			if (keys == null) {
+				keys = new ArrayList<String>(2);
+				cachedVariants.put(url, keys);
+			}
+			keys.add(key);
+		}
+		cache.put(key, bitmap);
+	}
+
+	void onFetchComplete(Fetch fetch, Map<String, Bitmap> results) {
+		if (fetch.base != null) {
+			releaseBitmap(fetch.base);
+		}
+		if (pendingFetches.get(fetch.url) != fetch) {
+			// All requests have been cancelled in the meantime
+			releaseAll(results);
+			return;
+		}
+		pendingFetches.remove(fetch.url);
+		for (DefaultRequest request : fetch.requests) {
+			request.fetch = null;
+			if (results == null) {
+				request.callbacks.onResponse(null);
+				continue;
+			}
+			Bitmap bitmap = results.get(request.variant.key);
+			if (bitmap == null) {
+				// Joined too late or can't be derived: start over
+				enqueue(request);
+			} else {
+				synchronized (references) {
+					getReference(bitmap).refCount++;
+				}
+				request.callbacks.onResponse(bitmap);
+			}
+		}
+		// Drop the hold taken by performRequest(), the results which were not delivered because of
+		// cancellations go back to the pool unless they are cached
+		releaseAll(results);
+	}
+
+	private BitmapRef getReference(Bitmap bitmap) {
+		BitmapRef ref = references.get(bitmap);
+		if (ref == null) {
+			ref = new BitmapRef();
+			references.put(bitmap, ref);
+		}
+		return ref;
+	}
+
+	void onRemovedFromCache(String key, Bitmap bitmap) {
+		synchronized (references) {
+			BitmapRef ref = references.get(bitmap);
+			if ((ref == null) || !key.equals(ref.key)) {
+				// Detached or unknown bitmap
+				return;
+			}
+			removeCachedVariant(ref.url, key);
+			ref.key = null;
+			if (ref.refCount == 0) {
+				references.remove(bitmap);
+				pool.put(bitmap);
+			}
+		}
+	}
+
+	private void removeCachedVariant(String url, String key) {
+		List<String> keys = cachedVariants.get(url);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				cachedVariants.remove(url);
+			}
+		}
+	}
+
+	private void releaseAll(Map<String, Bitmap> results) {
+		if (results != null) {
+			for (Bitmap bitmap : new HashSet<Bitmap>(results.values())) {
+				releaseBitmap(bitmap);
+			}
+		}
+	}
+
+	@Override
+	public void releaseBitmap(Bitmap bitmap) {
+		synchronized (references) {
+			BitmapRef ref = references.get(bitmap);
+			if ((ref == null) || (ref.refCount == 0)) {
+				return;
+			}
+			ref.refCount--;
+			if ((ref.refCount == 0) && (ref.key == null)) {
+				references.remove(bitmap);
+				pool.put(bitmap);
+			}
+		}
+	}
+
+	@Override
+	public Bitmap detachBitmap(Bitmap bitmap) {
+		synchronized (references) {
+			BitmapRef ref = references.get(bitmap);
+			if ((ref != null) && (ref.refCount <= 1)) {
+				// The caller is the only user: hand the bitmap over instead of copying it
+				references.remove(bitmap);
+				if (ref.key != null) {
+					removeCachedVariant(ref.url, ref.key);
+					cache.remove(ref.key);
 				}
 				return bitmap;
-			} catch (Exception e) {
-				return null;
+			}
+			if (ref != null) {
+				ref.refCount--;
 			}
 		}
+		return bitmap.copy(bitmap.getConfig(), false);
 	}
 
 	/**
-	 * Override this method if you want to change the default cache logic.
+	 * Override this method if you want to change the default cache logic. By default, only
+	 * bitmaps smaller than half of the memory cache budget are cached.
 	 */
 	protected boolean shouldCache(String url, Bitmap bitmap) {
-		return sizeOf(bitmap) <= MAX_BITMAP_SIZE;
+		return sizeOf(bitmap) <= cache.maxSize() / 2;
 	}
 
 	protected static long sizeOf(Bitmap bitmap) {
 		return bitmap.getRowBytes() * bitmap.getHeight();
 	}
 
+	/**
+	 * @return The key identifying an image decoded with the specified size and config.
+	 */
+	static String getCacheKey(String url, int width, int height, Bitmap.Config config) {
+		StringBuilder sb = new StringBuilder(url.length() + 24);
+		sb.append(width).append('x').append(height).append('#');
+		if (config != null) {
+			sb.append(config.name());
+		}
+		return sb.append('#').append(url).toString();
+	}
+
 	@Override
 	public ImageLoader.Request load(String url, ImageLoader.Callbacks callbacks) {
-		DefaultRequest request = new DefaultRequest(url, callbacks);
-		request.execute();
-		return request;
+		return load(url, 0, 0, null, callbacks);
+	}
+
+	@Override
+	public ImageLoader.Request load(String url, int width, int height, Bitmap.Config config,
+			ImageLoader.Callbacks callbacks) {
+		DefaultRequest request = new DefaultRequest(url, new Variant(url, width, height, config), callbacks);
+		return enqueue(request) ? request : null;
+	}
+
+	/**
+	 * Delivers the request immediately if possible, or adds it to a fetch.
+	 *
+	 * @return true if the request is pending.
+	 */
+	private boolean enqueue(DefaultRequest request) {
+		Variant variant = request.variant;
+		Fetch fetch = pendingFetches.get(request.url);
+		Bitmap bitmap;
+		Bitmap base = null;
+		// The lookup and the reference are atomic, otherwise an eviction in between would see no
+		// reference and put the bitmap in the pool
+		synchronized (references) {
+			bitmap = cache.get(variant.key);
+			if ((bitmap == null) && ((variant.width > 0) || (variant.height > 0))) {
+				Bitmap candidate = findLargerVariant(request.url, variant);
+				if (candidate != null) {
+					if (BitmapDecoder.computeScale(candidate.getWidth(), candidate.getHeight(),
+							variant.width, variant.height) >= MIN_DIRECT_VARIANT_SCALE) {
+						// Close enough to the requested size
+						bitmap = candidate;
+					} else if (fetch == null) {
+						base = candidate;
+					}
+				}
+			}
+			if (bitmap != null) {
+				getReference(bitmap).refCount++;
+			} else if (base != null) {
+				// Keep the base bitmap out of the pool while deriving from it
+				getReference(base).refCount++;
+			}
+		}
+		if (bitmap != null) {
+			request.callbacks.onResponse(bitmap);
+			return false;
+		}
+
+		if (fetch == null) {
+			fetch = new Fetch(request.url, base);
+			fetch.addVariant(variant);
+			pendingFetches.put(request.url, fetch);
+			fetch.future = executor.submit(fetch);
+		} else {
+			fetch.addVariant(variant);
+		}
+		fetch.requests.add(request);
+		request.fetch = fetch;
+		return true;
+	}
+
+	/**
+	 * Must be called with references held.
+	 *
+	 * @return The smallest cached variant of the URL which covers the requested variant, or null.
+	 */
+	private Bitmap findLargerVariant(String url, Variant variant) {
+		List<String> keys = cachedVariants.get(url);
+		if (keys == null) {
+			return null;
+		}
+		Bitmap result = null;
+		float resultScale = 0f;
+		for (String key : keys) {
+			Bitmap candidate = cache.get(key);
+			if ((candidate == null) || !isCompatible(candidate.getConfig(), variant.config)) {
+				continue;
+			}
+			float scale = BitmapDecoder.computeScale(candidate.getWidth(), candidate.getHeight(), variant.width,
+					variant.height);
+			if ((scale <= MAX_DIRECT_VARIANT_SCALE) && (scale > resultScale)) {
+				result = candidate;
+				resultScale = scale;
+			}
+		}
+		return result;
+	}
+
+	private static boolean isCompatible(Bitmap.Config cachedConfig, Bitmap.Config requestedConfig) {
+		return (requestedConfig == Bitmap.Config.RGB_565) || (cachedConfig == Bitmap.Config.ARGB_8888)
+				|| (cachedConfig == requestedConfig);
 	}
 
 	@Override
 	public void cancelRequest(ImageLoader.Request request) {
-		((DefaultRequest) request).cancel(true);
+		DefaultRequest defaultRequest = (DefaultRequest) request;
+		Fetch fetch = defaultRequest.fetch;
+		if (fetch == null) {
+			// Already completed or cancelled
+			return;
+		}
+		defaultRequest.fetch = null;
+		fetch.requests.remove(defaultRequest);
+		if (fetch.requests.isEmpty()) {
+			// Nobody is interested in this image anymore
+			pendingFetches.remove(fetch.url);
+			if (fetch.cancel()) {
+				// onFetchComplete() won't be called, so the base must be released here
+				fetch.future.cancel(false);
+				if (fetch.base != null) {
+					releaseBitmap(fetch.base);
+				}
+			} else {
+				fetch.future.cancel(true);
+			}
+		}
 	}
 }
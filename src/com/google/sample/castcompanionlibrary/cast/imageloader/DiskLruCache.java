@@ -0,0 +1,482 @@
+package com.google.sample.castcompanionlibrary.cast.imageloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded LRU cache of files on disk, with a small set of metadata attached to each entry.
+ *
+ * Entries are stored as a data file and a metadata file named after their key. The access order is
+ * persisted in an append-only journal, which is compacted once it contains too many redundant
+ * operations. When the total size of the entries exceeds the maximum size, the least recently used
+ * entries are deleted.
+ *
+ * This class is thread-safe. Entries are written to temporary files first, so readers never see a
+ * partially written entry.
+ */
+public final class DiskLruCache {
+
+	static final String JOURNAL_FILE = "journal";
+	static final String JOURNAL_FILE_TMP = "journal.tmp";
+	static final String MAGIC = "ccl.DiskLruCache";
+	static final String VERSION = "1";
+
+	private static final String CLEAN = "CLEAN";
+	private static final String READ = "READ";
+	private static final String REMOVE = "REMOVE";
+	private static final String DATA_SUFFIX = ".data";
+	private static final String METADATA_SUFFIX = ".meta";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+	private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,64}");
+
+	private final File directory;
+	private final long maxSize;
+	// Entry key -> size in bytes, in access order
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+	private long size;
+	private Writer journalWriter;
+	private int redundantOpCount;
+	private int nextTmpId;
+
+	/**
+	 * A readable cache entry.
+	 */
+	public static final class Snapshot {
+
+		private final File file;
+		private final Properties metadata;
+
+		Snapshot(File file, Properties metadata) {
+			this.file = file;
+			this.metadata = metadata;
+		}
+
+		/**
+		 * @return The file containing the data of this entry. The file may be deleted at any time
+		 *         if the entry is evicted, so callers must be prepared for opening it to fail.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return The metadata stored with this entry. Never null.
+		 */
+		public Properties getMetadata() {
+			return metadata;
+		}
+	}
+
+	/**
+	 * Writes a new value for an entry. Call either commit() or abort() when done.
+	 */
+	public final class Editor {
+
+		final String key;
+		final File dataFile;
+		private boolean done;
+
+		Editor(String key, File dataFile) {
+			this.key = key;
+			this.dataFile = dataFile;
+		}
+
+		/**
+		 * @return A stream to write the data of this entry.
+		 */
+		public OutputStream newOutputStream() throws IOException {
+			return new FileOutputStream(dataFile);
+		}
+
+		/**
+		 * Publishes the written data with the provided metadata.
+		 */
+		public void commit(Properties metadata) throws IOException {
+			if (done) {
+				throw new IllegalStateException("Editor already closed");
+			}
+			done = true;
+			completeEdit(this, metadata);
+		}
+
+		/**
+		 * Discards the written data.
+		 */
+		public void abort() {
+			if (!done) {
+				done = true;
+				dataFile.delete();
+			}
+		}
+	}
+
+	private DiskLruCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Opens the cache in the provided directory, creating it if it doesn't exist. This performs
+	 * disk I/O and must not be called from the UI thread.
+	 *
+	 * @param directory
+	 *            A directory used exclusively by this cache.
+	 * @param maxSize
+	 *            Maximum number of bytes used by the cache on disk.
+	 */
+	public static DiskLruCache open(File directory, long maxSize) throws IOException {
+		if (maxSize <= 0L) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create cache directory " + directory);
+		}
+		DiskLruCache cache = new DiskLruCache(directory, maxSize);
+		try {
+			cache.readJournal();
+			cache.journalWriter = new BufferedWriter(new FileWriter(new File(directory, JOURNAL_FILE), true));
+		} catch (IOException e) {
+			// The journal is corrupted or missing: start over with an empty cache
+			cache.clearDirectory();
+			cache.rebuildJournal();
+		}
+		cache.trimToSize();
+		return cache;
+	}
+
+	private void readJournal() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(new File(directory, JOURNAL_FILE)));
+		try {
+			if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())
+					|| !"".equals(reader.readLine())) {
+				throw new IOException("Unexpected journal header");
+			}
+			int lineCount = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				readJournalLine(line);
+				lineCount++;
+			}
+			redundantOpCount = lineCount - entries.size();
+		} finally {
+			closeQuietly(reader);
+		}
+
+		// Drop the entries whose files disappeared and leftovers from interrupted writes
+		for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Long> entry = it.next();
+			if (!getDataFile(entry.getKey()).exists() || !getMetadataFile(entry.getKey()).exists()) {
+				deleteEntryFiles(entry.getKey());
+				size -= entry.getValue();
+				it.remove();
+			}
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(TMP_SUFFIX)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private void readJournalLine(String line) throws IOException {
+		String[] parts = line.split(" ");
+		if ((parts.length == 3) && CLEAN.equals(parts[0])) {
+			Long previousSize;
+			try {
+				previousSize = entries.put(parts[1], Long.valueOf(parts[2]));
+			} catch (NumberFormatException e) {
+				throw new IOException("Unexpected journal line: " + line);
+			}
+			if (previousSize != null) {
+				size -= previousSize;
+			}
+			size += entries.get(parts[1]);
+		} else if ((parts.length == 2) && READ.equals(parts[0])) {
+			// Updates the access order
+			entries.get(parts[1]);
+		} else if ((parts.length == 2) && REMOVE.equals(parts[0])) {
+			Long previousSize = entries.remove(parts[1]);
+			if (previousSize != null) {
+				size -= previousSize;
+			}
+		} else {
+			throw new IOException("Unexpected journal line: " + line);
+		}
+	}
+
+	/**
+	 * Writes a new journal containing only the current entries, then replaces the old one.
+	 */
+	private void rebuildJournal() throws IOException {
+		if (journalWriter != null) {
+			journalWriter.close();
+		}
+		File tmpJournal = new File(directory, JOURNAL_FILE_TMP);
+		Writer writer = new BufferedWriter(new FileWriter(tmpJournal));
+		try {
+			writer.write(MAGIC + "\n" + VERSION + "\n\n");
+			for (Map.Entry<String, Long> entry : entries.entrySet()) {
+				writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmpJournal.renameTo(new File(directory, JOURNAL_FILE))) {
+			throw new IOException("Unable to replace the journal");
+		}
+		journalWriter = new BufferedWriter(new FileWriter(new File(directory, JOURNAL_FILE), true));
+		redundantOpCount = 0;
+	}
+
+	private void clearDirectory() {
+		entries.clear();
+		size = 0L;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private void journal(String op, String key) throws IOException {
+		journalWriter.write(op + ' ' + key + '\n');
+		journalWriter.flush();
+	}
+
+	private void journalClean(String key, long entrySize) throws IOException {
+		// The size is needed to replay the journal
+		journal(CLEAN, key + ' ' + entrySize);
+	}
+
+	private void journalRedundantOp(String op, String key) throws IOException {
+		journal(op, key);
+		if ((++redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD) && (redundantOpCount >= entries.size())) {
+			rebuildJournal();
+		}
+	}
+
+	/**
+	 * @return A snapshot of the entry, or null if it doesn't exist. The entry becomes the most
+	 *         recently used one.
+	 */
+	public synchronized Snapshot get(String key) {
+		validateKey(key);
+		// Unlike containsKey(), get() updates the access order
+		if (entries.get(key) == null) {
+			return null;
+		}
+		Properties metadata = readMetadata(getMetadataFile(key));
+		if (metadata == null) {
+			// The entry is unreadable
+			removeInternal(key);
+			return null;
+		}
+		try {
+			journalRedundantOp(READ, key);
+		} catch (IOException ignore) {
+			// Only the access order is lost
+		}
+		return new Snapshot(getDataFile(key), metadata);
+	}
+
+	/**
+	 * @return An editor to create or replace the entry. Concurrent editors for the same key are
+	 *         allowed; the last one to commit wins.
+	 */
+	public synchronized Editor edit(String key) {
+		validateKey(key);
+		return new Editor(key, new File(directory, key + '.' + (nextTmpId++) + DATA_SUFFIX + TMP_SUFFIX));
+	}
+
+	synchronized void completeEdit(Editor editor, Properties metadata) throws IOException {
+		File dataTmp = editor.dataFile;
+		File metadataTmp = new File(directory, dataTmp.getName() + METADATA_SUFFIX + TMP_SUFFIX);
+		try {
+			writeMetadata(metadataTmp, metadata);
+			File dataFile = getDataFile(editor.key);
+			File metadataFile = getMetadataFile(editor.key);
+			dataFile.delete();
+			metadataFile.delete();
+			if (!dataTmp.renameTo(dataFile) || !metadataTmp.renameTo(metadataFile)) {
+				throw new IOException("Unable to publish entry " + editor.key);
+			}
+			Long previousSize = entries.put(editor.key, dataFile.length() + metadataFile.length());
+			if (previousSize != null) {
+				size -= previousSize;
+				redundantOpCount++;
+			}
+			size += entries.get(editor.key);
+			journalClean(editor.key, entries.get(editor.key));
+			trimToSize();
+		} catch (IOException e) {
+			dataTmp.delete();
+			metadataTmp.delete();
+			removeInternal(editor.key);
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces the metadata of an existing entry, keeping its data.
+	 *
+	 * @return false if the entry doesn't exist anymore.
+	 */
+	public synchronized boolean updateMetadata(String key, Properties metadata) throws IOException {
+		validateKey(key);
+		if (!entries.containsKey(key)) {
+			return false;
+		}
+		File metadataFile = getMetadataFile(key);
+		File metadataTmp = new File(directory, key + '.' + (nextTmpId++) + METADATA_SUFFIX + TMP_SUFFIX);
+		writeMetadata(metadataTmp, metadata);
+		metadataFile.delete();
+		if (!metadataTmp.renameTo(metadataFile)) {
+			metadataTmp.delete();
+			removeInternal(key);
+			return false;
+		}
+		long entrySize = getDataFile(key).length() + metadataFile.length();
+		size += entrySize - entries.put(key, entrySize);
+		redundantOpCount++;
+		journalClean(key, entrySize);
+		return true;
+	}
+
+	/**
+	 * Deletes an entry.
+	 *
+	 * @return false if the entry didn't exist.
+	 */
+	public synchronized boolean remove(String key) {
+		validateKey(key);
+		return removeInternal(key);
+	}
+
+	private boolean removeInternal(String key) {
+		Long entrySize = entries.remove(key);
+		if (entrySize == null) {
+			return false;
+		}
+		deleteEntryFiles(key);
+		size -= entrySize;
+		try {
+			journalRedundantOp(REMOVE, key);
+		} catch (IOException ignore) {
+			// The entry files are gone anyway and will be ignored at next startup
+		}
+		return true;
+	}
+
+	private void trimToSize() {
+		if (size <= maxSize) {
+			return;
+		}
+		// The iteration order is the access order, least recently used first
+		List<String> evicted = new ArrayList<String>();
+		long newSize = size;
+		for (Map.Entry<String, Long> entry : entries.entrySet()) {
+			if (newSize <= maxSize) {
+				break;
+			}
+			evicted.add(entry.getKey());
+			newSize -= entry.getValue();
+		}
+		for (String key : evicted) {
+			removeInternal(key);
+		}
+	}
+
+	/**
+	 * @return The number of bytes currently used by the cache.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	public long maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Closes the journal. The cache can't be used afterwards.
+	 */
+	public synchronized void close() throws IOException {
+		if (journalWriter != null) {
+			journalWriter.close();
+			journalWriter = null;
+		}
+	}
+
+	private File getDataFile(String key) {
+		return new File(directory, key + DATA_SUFFIX);
+	}
+
+	private File getMetadataFile(String key) {
+		return new File(directory, key + METADATA_SUFFIX);
+	}
+
+	private void deleteEntryFiles(String key) {
+		getDataFile(key).delete();
+		getMetadataFile(key).delete();
+	}
+
+	private static void validateKey(String key) {
+		if (!KEY_PATTERN.matcher(key).matches()) {
+			throw new IllegalArgumentException("Invalid key: " + key);
+		}
+	}
+
+	private static Properties readMetadata(File file) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			Properties metadata = new Properties();
+			metadata.load(in);
+			return metadata;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private static void writeMetadata(File file, Properties metadata) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			metadata.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package com.google.sample.castcompanionlibrary.cast.imageloader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Downloads encoded images, optionally through a {@link DiskLruCache}.
+ *
+ * Cached images are served from disk without any network access while they are fresh according to
+ * their Cache-Control or Expires headers. Once stale, they are revalidated with a conditional
+ * request using their ETag and Last-Modified headers, so unchanged images are never downloaded
+ * twice. If the network is unavailable, stale images are served anyway.
+ */
+class HttpImageFetcher {
+
+	private static final int CONNECT_TIMEOUT_MS = 15000;
+	private static final int READ_TIMEOUT_MS = 20000;
+	private static final int BUFFER_SIZE = 8192;
+	// Heuristic freshness for responses without explicit expiration, as recommended by RFC 2616
+	private static final float HEURISTIC_FRESHNESS_FACTOR = 0.1f;
+	private static final long MAX_HEURISTIC_FRESHNESS_MS = 24L * 60L * 60L * 1000L;
+
+	private static final String META_ETAG = "etag";
+	private static final String META_LAST_MODIFIED = "last-modified";
+	private static final String META_EXPIRES = "expires";
+
+	private final DiskLruCache diskCache;
+
+	/**
+	 * @param diskCache
+	 *            May be null, in which case images are always downloaded.
+	 */
+	HttpImageFetcher(DiskLruCache diskCache) {
+		this.diskCache = diskCache;
+	}
+
+	/**
+	 * Fetches the encoded image. Must be called from a worker thread.
+	 *
+	 * @return The image data, or null in case of error.
+	 */
+	ImageSource fetch(String url) {
+		if ((diskCache == null) || !isHttpUrl(url)) {
+			return download(url);
+		}
+
+		String key = keyFor(url);
+		DiskLruCache.Snapshot snapshot = diskCache.get(key);
+		if ((snapshot != null) && isFresh(snapshot.getMetadata())) {
+			return ImageSource.fromFile(snapshot.getFile());
+		}
+
+		HttpURLConnection connection = null;
+		try {
+			connection = openConnection(url);
+			if (snapshot != null) {
+				Properties metadata = snapshot.getMetadata();
+				String etag = metadata.getProperty(META_ETAG);
+				if (etag != null) {
+					connection.setRequestProperty("If-None-Match", etag);
+				}
+				String lastModified = metadata.getProperty(META_LAST_MODIFIED);
+				if (lastModified != null) {
+					connection.setRequestProperty("If-Modified-Since", lastModified);
+				}
+			}
+
+			int responseCode = connection.getResponseCode();
+			if ((responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) && (snapshot != null)) {
+				// Still valid: only refresh the expiration date
+				diskCache.updateMetadata(key, buildMetadata(connection, snapshot.getMetadata()));
+				return ImageSource.fromFile(snapshot.getFile());
+			}
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				return staleOrNull(snapshot);
+			}
+
+			InputStream in = connection.getInputStream();
+			try {
+				if (isStorable(connection)) {
+					return writeToCache(key, in, buildMetadata(connection, null));
+				}
+				return ImageSource.fromBytes(readFully(in));
+			} finally {
+				DiskLruCache.closeQuietly(in);
+			}
+		} catch (IOException e) {
+			return staleOrNull(snapshot);
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	private ImageSource writeToCache(String key, InputStream in, Properties metadata) throws IOException {
+		DiskLruCache.Editor editor = diskCache.edit(key);
+		try {
+			OutputStream out = editor.newOutputStream();
+			try {
+				copy(in, out);
+			} finally {
+				out.close();
+			}
+			editor.commit(metadata);
+		} catch (IOException e) {
+			editor.abort();
+			throw e;
+		}
+		DiskLruCache.Snapshot snapshot = diskCache.get(key);
+		return (snapshot == null) ? null : ImageSource.fromFile(snapshot.getFile());
+	}
+
+	private static ImageSource staleOrNull(DiskLruCache.Snapshot snapshot) {
+		return (snapshot == null) ? null : ImageSource.fromFile(snapshot.getFile());
+	}
+
+	private static ImageSource download(String url) {
+		InputStream in = null;
+		try {
+			URLConnection connection = new URL(url).openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+			connection.setReadTimeout(READ_TIMEOUT_MS);
+			in = connection.getInputStream();
+			return ImageSource.fromBytes(readFully(in));
+		} catch (IOException e) {
+			return null;
+		} finally {
+			DiskLruCache.closeQuietly(in);
+		}
+	}
+
+	private static boolean isHttpUrl(String url) {
+		String lowerCaseUrl = url.toLowerCase();
+		return lowerCaseUrl.startsWith("http://") || lowerCaseUrl.startsWith("https://");
+	}
+
+	private static HttpURLConnection openConnection(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		connection.setReadTimeout(READ_TIMEOUT_MS);
+		// We are handling caching ourselves
+		connection.setUseCaches(false);
+		return connection;
+	}
+
+	private static boolean isStorable(HttpURLConnection connection) {
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		return (cacheControl == null) || !cacheControl.toLowerCase().contains("no-store");
+	}
+
+	private static boolean isFresh(Properties metadata) {
+		try {
+			return System.currentTimeMillis() < Long.parseLong(metadata.getProperty(META_EXPIRES, "0"));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Builds the metadata of a cache entry from the response headers. For 304 responses, the
+	 * validators of the previous metadata are kept unless the response provides new ones.
+	 */
+	private static Properties buildMetadata(HttpURLConnection connection, Properties previous) {
+		Properties metadata = new Properties();
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if ((previous != null) && (etag == null)) {
+			etag = previous.getProperty(META_ETAG);
+		}
+		if ((previous != null) && (lastModified == null)) {
+			lastModified = previous.getProperty(META_LAST_MODIFIED);
+		}
+		if (etag != null) {
+			metadata.setProperty(META_ETAG, etag);
+		}
+		if (lastModified != null) {
+			metadata.setProperty(META_LAST_MODIFIED, lastModified);
+		}
+		metadata.setProperty(META_EXPIRES, String.valueOf(computeExpiration(connection)));
+		return metadata;
+	}
+
+	private static long computeExpiration(HttpURLConnection connection) {
+		long now = System.currentTimeMillis();
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-cache") || directive.equals("must-revalidate")) {
+					return 0L;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						return now + Long.parseLong(directive.substring(8).trim()) * 1000L;
+					} catch (NumberFormatException ignore) {
+					}
+				}
+			}
+		}
+		long expires = connection.getHeaderFieldDate("Expires", 0L);
+		if (expires > 0L) {
+			return expires;
+		}
+		long lastModified = connection.getHeaderFieldDate("Last-Modified", 0L);
+		if (lastModified > 0L) {
+			long date = connection.getHeaderFieldDate("Date", now);
+			long freshness = (long) ((date - lastModified) * HEURISTIC_FRESHNESS_FACTOR);
+			return now + Math.max(0L, Math.min(freshness, MAX_HEURISTIC_FRESHNESS_MS));
+		}
+		return 0L;
+	}
+
+	static String keyFor(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(url.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE * 4);
+		copy(in, out);
+		return out.toByteArray();
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+	}
+
+	/**
+	 * Encoded image data which can be read several times.
+	 */
+	static abstract class ImageSource {
+
+		abstract InputStream open() throws IOException;
+
+		static ImageSource fromFile(final File file) {
+			return new ImageSource() {
+
+				@Override
+				InputStream open() throws IOException {
+					return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+				}
+			};
+		}
+
+		static ImageSource fromBytes(final byte[] data) {
+			return new ImageSource() {
+
+				@Override
+				InputStream open() {
+					return new ByteArrayInputStream(data);
+				}
+			};
+		}
+	}
+}
@@ -6,7 +6,9 @@ import android.graphics.Bitmap;
  * Image Loader abstraction to delegate networking, caching and requests management.
  * 
  * You can provide your own implementation to use your favorite image loader library, or use the
- * default one.
+ * default one. Implementations which can decode images at their display size can also implement
+ * {@link SizedImageLoader}, and the ones which reuse the memory of their bitmaps
+ * {@link ReusableImageLoader}.
  * 
  * All methods will be called on the UI thread and must call the callbacks on the UI thread.
  * 
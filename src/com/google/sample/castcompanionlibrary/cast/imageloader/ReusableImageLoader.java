@@ -0,0 +1,36 @@
+package com.google.sample.castcompanionlibrary.cast.imageloader;
+
+import android.graphics.Bitmap;
+
+/**
+ * Optional extension of {@link ImageLoader} for implementations which reuse the memory of the
+ * bitmaps they deliver. The library tells them when it stops using a bitmap, and asks for the
+ * ownership of the bitmaps it hands over to components which may modify or recycle them.
+ * 
+ * All methods will be called on the UI thread.
+ * 
+ * @author Christophe Beyls
+ * 
+ */
+public interface ReusableImageLoader extends ImageLoader {
+
+	/**
+	 * Signals that a bitmap delivered to the callbacks is not displayed nor used anymore by the
+	 * caller, so its memory may be reused.
+	 * 
+	 * @param bitmap
+	 *            Non-null bitmap previously delivered by this loader.
+	 */
+	void releaseBitmap(Bitmap bitmap);
+
+	/**
+	 * Transfers a bitmap delivered to the callbacks to the exclusive ownership of the caller, who
+	 * may then modify or recycle it. This also counts as a release of the bitmap.
+	 * 
+	 * @param bitmap
+	 *            Non-null bitmap previously delivered by this loader.
+	 * @return The same bitmap if nobody else uses it, otherwise a copy. May be null if the copy
+	 *         failed.
+	 */
+	Bitmap detachBitmap(Bitmap bitmap);
+}
@@ -0,0 +1,40 @@
+package com.google.sample.castcompanionlibrary.cast.imageloader;
+
+import android.graphics.Bitmap;
+
+/**
+ * Optional extension of {@link ImageLoader} for implementations which can decode images directly
+ * at the size they will be displayed at. Other implementations receive the plain
+ * {@link ImageLoader#load(String, ImageLoader.Callbacks)} requests.
+ * 
+ * All methods will be called on the UI thread and must call the callbacks on the UI thread.
+ * 
+ * @author Christophe Beyls
+ * 
+ */
+public interface SizedImageLoader extends ImageLoader {
+
+	/**
+	 * Loads an image from the network.
+	 * 
+	 * The image should be downscaled to the smallest size which still covers the requested
+	 * dimensions, keeping its aspect ratio. Images smaller than the requested size are never
+	 * upscaled.
+	 * 
+	 * @param url
+	 *            Non-null url.
+	 * @param width
+	 *            Target width in pixels, or 0 if the width is not constrained.
+	 * @param height
+	 *            Target height in pixels, or 0 if the height is not constrained.
+	 * @param config
+	 *            Preferred bitmap configuration, for example RGB_565 for opaque artwork, or null
+	 *            to use the default one.
+	 * @param callbacks
+	 *            Mandatory callbacks to be called on the UI thread at the end of the request.
+	 * @return A token representing the pending request, that the implementation will be able to
+	 *         manage. May be null if the request is handled immediately or if tokens are not
+	 *         supported.
+	 */
+	Request load(String url, int width, int height, Bitmap.Config config, Callbacks callbacks);
+}
@@ -0,0 +1,212 @@
+package com.google.sample.castcompanionlibrary.cast.player;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import com.google.android.gms.cast.MediaStatus;
+
+/**
+ * Extrapolates the playback position of the remote media from the last received MediaStatus,
+ * using its stream position, its playback rate and the time at which it was received. The media
+ * channel is never queried between status updates.
+ *
+ * While started and playing, the listener is notified on every frame on Jelly Bean and later,
+ * or once per second of media time on older versions. Nothing runs while the media is paused,
+ * buffering or idle.
+ *
+ * Must be used from the UI thread.
+ */
+class ProgressTracker {
+
+	interface Listener {
+
+		void onProgress(int position, int duration);
+	}
+
+	private final Listener mListener;
+	private final Ticker mTicker;
+	private int mPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN;
+	private long mPosition;
+	private long mDuration;
+	private double mPlaybackRate;
+	private long mSyncTime;
+	private boolean mStarted;
+
+	ProgressTracker(Listener listener) {
+		mListener = listener;
+		mTicker = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) ? new FrameTicker(this)
+				: new HandlerTicker(this);
+	}
+
+	/**
+	 * Resynchronizes the position with a fresh status received from the receiver.
+	 *
+	 * @param duration
+	 *            Duration of the media in milliseconds, or 0 if unknown.
+	 */
+	void sync(MediaStatus status, long duration) {
+		if (status == null) {
+			return;
+		}
+		mPlayerState = status.getPlayerState();
+		mPosition = status.getStreamPosition();
+		mPlaybackRate = status.getPlaybackRate();
+		mDuration = duration;
+		mSyncTime = SystemClock.elapsedRealtime();
+		onSync();
+	}
+
+	/**
+	 * Moves the position locally after a seek request, until the receiver confirms it.
+	 */
+	void seekTo(long position) {
+		mPosition = position;
+		mSyncTime = SystemClock.elapsedRealtime();
+		onSync();
+	}
+
+	private void onSync() {
+		if (mStarted) {
+			tick();
+			updateTicker();
+		}
+	}
+
+	/**
+	 * Starts notifying the listener, typically when the progress becomes visible.
+	 */
+	void start() {
+		if (!mStarted) {
+			mStarted = true;
+			tick();
+			updateTicker();
+		}
+	}
+
+	/**
+	 * Stops notifying the listener until the next call to start().
+	 */
+	void stop() {
+		mStarted = false;
+		mTicker.stop();
+	}
+
+	private void updateTicker() {
+		if (isPlaying()) {
+			mTicker.start();
+		} else {
+			mTicker.stop();
+		}
+	}
+
+	boolean isPlaying() {
+		return (mPlayerState == MediaStatus.PLAYER_STATE_PLAYING) && (mPlaybackRate > 0d);
+	}
+
+	/**
+	 * @return The extrapolated position, in milliseconds.
+	 */
+	long getPosition() {
+		long position = mPosition;
+		if (isPlaying()) {
+			position += (long) ((SystemClock.elapsedRealtime() - mSyncTime) * mPlaybackRate);
+		}
+		if (mDuration > 0L) {
+			position = Math.min(position, mDuration);
+		}
+		return Math.max(0L, position);
+	}
+
+	void tick() {
+		if (mDuration > 0L) {
+			mListener.onProgress((int) getPosition(), (int) mDuration);
+		}
+	}
+
+	/**
+	 * @return The delay in milliseconds until the next second of media time.
+	 */
+	long getDelayToNextSecond() {
+		long remaining = 1000L - (getPosition() % 1000L);
+		return Math.max(1L, (long) (remaining / Math.max(mPlaybackRate, 0.01d)));
+	}
+
+	private interface Ticker {
+
+		void start();
+
+		void stop();
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class FrameTicker implements Ticker, Choreographer.FrameCallback {
+
+		private final ProgressTracker mTracker;
+		private boolean mRunning;
+
+		FrameTicker(ProgressTracker tracker) {
+			mTracker = tracker;
+		}
+
+		@Override
+		public void start() {
+			if (!mRunning) {
+				mRunning = true;
+				Choreographer.getInstance().postFrameCallback(this);
+			}
+		}
+
+		@Override
+		public void stop() {
+			if (mRunning) {
+				mRunning = false;
+				Choreographer.getInstance().removeFrameCallback(this);
+			}
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			if (mRunning) {
+				mTracker.tick();
+				Choreographer.getInstance().postFrameCallback(this);
+			}
+		}
+	}
+
+	private static class HandlerTicker implements Ticker, Runnable {
+
+		private final ProgressTracker mTracker;
+		private final Handler mHandler = new Handler(Looper.getMainLooper());
+		private boolean mRunning;
+
+		HandlerTicker(ProgressTracker tracker) {
+			mTracker = tracker;
+		}
+
+		@Override
+		public void start() {
+			// Realign on the next second boundary after each resync
+			mHandler.removeCallbacks(this);
+			mRunning = true;
+			mHandler.postDelayed(this, mTracker.getDelayToNextSecond());
+		}
+
+		@Override
+		public void stop() {
+			mRunning = false;
+			mHandler.removeCallbacks(this);
+		}
+
+		@Override
+		public void run() {
+			if (mRunning) {
+				mTracker.tick();
+				mHandler.postDelayed(this, mTracker.getDelayToNextSecond());
+			}
+		}
+	}
+}
@@ -41,8 +41,10 @@ public class VideoCastControllerActivity extends VideoCastActivity implements IV
 	private View mPageView;
 	private ImageView mPlayPause;
 	private TextView mLiveText;
-	TextView mStart;
+	private TextView mStart;
 	private TextView mEnd;
+	private int mDisplayedPositionSeconds = -1;
+	private int mDisplayedDurationSeconds = -1;
 	private SeekBar mSeekbar;
 	private TextView mLine1;
 	private TextView mLine2;
@@ -166,7 +168,7 @@ public class VideoCastControllerActivity extends VideoCastActivity implements IV
 
 			@Override
 			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-				mStart.setText(stringForTime(progress));
+				updateStartText(progress);
 				try {
 					if (null != mListener) {
 						mListener.onProgressChanged(seekBar, progress, fromUser);
@@ -225,11 +227,42 @@ public class VideoCastControllerActivity extends VideoCastActivity implements IV
 
 	@Override
 	public void updateSeekbar(int position, int duration) {
-		// Call setMax before setProgress for an immediate display update
-		mSeekbar.setMax(duration);
-		mSeekbar.setProgress(position);
-		mStart.setText(stringForTime(position));
-		mEnd.setText(stringForTime(duration));
+		if ((duration != mSeekbar.getMax()) || isVisibleProgressChange(position, duration)) {
+			// Call setMax before setProgress for an immediate display update
+			mSeekbar.setMax(duration);
+			mSeekbar.setProgress(position);
+		}
+		updateStartText(position);
+		int durationSeconds = duration / 1000;
+		if (durationSeconds != mDisplayedDurationSeconds) {
+			mDisplayedDurationSeconds = durationSeconds;
+			mEnd.setText(stringForTime(duration));
+		}
+	}
+
+	/*
+	 * Progress changes smaller than one pixel of the track would redraw the seekbar for nothing.
+	 */
+	private boolean isVisibleProgressChange(int position, int duration) {
+		int trackWidth = mSeekbar.getWidth() - mSeekbar.getPaddingLeft()
+				- mSeekbar.getPaddingRight();
+		if ((trackWidth <= 0) || (duration <= 0)) {
+			// Not laid out yet
+			return true;
+		}
+		return (long) Math.abs(position - mSeekbar.getProgress()) * trackWidth >= duration;
+	}
+
+	/*
+	 * The progress may be updated on every frame, so only change the text when the displayed
+	 * value changes.
+	 */
+	void updateStartText(int position) {
+		int positionSeconds = position / 1000;
+		if (positionSeconds != mDisplayedPositionSeconds) {
+			mDisplayedPositionSeconds = positionSeconds;
+			mStart.setText(stringForTime(position));
+		}
 	}
 
 	@SuppressWarnings("deprecation")
@@ -7,15 +7,16 @@ import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.view.View;
 import android.widget.SeekBar;
 
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
 import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.RemoteMediaPlayer;
 import com.google.sample.castcompanionlibrary.R;
 import com.google.sample.castcompanionlibrary.cast.VideoCastManager;
 import com.google.sample.castcompanionlibrary.cast.callbacks.VideoCastConsumerImpl;
@@ -36,9 +37,11 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 
 	private MediaInfo mSelectedMedia;
 	VideoCastManager mCastManager;
-	Handler mHandler;
 	IVideoCastController mCastController;
+	private ProgressTracker mProgressTracker;
 	private ImageLoader.Request mImageRequest;
+	// The loaded image, to release once replaced
+	private Bitmap mImage;
 	int mPlaybackState = MediaStatus.PLAYER_STATE_UNKNOWN;
 	private boolean mIsFresh = false;
 
@@ -68,7 +71,7 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 		super.onCreate(savedInstanceState);
 		// Retain this fragment across configuration changes.
 		setRetainInstance(true);
-		mHandler = new Handler();
+		mProgressTracker = new ProgressTracker(mProgressListener);
 	}
 
 	@Override
@@ -140,6 +143,7 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 		@Override
 		public void onRemoteMediaPlayerStatusUpdated() {
 			updatePlayerStatus();
+			syncProgress();
 		}
 
 		@Override
@@ -153,33 +157,28 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 		}
 	};
 
-	final Runnable mUpdateSeekbarRunnable = new Runnable() {
+	private final ProgressTracker.Listener mProgressListener = new ProgressTracker.Listener() {
 
 		@Override
-		public void run() {
-			if ((mPlaybackState != MediaStatus.PLAYER_STATE_BUFFERING) && mCastManager.isConnected()) {
-				try {
-					int duration = (int) mCastManager.getMediaDuration();
-					if (duration > 0) {
-						int currentPos = (int) mCastManager.getCurrentMediaPosition();
-						mCastController.updateSeekbar(currentPos, duration);
-					}
-				} catch (TransientNetworkDisconnectionException ignore) {
-				} catch (NoConnectionException ignore) {
-				}
+		public void onProgress(int position, int duration) {
+			if (mPlaybackState != MediaStatus.PLAYER_STATE_BUFFERING) {
+				mCastController.updateSeekbar(position, duration);
 			}
-
-			mHandler.postDelayed(mUpdateSeekbarRunnable, 1000L);
 		}
 	};
 
-	private void stopTrickplayTimer() {
-		mHandler.removeCallbacks(mUpdateSeekbarRunnable);
-	}
-
-	private void restartTrickplayTimer() {
-		stopTrickplayTimer();
-		mHandler.postDelayed(mUpdateSeekbarRunnable, 100L);
+	/*
+	 * Resynchronizes the extrapolated progress with the last status received from the receiver.
+	 */
+	void syncProgress() {
+		RemoteMediaPlayer player = mCastManager.getRemoteMediaPlayer();
+		if (player == null) {
+			return;
+		}
+		MediaStatus status = player.getMediaStatus();
+		if (status != null) {
+			mProgressTracker.sync(status, player.getStreamDuration());
+		}
 	}
 
 	void updateMetadata(MediaInfo mediaInfo) {
@@ -203,10 +202,13 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 
 		@Override
 		public void onResponse(Bitmap bitmap) {
+			Bitmap previousImage = mImage;
+			mImage = bitmap;
 			if (bitmap == null) {
 				bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.dummy_album_art_large);
 			}
 			mCastController.setImage(bitmap);
+			mCastManager.releaseImage(previousImage);
 		}
 	};
 
@@ -215,7 +217,9 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 	 * image to avoid unnecessary network calls.
 	 */
 	private void showImage(String url) {
-		mImageRequest = mCastManager.loadImage(url, mImageLoaderCallbacks, mImageRequest);
+		DisplayMetrics metrics = getResources().getDisplayMetrics();
+		mImageRequest = mCastManager.loadImage(url, metrics.widthPixels, metrics.heightPixels, Bitmap.Config.RGB_565,
+				mImageLoaderCallbacks, mImageRequest);
 	}
 
 	void updatePlayerStatus() {
@@ -265,12 +269,13 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 			mCastConsumer.onRemoteMediaPlayerMetadataUpdated();
 			updatePlayerStatus();
 		}
-		restartTrickplayTimer();
+		syncProgress();
+		mProgressTracker.start();
 	}
 
 	@Override
 	public void onStop() {
-		stopTrickplayTimer();
+		mProgressTracker.stop();
 		mCastManager.removeVideoCastConsumer(mCastConsumer);
 		mIsFresh = false;
 		super.onStop();
@@ -280,6 +285,8 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 	public void onDestroy() {
 		mCastManager.cancelImageRequest(mImageRequest);
 		mImageRequest = null;
+		mCastManager.releaseImage(mImage);
+		mImage = null;
 		super.onDestroy();
 	}
 
@@ -297,7 +304,9 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 				mCastManager.seek(seekBar.getProgress());
 				break;
 			}
-			restartTrickplayTimer();
+			// Show the new position until the receiver confirms it
+			mProgressTracker.seekTo(seekBar.getProgress());
+			mProgressTracker.start();
 		} catch (Exception e) {
 			mCastController.closeActivity();
 		}
@@ -305,7 +314,7 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 
 	@Override
 	public void onStartTrackingTouch(SeekBar seekBar) {
-		stopTrickplayTimer();
+		mProgressTracker.stop();
 	}
 
 	@Override
@@ -322,7 +331,6 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 		case MediaStatus.PLAYER_STATE_PAUSED:
 			setPlaybackStatus(MediaStatus.PLAYER_STATE_BUFFERING);
 			mCastManager.play();
-			restartTrickplayTimer();
 			break;
 		case MediaStatus.PLAYER_STATE_PLAYING:
 			setPlaybackStatus(MediaStatus.PLAYER_STATE_BUFFERING);
@@ -335,7 +343,6 @@ public class VideoCastControllerFragment extends Fragment implements OnVideoCast
 			} else {
 				mCastManager.loadMedia(mSelectedMedia, true, 0);
 			}
-			restartTrickplayTimer();
 			break;
 		}
 	}
@@ -66,6 +66,8 @@ public class VideoCastNotificationService extends Service implements VideoCastMa
 	Notification mNotification;
 	boolean mVisible;
 	private ImageLoader.Request mVideoArtRequest;
+	// The loaded art held by mNotification, to release once replaced
+	private Bitmap mVideoArt;
 
 	private final VideoCastConsumerImpl mConsumer = new VideoCastConsumerImpl() {
 
@@ -130,9 +132,11 @@ public class VideoCastNotificationService extends Service implements VideoCastMa
 			return;
 		}
 		mCastManager.cancelImageRequest(mVideoArtRequest);
-		mVideoArtRequest = mCastManager.loadImage(Utils.getImageUrl(info, 0), new ImageLoader.Callbacks() {
+		ImageLoader.Callbacks callbacks = new ImageLoader.Callbacks() {
 			@Override
 			public void onResponse(Bitmap bitmap) {
+				Bitmap previousArt = mVideoArt;
+				mVideoArt = bitmap;
 				try {
 					if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
 						mNotification = buildLegacyNotification(info, mediaStatus, bitmap);
@@ -145,8 +149,16 @@ public class VideoCastNotificationService extends Service implements VideoCastMa
 				} catch (Exception e) {
 					LOGE(TAG, "Failed to set notification for " + info.toString(), e);
 				}
+				mCastManager.releaseImage(previousArt);
 			}
-		}, null);
+		};
+		int iconSize = getResources().getDimensionPixelSize(R.dimen.notification_icon_size);
+		mVideoArtRequest = mCastManager.loadImage(Utils.getImageUrl(info, 0), iconSize, iconSize, null, callbacks, null);
+	}
+
+	private void releaseVideoArt() {
+		mCastManager.releaseImage(mVideoArt);
+		mVideoArt = null;
 	}
 
 	void onRemoteMediaPlayerStatusUpdated(int mediaStatus) {
@@ -158,6 +170,7 @@ public class VideoCastNotificationService extends Service implements VideoCastMa
 				mCastManager.cancelImageRequest(mVideoArtRequest);
 				mNotification = null;
 				stopForeground(true);
+				releaseVideoArt();
 			}
 		} catch (TransientNetworkDisconnectionException e) {
 			LOGE(TAG, "Failed to update the playback status due to network issues", e);
@@ -174,6 +187,7 @@ public class VideoCastNotificationService extends Service implements VideoCastMa
 	public void onDestroy() {
 		mCastManager.cancelImageRequest(mVideoArtRequest);
 		mVideoArtRequest = null;
+		releaseVideoArt();
 		LOGD(TAG, "onDestroy was called");
 		mCastManager.removeVideoCastConsumer(mConsumer);
 		mCastManager.removeUiVisibilityListener(this);
@@ -0,0 +1,112 @@
+package com.google.sample.castcompanionlibrary.utils;
+
+/**
+ * A fixed-size histogram of durations in milliseconds. Values are counted in logarithmic buckets
+ * (4 per power of two, so percentiles are accurate within 25%), which keeps recording cheap and
+ * allocation-free however many values are recorded. Values above about 37 hours are counted in
+ * the last bucket.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS_PER_POWER_OF_TWO = 4;
+    private static final int BUCKET_COUNT = 26 * BUCKETS_PER_POWER_OF_TWO;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    public synchronized void record(long durationMs) {
+        if (durationMs < 0L) {
+            durationMs = 0L;
+        }
+        mBuckets[getBucket(durationMs)]++;
+        mCount++;
+        mSum += durationMs;
+        mMin = Math.min(mMin, durationMs);
+        mMax = Math.max(mMax, durationMs);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The smallest recorded value, or 0 if no value was recorded.
+     */
+    public synchronized long getMin() {
+        return (mCount == 0L) ? 0L : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0 if no value was recorded.
+     */
+    public synchronized double getMean() {
+        return (mCount == 0L) ? 0d : (double) mSum / mCount;
+    }
+
+    /**
+     * Returns an approximation of the percentile, which never exceeds the largest recorded value.
+     *
+     * @param percentile A value between 0 and 100, for instance 95 for the 95th percentile
+     * @return The percentile, or 0 if no value was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0L) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(mCount * Math.max(0d, Math.min(percentile, 100d)) / 100d);
+        rank = Math.max(1L, rank);
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.max(mMin, Math.min(getBucketUpperBound(i), mMax));
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0L;
+        }
+        mCount = 0L;
+        mSum = 0L;
+        mMin = Long.MAX_VALUE;
+        mMax = 0L;
+    }
+
+    private static int getBucket(long value) {
+        if (value < BUCKETS_PER_POWER_OF_TWO) {
+            return (int) value;
+        }
+        // Position of the highest bit, then the 2 next bits give the quarter within the power of two
+        int power = 63 - Long.numberOfLeadingZeros(value);
+        int quarter = (int) (value >>> (power - 2)) & (BUCKETS_PER_POWER_OF_TWO - 1);
+        int bucket = (power - 1) * BUCKETS_PER_POWER_OF_TWO + quarter;
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static long getBucketUpperBound(int bucket) {
+        if (bucket < BUCKETS_PER_POWER_OF_TWO) {
+            return bucket;
+        }
+        int power = bucket / BUCKETS_PER_POWER_OF_TWO + 1;
+        int quarter = bucket % BUCKETS_PER_POWER_OF_TWO;
+        return ((long) (BUCKETS_PER_POWER_OF_TWO + quarter + 1) << (power - 2)) - 1L;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + mCount + ", mean=" + Math.round(getMean()) + "ms, p50=" + getPercentile(50d)
+                + "ms, p95=" + getPercentile(95d) + "ms, max=" + mMax + "ms";
+    }
+}
@@ -0,0 +1,166 @@
+package com.google.sample.castcompanionlibrary.utils;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+
+/**
+ * A copy-on-write set of listeners. Each modification publishes a new immutable array, so
+ * iterating over {@link #snapshot()} never allocates, never locks and is not affected by listeners
+ * added or removed during the dispatch, including by the listeners themselves.
+ * <p/>
+ * In weak mode, listeners are only weakly referenced, so components which forget to unregister
+ * themselves (a leaked activity for instance) are dropped once garbage collected. Snapshots then
+ * have to be built on each call. Listeners must be referenced elsewhere in this mode, anonymous
+ * listeners would be collected right away.
+ *
+ * @param <T> The listener type
+ */
+public final class ListenerRegistry<T> {
+
+    private final Class<T> mType;
+    private final boolean mWeak;
+    private final T[] mEmpty;
+    // Strong mode: T[], weak mode: WeakReference<T>[]
+    private volatile Object[] mListeners;
+
+    /**
+     * Creates a registry holding strong references to its listeners.
+     */
+    public ListenerRegistry(Class<T> type) {
+        this(type, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ListenerRegistry(Class<T> type, boolean weak) {
+        mType = type;
+        mWeak = weak;
+        mEmpty = (T[]) Array.newInstance(type, 0);
+        mListeners = weak ? new WeakReference<?>[0] : mEmpty;
+    }
+
+    /**
+     * Adds a listener if it is not already registered.
+     *
+     * @return true if the listener was added
+     */
+    public synchronized boolean add(T listener) {
+        if (null == listener || indexOf(listener) >= 0) {
+            return false;
+        }
+        Object[] listeners = mListeners;
+        Object[] newListeners = newArray(listeners.length + 1);
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = mWeak ? new WeakReference<T>(listener) : listener;
+        mListeners = newListeners;
+        return true;
+    }
+
+    /**
+     * @return true if the listener was registered
+     */
+    public synchronized boolean remove(T listener) {
+        int index = indexOf(listener);
+        if (index < 0) {
+            return false;
+        }
+        Object[] listeners = mListeners;
+        Object[] newListeners = newArray(listeners.length - 1);
+        System.arraycopy(listeners, 0, newListeners, 0, index);
+        System.arraycopy(listeners, index + 1, newListeners, index, listeners.length - index - 1);
+        mListeners = newListeners;
+        return true;
+    }
+
+    public synchronized void clear() {
+        mListeners = newArray(0);
+    }
+
+    /**
+     * @return The number of registered listeners, excluding the ones which have been garbage
+     * collected in weak mode.
+     */
+    public int size() {
+        if (mWeak) {
+            prune();
+        }
+        return mListeners.length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the listeners registered at the time of the call. The returned array must not be
+     * modified.
+     */
+    @SuppressWarnings("unchecked")
+    public T[] snapshot() {
+        Object[] listeners = mListeners;
+        if (!mWeak) {
+            return (T[]) listeners;
+        }
+        if (listeners.length == 0) {
+            return mEmpty;
+        }
+        T[] result = (T[]) Array.newInstance(mType, listeners.length);
+        int count = 0;
+        for (Object reference : listeners) {
+            T listener = ((WeakReference<T>) reference).get();
+            if (null != listener) {
+                result[count++] = listener;
+            }
+        }
+        if (count < listeners.length) {
+            prune();
+            T[] trimmed = (T[]) Array.newInstance(mType, count);
+            System.arraycopy(result, 0, trimmed, 0, count);
+            return trimmed;
+        }
+        return result;
+    }
+
+    /**
+     * Drops the weak references which have been cleared.
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized void prune() {
+        Object[] listeners = mListeners;
+        int count = 0;
+        for (Object reference : listeners) {
+            if (null != ((WeakReference<T>) reference).get()) {
+                count++;
+            }
+        }
+        if (count == listeners.length) {
+            return;
+        }
+        Object[] newListeners = newArray(count);
+        int i = 0;
+        for (Object reference : listeners) {
+            if (null != ((WeakReference<T>) reference).get()) {
+                newListeners[i++] = reference;
+            }
+        }
+        mListeners = newListeners;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int indexOf(T listener) {
+        Object[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            Object item = mWeak ? ((WeakReference<T>) listeners[i]).get() : listeners[i];
+            if (listener.equals(item)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Object[] newArray(int length) {
+        if (mWeak) {
+            return new WeakReference<?>[length];
+        }
+        return (Object[]) Array.newInstance(mType, length);
+    }
+}
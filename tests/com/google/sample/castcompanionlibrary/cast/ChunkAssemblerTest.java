@@ -0,0 +1,115 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.sample.castcompanionlibrary.cast.MessageChunker.Chunk;
+
+public class ChunkAssemblerTest {
+
+    private static final String NAMESPACE = "urn:x-cast:test";
+    private static final String OTHER_NAMESPACE = "urn:x-cast:other";
+
+    @Test
+    public void reassemblesInterleavedStreams() {
+        ChunkAssembler assembler = new ChunkAssembler(1000);
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 0, false, "ab")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("2", 0, false, "12")));
+        // Same id in another namespace is another stream
+        assertNull(assembler.add(OTHER_NAMESPACE, new Chunk("1", 0, false, "xy")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 1, false, "cd")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("2", 1, false, "34")));
+        assertEquals("z", assembler.add(OTHER_NAMESPACE, new Chunk("3", 0, true, "z")));
+        assertEquals("abcde", assembler.add(NAMESPACE, new Chunk("1", 2, true, "e")));
+        assertEquals("xyz", assembler.add(OTHER_NAMESPACE, new Chunk("1", 1, true, "z")));
+        assertEquals("12345", assembler.add(NAMESPACE, new Chunk("2", 2, true, "5")));
+    }
+
+    @Test
+    public void reassemblesInterleavedSplitMessages() {
+        String first = MessageChunkerTest.buildMessage(3000);
+        String second = MessageChunkerTest.buildMessage(2000).toUpperCase();
+        List<String> firstChunks = MessageChunker.split(first, "a", 200);
+        List<String> secondChunks = MessageChunker.split(second, "b", 200);
+
+        ChunkAssembler assembler = new ChunkAssembler(10000);
+        String firstResult = null;
+        String secondResult = null;
+        for (int i = 0; i < Math.max(firstChunks.size(), secondChunks.size()); i++) {
+            if (i < firstChunks.size()) {
+                firstResult = assembler.add(NAMESPACE, MessageChunker.parse(firstChunks.get(i)));
+            }
+            if (i < secondChunks.size()) {
+                secondResult = assembler.add(NAMESPACE,
+                        MessageChunker.parse(secondChunks.get(i)));
+            }
+        }
+        assertEquals(first, firstResult);
+        assertEquals(second, secondResult);
+    }
+
+    @Test
+    public void dropsStreamWithMissingChunk() {
+        ChunkAssembler assembler = new ChunkAssembler(1000);
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 0, false, "ab")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 2, false, "ef")));
+        // The rest of the stream is ignored
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 3, true, "g")));
+        // The id can be reused by a new stream
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 0, false, "hi")));
+        assertEquals("hij", assembler.add(NAMESPACE, new Chunk("1", 1, true, "j")));
+    }
+
+    @Test
+    public void newStreamReplacesPartialStreamWithSameId() {
+        ChunkAssembler assembler = new ChunkAssembler(1000);
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 0, false, "ab")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 1, false, "cd")));
+        // The sender restarted the stream, the partial one is dropped
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 0, false, "xy")));
+        assertEquals("xyz", assembler.add(NAMESPACE, new Chunk("1", 1, true, "z")));
+
+        assertNull(assembler.add(NAMESPACE, new Chunk("2", 0, false, "ab")));
+        assertEquals("c", assembler.add(NAMESPACE, new Chunk("2", 0, true, "c")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("2", 1, true, "d")));
+    }
+
+    @Test
+    public void ignoresStreamWithoutBeginning() {
+        ChunkAssembler assembler = new ChunkAssembler(1000);
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 1, false, "cd")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 2, true, "e")));
+    }
+
+    @Test
+    public void capDropsLeastRecentlyUpdatedStream() {
+        ChunkAssembler assembler = new ChunkAssembler(10);
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 0, false, "aaaa")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("2", 0, false, "bbbb")));
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 1, false, "aa")));
+        // Stream 2 was updated least recently and is dropped
+        assertNull(assembler.add(NAMESPACE, new Chunk("3", 0, false, "cccc")));
+
+        assertNull(assembler.add(NAMESPACE, new Chunk("2", 1, true, "b")));
+        assertEquals("aaaaaaa", assembler.add(NAMESPACE, new Chunk("1", 2, true, "a")));
+        assertEquals("ccccc", assembler.add(NAMESPACE, new Chunk("3", 1, true, "c")));
+    }
+
+    @Test
+    public void loweringCapDropsStreams() {
+        ChunkAssembler assembler = new ChunkAssembler(100);
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 0, false, "aaaa")));
+        assembler.setMaxSize(2);
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 1, true, "a")));
+    }
+
+    @Test
+    public void zeroCapDisablesReassembly() {
+        ChunkAssembler assembler = new ChunkAssembler(0);
+        assertNull(assembler.add(NAMESPACE, new Chunk("1", 0, true, "a")));
+    }
+}
@@ -0,0 +1,165 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.Status;
+
+/*
+ * The windows never expire here, as the handlers of the unit tests don't run anything: batches
+ * are only sent when they reach their size cap or when they are flushed.
+ */
+public class MessageBatcherTest {
+
+    private static final String NAMESPACE = "urn:x-cast:test";
+    private static final String MESSAGE = "0123456789";
+
+    private static class RecordingSink implements MessageBatcher.Sink {
+
+        final List<String> mMessages = new ArrayList<String>();
+        final List<SendFuture> mFutures = new ArrayList<SendFuture>();
+
+        @Override
+        public void send(String namespace, String message, SendFuture future) {
+            assertEquals(NAMESPACE, namespace);
+            mMessages.add(message);
+            mFutures.add(future);
+        }
+    }
+
+    @Test
+    public void returnsNullWhenDisabled() {
+        RecordingSink sink = new RecordingSink();
+        MessageBatcher batcher = new MessageBatcher(sink);
+        assertNull(batcher.add(NAMESPACE, MESSAGE, null));
+
+        batcher.setPolicy(NAMESPACE, 1000L, 1000);
+        assertTrue(batcher.isEnabled(NAMESPACE));
+        batcher.add(NAMESPACE, MESSAGE, null);
+        // Disabling flushes the pending messages
+        batcher.setPolicy(NAMESPACE, 0L, 1000);
+        assertFalse(batcher.isEnabled(NAMESPACE));
+        assertEquals(1, sink.mMessages.size());
+        assertNull(batcher.add(NAMESPACE, MESSAGE, null));
+    }
+
+    @Test
+    public void flushesWhenBatchReachesSizeCap() {
+        RecordingSink sink = new RecordingSink();
+        MessageBatcher batcher = new MessageBatcher(sink);
+        String[] messages = new String[5];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = "message " + i;
+        }
+        // The estimated size of the envelope of these 5 messages
+        int maxBytes = 91;
+        batcher.setPolicy(NAMESPACE, 1000L, maxBytes);
+        SendFuture future = batcher.add(NAMESPACE, messages[0], null);
+        for (int i = 1; i < 4; i++) {
+            assertSame(future, batcher.add(NAMESPACE, messages[i], null));
+        }
+        assertTrue(sink.mMessages.isEmpty());
+
+        assertSame(future, batcher.add(NAMESPACE, messages[4], null));
+        assertEquals(1, sink.mMessages.size());
+        assertSame(future, sink.mFutures.get(0));
+        String envelope = sink.mMessages.get(0);
+        assertTrue(envelope.length() <= maxBytes);
+        assertArrayEquals(messages, MessageBatcher.unpack(envelope));
+    }
+
+    @Test
+    public void startsNewBatchWhenMessageWouldOverflow() {
+        RecordingSink sink = new RecordingSink();
+        MessageBatcher batcher = new MessageBatcher(sink);
+        int maxBytes = 100;
+        batcher.setPolicy(NAMESPACE, 1000L, maxBytes);
+        SendFuture future = null;
+        for (int i = 0; i < 5; i++) {
+            future = batcher.add(NAMESPACE, MESSAGE, null);
+        }
+        assertTrue(sink.mMessages.isEmpty());
+
+        SendFuture nextFuture = batcher.add(NAMESPACE, "overflow", null);
+        assertNotSame(future, nextFuture);
+        assertEquals(1, sink.mMessages.size());
+        assertTrue(sink.mMessages.get(0).length() <= maxBytes);
+        assertEquals(5, MessageBatcher.unpack(sink.mMessages.get(0)).length);
+
+        // A single message is sent verbatim
+        batcher.flushAll();
+        assertEquals(2, sink.mMessages.size());
+        assertEquals("overflow", sink.mMessages.get(1));
+        assertSame(nextFuture, sink.mFutures.get(1));
+    }
+
+    @Test
+    public void coalescesMessagesWithSameKey() {
+        RecordingSink sink = new RecordingSink();
+        MessageBatcher batcher = new MessageBatcher(sink);
+        batcher.setPolicy(NAMESPACE, 1000L, 1000);
+        batcher.add(NAMESPACE, "a", "key");
+        batcher.add(NAMESPACE, "b", null);
+        batcher.add(NAMESPACE, "c", "key");
+        batcher.flushAll();
+
+        assertEquals(1, sink.mMessages.size());
+        // The latest message moves to the end of the batch
+        assertArrayEquals(new String[] {
+                "b", "c"
+        }, MessageBatcher.unpack(sink.mMessages.get(0)));
+    }
+
+    @Test
+    public void unpacksSpecialCharacters() {
+        List<String> messages = new ArrayList<String>();
+        messages.add("{\"text\":\"quoted \\\"value\\\"\"}");
+        messages.add("line 1\nline 2\t\\");
+        messages.add("");
+        String envelope = MessageBatcher.pack(messages, 64);
+        assertArrayEquals(messages.toArray(), MessageBatcher.unpack(envelope));
+
+        assertNull(MessageBatcher.unpack(MESSAGE));
+        assertNull(MessageBatcher.unpack("{\"__ccl\":\"batch\",\"messages\":"));
+    }
+
+    @Test
+    public void clearFailsPendingMessages() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        MessageBatcher batcher = new MessageBatcher(sink);
+        batcher.setPolicy(NAMESPACE, 1000L, 1000);
+        SendFuture future = batcher.add(NAMESPACE, MESSAGE, null);
+        batcher.clear();
+
+        assertTrue(future.isDone());
+        assertEquals(CastStatusCodes.NETWORK_ERROR, future.get().getStatusCode());
+        batcher.flushAll();
+        assertTrue(sink.mMessages.isEmpty());
+    }
+
+    @Test
+    public void batchSharesResultOfEnvelope() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        MessageBatcher batcher = new MessageBatcher(sink);
+        batcher.setPolicy(NAMESPACE, 1000L, 1000);
+        SendFuture first = batcher.add(NAMESPACE, MESSAGE, null);
+        SendFuture second = batcher.add(NAMESPACE, MESSAGE, null);
+        batcher.flushAll();
+
+        assertSame(first, second);
+        assertFalse(first.isDone());
+        sink.mFutures.get(0).complete(new Status(CastStatusCodes.SUCCESS));
+        assertTrue(first.get().isSuccess());
+    }
+}
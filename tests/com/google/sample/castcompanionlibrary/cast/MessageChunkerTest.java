@@ -0,0 +1,105 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.sample.castcompanionlibrary.cast.MessageChunker.Chunk;
+
+public class MessageChunkerTest {
+
+    private static final String EMOJI = "\uD83D\uDE00";
+
+    @Test
+    public void splitThenReassemble() {
+        String message = buildMessage(20000);
+        List<String> chunks = MessageChunker.split(message, "1a", 1000);
+        assertTrue(chunks.size() > 1);
+
+        ChunkAssembler assembler = new ChunkAssembler(message.length());
+        String result = null;
+        for (int i = 0; i < chunks.size(); i++) {
+            assertTrue(chunks.get(i).length() <= 1000);
+            assertTrue(MessageChunker.isChunk(chunks.get(i)));
+            Chunk chunk = MessageChunker.parse(chunks.get(i));
+            assertNotNull(chunk);
+            assertEquals("1a", chunk.mId);
+            assertEquals(i, chunk.mSequence);
+            assertEquals(i == chunks.size() - 1, chunk.mLast);
+            assertNull(result);
+            result = assembler.add("urn:x-cast:test", chunk);
+        }
+        assertEquals(message, result);
+    }
+
+    @Test
+    public void shortMessageIsSingleChunk() {
+        List<String> chunks = MessageChunker.split("hello", "2", 1000);
+        assertEquals(1, chunks.size());
+        Chunk chunk = MessageChunker.parse(chunks.get(0));
+        assertEquals(0, chunk.mSequence);
+        assertTrue(chunk.mLast);
+        assertEquals("hello", chunk.mData);
+    }
+
+    @Test
+    public void neverSplitsSurrogatePairs() {
+        // The escaped control characters force the parts to be halved down to a few characters
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append(EMOJI).append('\u0001').append(EMOJI).append(EMOJI).append("\u0002\u0003");
+        }
+        String message = sb.toString();
+        for (int maxLength = 90; maxLength < 130; maxLength++) {
+            StringBuilder result = new StringBuilder();
+            for (String envelope : MessageChunker.split(message, "3", maxLength)) {
+                String data = MessageChunker.parse(envelope).mData;
+                assertFalse("Split pair at length " + maxLength,
+                        Character.isHighSurrogate(data.charAt(data.length() - 1)));
+                assertFalse("Split pair at length " + maxLength,
+                        Character.isLowSurrogate(data.charAt(0)));
+                result.append(data);
+            }
+            assertEquals(message, result.toString());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooSmallLength() {
+        MessageChunker.split("hello", "4", 10);
+    }
+
+    @Test
+    public void parseRejectsOtherMessages() {
+        assertFalse(MessageChunker.isChunk(null));
+        assertNull(MessageChunker.parse("{\"type\":\"PLAY\"}"));
+        assertNull(MessageChunker.parse("{\"__ccl\":\"chunk\",\"id\":\"5\"}"));
+    }
+
+    static String buildMessage(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; sb.length() < length; i++) {
+            switch (i % 5) {
+                case 0:
+                    sb.append("{\"key\":\"value\\n\"}");
+                    break;
+                case 1:
+                    sb.append(EMOJI);
+                    break;
+                case 2:
+                    sb.append('\t');
+                    break;
+                default:
+                    sb.append((char) ('a' + i % 26));
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
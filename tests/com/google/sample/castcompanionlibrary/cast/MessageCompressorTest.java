@@ -0,0 +1,130 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/*
+ * android.util.Base64 is a stub in the unit tests, so the data is encoded in hexadecimal here.
+ */
+public class MessageCompressorTest {
+
+    private static final MessageCompressor.Encoding HEX = new MessageCompressor.Encoding() {
+
+        private static final String DIGITS = "0123456789abcdef";
+
+        @Override
+        public String encode(byte[] data) {
+            StringBuilder builder = new StringBuilder(data.length * 2);
+            for (byte b : data) {
+                builder.append(DIGITS.charAt((b >> 4) & 0xf)).append(DIGITS.charAt(b & 0xf));
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public byte[] decode(String data) {
+            if ((data.length() % 2) != 0) {
+                throw new IllegalArgumentException("Odd length");
+            }
+            byte[] result = new byte[data.length() / 2];
+            for (int i = 0; i < result.length; i++) {
+                int high = DIGITS.indexOf(data.charAt(i * 2));
+                int low = DIGITS.indexOf(data.charAt(i * 2 + 1));
+                if ((high < 0) || (low < 0)) {
+                    throw new IllegalArgumentException("Invalid digit");
+                }
+                result[i] = (byte) ((high << 4) | low);
+            }
+            return result;
+        }
+    };
+
+    private static String buildCompressibleMessage() {
+        StringBuilder builder = new StringBuilder("{\"scores\":[");
+        for (int i = 0; i < 200; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"team\":\"home\",\"score\":").append(i % 10).append('}');
+        }
+        return builder.append("]}").toString();
+    }
+
+    @Test
+    public void roundTrip() {
+        MessageCompressor compressor = new MessageCompressor(HEX);
+        String message = buildCompressibleMessage();
+        String envelope = compressor.compress(message);
+        assertNotNull(envelope);
+        assertTrue(envelope.length() < message.length());
+        assertTrue(MessageCompressor.isCompressed(envelope));
+        assertFalse(MessageCompressor.isCompressed(message));
+        assertEquals(message, compressor.decompress(envelope));
+        assertTrue(compressor.getCompressionRatio() < 1d);
+    }
+
+    @Test
+    public void roundTripNonAscii() {
+        MessageCompressor compressor = new MessageCompressor(HEX);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append("caf\u00e9 \u00fcber \uD83D\uDE00 ");
+        }
+        String message = builder.toString();
+        assertEquals(message, compressor.decompress(compressor.compress(message)));
+    }
+
+    @Test
+    public void skipsMessagesNotWorthCompressing() {
+        MessageCompressor compressor = new MessageCompressor(HEX);
+        assertNull(compressor.compress("{\"score\":3}"));
+        assertEquals(1d, compressor.getCompressionRatio(), 0d);
+    }
+
+    @Test
+    public void rejectsMalformedEnvelopes() throws Exception {
+        MessageCompressor compressor = new MessageCompressor(HEX);
+        String message = buildCompressibleMessage();
+        String envelope = compressor.compress(message);
+        String data = new JSONObject(envelope).getString("data");
+        // Keeps an even number of digits
+        String truncatedData = data.substring(0, (data.length() / 4) * 2);
+
+        assertNull(compressor.decompress("{\"__ccl\":\"deflate\""));
+        assertNull(compressor.decompress("{\"__ccl\":\"deflate\"}"));
+        assertNull(compressor.decompress(buildEnvelope("not hex")));
+        // Not deflate data
+        assertNull(compressor.decompress(buildEnvelope("00ff00ff00ff")));
+        // Truncated deflate data
+        assertNull(compressor.decompress(buildEnvelope(truncatedData)));
+
+        // The compressor is still usable
+        assertEquals(message, compressor.decompress(envelope));
+    }
+
+    @Test
+    public void parsesCapabilities() {
+        String capabilities = MessageCompressor.buildCapabilities(true);
+        assertTrue(MessageCompressor.isCapabilities(capabilities));
+        assertFalse(MessageCompressor.isCapabilities(buildEnvelope("00")));
+        JSONObject parsed = MessageCompressor.parseCapabilities(capabilities);
+        assertTrue(MessageCompressor.supportsDeflate(parsed));
+        assertTrue(MessageCompressor.isReplyRequested(parsed));
+
+        parsed = MessageCompressor.parseCapabilities(MessageCompressor.buildCapabilities(false));
+        assertFalse(MessageCompressor.isReplyRequested(parsed));
+        parsed = MessageCompressor.parseCapabilities("{\"__ccl\":\"caps\",\"compression\":[]}");
+        assertFalse(MessageCompressor.supportsDeflate(parsed));
+        assertNull(MessageCompressor.parseCapabilities("{\"__ccl\":\"caps\""));
+    }
+
+    private static String buildEnvelope(String data) {
+        return "{\"__ccl\":\"deflate\",\"data\":\"" + data + "\"}";
+    }
+}
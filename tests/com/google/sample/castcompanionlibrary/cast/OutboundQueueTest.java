@@ -0,0 +1,166 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+public class OutboundQueueTest {
+
+    private static final String NAMESPACE = "urn:x-cast:test";
+
+    private static class RecordingTransport implements OutboundQueue.Transport {
+
+        final List<String> mSent = new ArrayList<String>();
+        final List<ResultCallback<Status>> mCallbacks = new ArrayList<ResultCallback<Status>>();
+        final List<Integer> mFailures = new ArrayList<Integer>();
+
+        @Override
+        public void send(String namespace, String message, ResultCallback<Status> callback) {
+            mSent.add(message);
+            mCallbacks.add(callback);
+        }
+
+        @Override
+        public void onSendFailed(String namespace, Status status) {
+            mFailures.add(status.getStatusCode());
+        }
+
+        void succeed(int index) {
+            mCallbacks.get(index).onResult(new Status(CastStatusCodes.SUCCESS));
+        }
+    }
+
+    private static int getStatusCode(SendFuture future) throws InterruptedException {
+        assertTrue(future.isDone());
+        return future.get().getStatusCode();
+    }
+
+    @Test
+    public void limitsMessagesInFlight() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OutboundQueue queue = new OutboundQueue(transport);
+        queue.setPolicy(NAMESPACE, 2, 10, OutboundQueue.OVERFLOW_DROP_NEWEST);
+        SendFuture[] futures = new SendFuture[3];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = queue.enqueue(NAMESPACE, "message " + i, null);
+        }
+        assertEquals(2, transport.mSent.size());
+        assertEquals(2, queue.getInFlightCount(NAMESPACE));
+        assertEquals(1, queue.getQueueDepth(NAMESPACE));
+
+        transport.succeed(0);
+        assertEquals(CastStatusCodes.SUCCESS, getStatusCode(futures[0]));
+        assertEquals(3, transport.mSent.size());
+        assertEquals("message 2", transport.mSent.get(2));
+        assertEquals(0, queue.getQueueDepth(NAMESPACE));
+        assertFalse(futures[2].isDone());
+    }
+
+    @Test
+    public void dropsNewestMessageWhenFull() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OutboundQueue queue = new OutboundQueue(transport);
+        queue.setPolicy(NAMESPACE, 1, 1, OutboundQueue.OVERFLOW_DROP_NEWEST);
+        queue.enqueue(NAMESPACE, "sent", null);
+        SendFuture queued = queue.enqueue(NAMESPACE, "queued", null);
+        SendFuture dropped = queue.enqueue(NAMESPACE, "dropped", null);
+
+        assertEquals(CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL, getStatusCode(dropped));
+        assertEquals(1, transport.mFailures.size());
+        assertFalse(queued.isDone());
+        transport.succeed(0);
+        assertEquals("queued", transport.mSent.get(1));
+    }
+
+    @Test
+    public void dropsOldestMessageWhenFull() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OutboundQueue queue = new OutboundQueue(transport);
+        queue.setPolicy(NAMESPACE, 1, 1, OutboundQueue.OVERFLOW_DROP_OLDEST);
+        queue.enqueue(NAMESPACE, "sent", null);
+        SendFuture dropped = queue.enqueue(NAMESPACE, "dropped", null);
+        SendFuture queued = queue.enqueue(NAMESPACE, "queued", null);
+
+        assertEquals(CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL, getStatusCode(dropped));
+        assertEquals(1, transport.mFailures.size());
+        assertFalse(queued.isDone());
+        transport.succeed(0);
+        assertEquals("queued", transport.mSent.get(1));
+    }
+
+    @Test
+    public void waitCompletesFutureOnAdmission() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OutboundQueue queue = new OutboundQueue(transport);
+        queue.setPolicy(NAMESPACE, 1, 1, OutboundQueue.OVERFLOW_WAIT);
+        SendFuture sent = queue.enqueue(NAMESPACE, "sent", null);
+        SendFuture queued = queue.enqueue(NAMESPACE, "queued", null);
+        SendFuture waiting = queue.enqueue(NAMESPACE, "waiting", null);
+        SendFuture dropped = queue.enqueue(NAMESPACE, "dropped", null);
+
+        // Admitted right away, before being sent
+        assertEquals(CastStatusCodes.SUCCESS, getStatusCode(sent));
+        assertEquals(CastStatusCodes.SUCCESS, getStatusCode(queued));
+        assertFalse(waiting.isDone());
+        assertEquals(CastStatusCodes.MESSAGE_SEND_BUFFER_TOO_FULL, getStatusCode(dropped));
+        assertEquals(3, queue.getQueueDepth(NAMESPACE) + queue.getInFlightCount(NAMESPACE));
+
+        transport.succeed(0);
+        assertEquals(CastStatusCodes.SUCCESS, getStatusCode(waiting));
+        assertEquals(2, transport.mSent.size());
+        assertEquals("queued", transport.mSent.get(1));
+
+        // The failures of admitted messages are only reported to the transport
+        transport.mCallbacks.get(1).onResult(new Status(CastStatusCodes.NETWORK_ERROR));
+        assertEquals(2, transport.mFailures.size());
+        assertEquals(CastStatusCodes.NETWORK_ERROR, transport.mFailures.get(1).intValue());
+        assertEquals("waiting", transport.mSent.get(2));
+    }
+
+    @Test
+    public void clearFailsQueuedMessages() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OutboundQueue queue = new OutboundQueue(transport);
+        queue.setPolicy(NAMESPACE, 1, 10, OutboundQueue.OVERFLOW_DROP_NEWEST);
+        SendFuture sent = queue.enqueue(NAMESPACE, "sent", null);
+        SendFuture queued = queue.enqueue(NAMESPACE, "queued", null);
+        queue.clear();
+
+        assertEquals(CastStatusCodes.NETWORK_ERROR, getStatusCode(queued));
+        assertEquals(0, queue.getQueueDepth(NAMESPACE));
+        assertEquals(0, queue.getInFlightCount(NAMESPACE));
+        // The messages in flight are forgotten, their late result doesn't free a slot twice
+        transport.succeed(0);
+        assertTrue(sent.isDone());
+        assertEquals(0, queue.getInFlightCount(NAMESPACE));
+    }
+
+    @Test
+    public void highPriorityBacklogHoldsBulkMessages() {
+        RecordingTransport transport = new RecordingTransport();
+        OutboundQueue queue = new OutboundQueue(transport);
+        String bulkNamespace = "urn:x-cast:bulk";
+        queue.setPriority(NAMESPACE, OutboundQueue.PRIORITY_HIGH);
+        queue.setPolicy(NAMESPACE, 1, 10, OutboundQueue.OVERFLOW_DROP_NEWEST);
+        queue.setPriority(bulkNamespace, OutboundQueue.PRIORITY_BULK);
+        queue.enqueue(NAMESPACE, "high 1", null);
+        queue.enqueue(NAMESPACE, "high 2", null);
+        queue.enqueue(bulkNamespace, "bulk", null);
+        assertEquals(1, transport.mSent.size());
+
+        // Bulk messages go as soon as no high priority message is waiting
+        transport.succeed(0);
+        assertEquals(3, transport.mSent.size());
+        assertEquals("high 2", transport.mSent.get(1));
+        assertEquals("bulk", transport.mSent.get(2));
+    }
+}
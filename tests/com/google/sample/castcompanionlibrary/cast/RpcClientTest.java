@@ -0,0 +1,183 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.sample.castcompanionlibrary.cast.exceptions.CastException;
+
+/*
+ * The callbacks and the timeouts go through a handler, which doesn't run anything in the unit
+ * tests: the results are checked through the futures, and the timeouts are fired by hand.
+ */
+public class RpcClientTest {
+
+    private static final String NAMESPACE = "urn:x-cast:test";
+    private static final long TIMEOUT_MS = 1000L;
+
+    private static class RecordingSender implements RpcClient.Sender {
+
+        final List<String> mMessages = new ArrayList<String>();
+        final List<SendFuture> mFutures = new ArrayList<SendFuture>();
+
+        @Override
+        public SendFuture send(String namespace, String message) {
+            assertEquals(NAMESPACE, namespace);
+            SendFuture future = new SendFuture();
+            mMessages.add(message);
+            mFutures.add(future);
+            return future;
+        }
+
+        String getId(int index) throws Exception {
+            return new JSONObject(mMessages.get(index)).getString("id");
+        }
+    }
+
+    private static String buildReply(String id, String fields) {
+        return "{\"__ccl\":\"rpc-reply\",\"id\":\"" + id + "\"," + fields + "}";
+    }
+
+    private static void assertFailed(Future<String> future, String expectedMessage)
+            throws InterruptedException {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("Call should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CastException);
+            assertTrue(e.getCause().getMessage(),
+                    e.getCause().getMessage().contains(expectedMessage));
+        }
+    }
+
+    @Test
+    public void sendsRequests() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        RpcClient client = new RpcClient(sender);
+        client.call(NAMESPACE, "getScore", "{\"team\":\"home\"}", TIMEOUT_MS, null);
+        client.call(NAMESPACE, "reset", null, TIMEOUT_MS, null);
+
+        JSONObject request = new JSONObject(sender.mMessages.get(0));
+        assertEquals("rpc", request.getString("__ccl"));
+        assertEquals("getScore", request.getString("method"));
+        assertEquals("home", request.getJSONObject("params").getString("team"));
+        request = new JSONObject(sender.mMessages.get(1));
+        assertFalse(request.has("params"));
+        assertFalse(sender.getId(0).equals(sender.getId(1)));
+        assertEquals(2, client.getPendingCallCount());
+    }
+
+    @Test
+    public void matchesRepliesToCalls() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        RpcClient client = new RpcClient(sender);
+        Future<String> first = client.call(NAMESPACE, "getScore", null, TIMEOUT_MS, null);
+        Future<String> second = client.call(NAMESPACE, "reset", null, TIMEOUT_MS, null);
+
+        String reply = buildReply(sender.getId(1), "\"result\":null");
+        assertTrue(RpcClient.isReply(reply));
+        client.onReplyReceived(reply);
+        assertTrue(second.isDone());
+        assertNull(second.get());
+        assertFalse(first.isDone());
+
+        client.onReplyReceived(buildReply(sender.getId(0), "\"result\":{\"score\":3}"));
+        assertEquals(3, new JSONObject(first.get()).getInt("score"));
+        assertEquals(0, client.getPendingCallCount());
+    }
+
+    @Test
+    public void failsOnErrorReply() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        RpcClient client = new RpcClient(sender);
+        Future<String> future = client.call(NAMESPACE, "getScore", null, TIMEOUT_MS, null);
+        client.onReplyReceived(buildReply(sender.getId(0),
+                "\"error\":\"Unknown team\",\"code\":2001"));
+
+        assertFailed(future, "2001: Unknown team");
+        assertEquals(0, client.getPendingCallCount());
+    }
+
+    @Test
+    public void ignoresMalformedAndUnknownReplies() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        RpcClient client = new RpcClient(sender);
+        Future<String> future = client.call(NAMESPACE, "getScore", null, TIMEOUT_MS, null);
+        client.onReplyReceived("{\"__ccl\":\"rpc-reply\",\"id\":");
+        client.onReplyReceived("{\"__ccl\":\"rpc-reply\",\"result\":1}");
+        client.onReplyReceived(buildReply("unknown", "\"result\":1"));
+
+        assertFalse(future.isDone());
+        assertEquals(1, client.getPendingCallCount());
+    }
+
+    @Test
+    public void failsOnTimeout() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        RpcClient client = new RpcClient(sender);
+        Future<String> future = client.call(NAMESPACE, "getScore", null, TIMEOUT_MS, null);
+        // The call is its own timeout task
+        ((Runnable) future).run();
+
+        assertFailed(future, "status " + CastStatusCodes.TIMEOUT);
+        assertEquals(0, client.getPendingCallCount());
+        // A late reply is ignored
+        client.onReplyReceived(buildReply(sender.getId(0), "\"result\":1"));
+        assertFailed(future, "status " + CastStatusCodes.TIMEOUT);
+    }
+
+    @Test
+    public void failsFastWhenSendFails() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        RpcClient client = new RpcClient(sender);
+        Future<String> future = client.call(NAMESPACE, "getScore", null, TIMEOUT_MS, null);
+        sender.mFutures.get(0).complete(new Status(CastStatusCodes.NETWORK_ERROR));
+
+        assertFailed(future, "status " + CastStatusCodes.NETWORK_ERROR);
+        assertEquals(0, client.getPendingCallCount());
+    }
+
+    @Test
+    public void cancelAllFailsPendingCalls() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        RpcClient client = new RpcClient(sender);
+        Future<String> first = client.call(NAMESPACE, "getScore", null, TIMEOUT_MS, null);
+        Future<String> second = client.call(NAMESPACE, "reset", null, TIMEOUT_MS, null);
+        client.cancelAll();
+
+        assertFailed(first, "status " + CastStatusCodes.NETWORK_ERROR);
+        assertFailed(second, "status " + CastStatusCodes.NETWORK_ERROR);
+        assertEquals(0, client.getPendingCallCount());
+        // New calls are not affected
+        Future<String> third = client.call(NAMESPACE, "getScore", null, TIMEOUT_MS, null);
+        client.onReplyReceived(buildReply(sender.getId(2), "\"result\":1"));
+        assertEquals("1", third.get());
+    }
+
+    @Test
+    public void cancelsCall() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        RpcClient client = new RpcClient(sender);
+        Future<String> future = client.call(NAMESPACE, "getScore", null, TIMEOUT_MS, null);
+
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertFalse(future.cancel(false));
+        assertEquals(0, client.getPendingCallCount());
+        client.onReplyReceived(buildReply(sender.getId(0), "\"result\":1"));
+        assertTrue(future.isCancelled());
+    }
+}
@@ -0,0 +1,193 @@
+package com.google.sample.castcompanionlibrary.cast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class StateSynchronizerTest {
+
+    private static final String NAMESPACE = "urn:x-cast:test";
+    private static final String PADDING = new String(new char[200]).replace('\0', 'x');
+
+    private static class RecordingSender implements StateSynchronizer.Sender {
+
+        final List<String> mMessages = new ArrayList<String>();
+
+        @Override
+        public SendFuture send(String namespace, String message) {
+            assertEquals(NAMESPACE, namespace);
+            mMessages.add(message);
+            return new SendFuture();
+        }
+
+        JSONObject getLast() throws Exception {
+            return new JSONObject(mMessages.get(mMessages.size() - 1));
+        }
+    }
+
+    /*
+     * Large enough for the patches to be shorter than the snapshots.
+     */
+    private static JSONObject buildState(String fields) throws Exception {
+        return new JSONObject("{" + fields + ",\"padding\":\"" + PADDING + "\"}");
+    }
+
+    private static String buildAck(int version) {
+        return "{\"__ccl\":\"state-ack\",\"version\":" + version + "}";
+    }
+
+    private static void assertSnapshot(JSONObject message, int version) throws Exception {
+        assertEquals("state", message.getString("__ccl"));
+        assertEquals(version, message.getInt("version"));
+    }
+
+    /*
+     * The order of the keys of a JSON object is not specified, nor is the order of the ops.
+     */
+    private static JSONObject getOp(JSONArray ops, String type, String path) throws Exception {
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = (JSONObject) ops.get(i);
+            if (path.equals(op.getString("path"))) {
+                assertEquals(type, op.getString("op"));
+                return op;
+            }
+        }
+        fail("No op for " + path + " in " + ops);
+        return null;
+    }
+
+    @Test
+    public void sendsSnapshotsUntilAcknowledged() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        StateSynchronizer synchronizer = new StateSynchronizer(sender);
+        synchronizer.update(NAMESPACE, new JSONObject("{\"red\":2,\"blue\":1}"));
+        JSONObject message = sender.getLast();
+        assertSnapshot(message, 1);
+        assertEquals(2, message.getJSONObject("state").getInt("red"));
+
+        synchronizer.update(NAMESPACE, new JSONObject("{\"red\":3,\"blue\":1}"));
+        assertSnapshot(sender.getLast(), 2);
+    }
+
+    @Test
+    public void sendsPatchAgainstAcknowledgedVersion() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        StateSynchronizer synchronizer = new StateSynchronizer(sender);
+        synchronizer.update(NAMESPACE, buildState(
+                "\"red\":2,\"blue\":1,\"teams\":{\"home\":\"Lions\",\"away\":\"Bears\"},"
+                        + "\"a/b~c\":true"));
+        String ack = buildAck(1);
+        assertTrue(StateSynchronizer.isControlMessage(ack));
+        synchronizer.onControlMessageReceived(NAMESPACE, ack);
+
+        synchronizer.update(NAMESPACE, buildState(
+                "\"red\":3,\"green\":0,\"teams\":{\"home\":\"Lions\",\"away\":\"Wolves\"},"
+                        + "\"a/b~c\":true"));
+        JSONObject patch = sender.getLast();
+        assertEquals("state-patch", patch.getString("__ccl"));
+        assertEquals(2, patch.getInt("version"));
+        assertEquals(1, patch.getInt("base"));
+        JSONArray ops = patch.getJSONArray("ops");
+        assertEquals(4, ops.length());
+        getOp(ops, "remove", "/blue");
+        assertEquals(3, getOp(ops, "replace", "/red").getInt("value"));
+        assertEquals(0, getOp(ops, "add", "/green").getInt("value"));
+        assertEquals("Wolves", getOp(ops, "replace", "/teams/away").getString("value"));
+
+        // Patches stay against the last acknowledged version
+        synchronizer.update(NAMESPACE, buildState(
+                "\"red\":3,\"green\":0,\"teams\":{\"home\":\"Lions\",\"away\":\"Wolves\"}"));
+        patch = sender.getLast();
+        assertEquals(3, patch.getInt("version"));
+        assertEquals(1, patch.getInt("base"));
+        ops = patch.getJSONArray("ops");
+        assertEquals(5, ops.length());
+        getOp(ops, "remove", "/a~1b~0c");
+    }
+
+    @Test
+    public void sendsSnapshotWhenPatchIsNotShorter() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        StateSynchronizer synchronizer = new StateSynchronizer(sender);
+        synchronizer.update(NAMESPACE, new JSONObject("{\"red\":2}"));
+        synchronizer.onControlMessageReceived(NAMESPACE, buildAck(1));
+        synchronizer.update(NAMESPACE, new JSONObject("{\"red\":3}"));
+        assertSnapshot(sender.getLast(), 2);
+    }
+
+    @Test
+    public void skipsUnchangedState() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        StateSynchronizer synchronizer = new StateSynchronizer(sender);
+        synchronizer.update(NAMESPACE, new JSONObject("{\"red\":2,\"scores\":[1,2.5]}"));
+        SendFuture future = synchronizer.update(NAMESPACE,
+                new JSONObject("{\"scores\":[1,2.5],\"red\":2.0}"));
+
+        assertEquals(1, sender.mMessages.size());
+        assertTrue(future.isDone());
+        assertTrue(future.get().isSuccess());
+    }
+
+    @Test
+    public void sendsSnapshotOnResync() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        StateSynchronizer synchronizer = new StateSynchronizer(sender);
+        synchronizer.update(NAMESPACE, buildState("\"red\":2"));
+        synchronizer.onControlMessageReceived(NAMESPACE, buildAck(1));
+
+        String resync = "{\"__ccl\":\"state-resync\"}";
+        assertTrue(StateSynchronizer.isControlMessage(resync));
+        synchronizer.onControlMessageReceived(NAMESPACE, resync);
+        JSONObject message = sender.getLast();
+        assertSnapshot(message, 2);
+        assertEquals(2, message.getJSONObject("state").getInt("red"));
+
+        // Nothing is acknowledged anymore, the stale ack is ignored
+        synchronizer.onControlMessageReceived(NAMESPACE, buildAck(1));
+        synchronizer.update(NAMESPACE, buildState("\"red\":3"));
+        assertSnapshot(sender.getLast(), 3);
+
+        synchronizer.onControlMessageReceived(NAMESPACE, buildAck(3));
+        synchronizer.update(NAMESPACE, buildState("\"red\":2"));
+        assertEquals("state-patch", sender.getLast().getString("__ccl"));
+        assertEquals(3, sender.getLast().getInt("base"));
+    }
+
+    @Test
+    public void sendsPeriodicSnapshots() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        StateSynchronizer synchronizer = new StateSynchronizer(sender);
+        synchronizer.setSnapshotInterval(2);
+        synchronizer.update(NAMESPACE, buildState("\"red\":0"));
+        synchronizer.onControlMessageReceived(NAMESPACE, buildAck(1));
+        for (int i = 1; i <= 2; i++) {
+            synchronizer.update(NAMESPACE, buildState("\"red\":" + i));
+            assertEquals("state-patch", sender.getLast().getString("__ccl"));
+        }
+        synchronizer.update(NAMESPACE, buildState("\"red\":3"));
+        assertSnapshot(sender.getLast(), 4);
+    }
+
+    @Test
+    public void ignoresMalformedControlMessages() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        StateSynchronizer synchronizer = new StateSynchronizer(sender);
+        synchronizer.update(NAMESPACE, buildState("\"red\":0"));
+        synchronizer.onControlMessageReceived(NAMESPACE, "{\"__ccl\":\"state-ack\"}");
+        synchronizer.onControlMessageReceived(NAMESPACE, "{\"__ccl\":\"state-ack\",\"version\":");
+        // Unknown namespaces are ignored
+        synchronizer.onControlMessageReceived("urn:x-cast:other", buildAck(1));
+
+        assertFalse(StateSynchronizer.isControlMessage("{\"__ccl\":\"state\"}"));
+        synchronizer.update(NAMESPACE, buildState("\"red\":1"));
+        assertSnapshot(sender.getLast(), 2);
+    }
+}
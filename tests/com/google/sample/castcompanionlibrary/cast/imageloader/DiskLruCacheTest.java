@@ -0,0 +1,195 @@
+package com.google.sample.castcompanionlibrary.cast.imageloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+public class DiskLruCacheTest {
+
+	private static final int DATA_SIZE = 1024;
+
+	private File directory;
+	private DiskLruCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("DiskLruCacheTest", "");
+		directory.delete();
+		cache = DiskLruCache.open(directory, Long.MAX_VALUE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cache.close();
+		deleteRecursively(directory);
+	}
+
+	@Test
+	public void entriesSurviveReopen() throws IOException {
+		put("a", data(1), "etag-a");
+		put("b", data(2), "etag-b");
+		long size = cache.size();
+		cache.close();
+
+		cache = DiskLruCache.open(directory, Long.MAX_VALUE);
+		assertEquals(size, cache.size());
+		assertEntry("a", data(1), "etag-a");
+		assertEntry("b", data(2), "etag-b");
+	}
+
+	@Test
+	public void journalReplaysReplacementsAndRemovals() throws IOException {
+		put("a", data(1), "v1");
+		put("b", data(2), "v1");
+		put("a", data(3), "v2");
+		assertTrue(cache.remove("b"));
+		Properties metadata = new Properties();
+		metadata.setProperty("etag", "v3");
+		assertTrue(cache.updateMetadata("a", metadata));
+		long size = cache.size();
+		cache.close();
+
+		cache = DiskLruCache.open(directory, Long.MAX_VALUE);
+		assertEquals(size, cache.size());
+		assertEntry("a", data(3), "v3");
+		assertNull(cache.get("b"));
+	}
+
+	@Test
+	public void journalReplaysAccessOrder() throws IOException {
+		put("a", data(1), null);
+		long entrySize = cache.size();
+		put("b", data(2), null);
+		put("c", data(3), null);
+		// b becomes the least recently used entry
+		assertNotNull(cache.get("a"));
+		cache.close();
+
+		// Reopening with a smaller size evicts in the replayed access order
+		cache = DiskLruCache.open(directory, 2 * entrySize);
+		assertNull(cache.get("b"));
+		assertEntry("a", data(1), null);
+		assertEntry("c", data(3), null);
+	}
+
+	@Test
+	public void corruptedJournalStartsOver() throws IOException {
+		put("a", data(1), null);
+		cache.close();
+		FileWriter writer = new FileWriter(new File(directory, DiskLruCache.JOURNAL_FILE), true);
+		writer.write("GARBAGE a\n");
+		writer.close();
+
+		cache = DiskLruCache.open(directory, Long.MAX_VALUE);
+		assertNull(cache.get("a"));
+		assertEquals(0L, cache.size());
+		put("b", data(2), null);
+		assertEntry("b", data(2), null);
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedEntries() throws IOException {
+		put("a", data(1), null);
+		long entrySize = cache.size();
+		cache.close();
+		cache = DiskLruCache.open(directory, 3 * entrySize);
+
+		put("b", data(2), null);
+		put("c", data(3), null);
+		assertNotNull(cache.get("a"));
+		put("d", data(4), null);
+
+		assertNull(cache.get("b"));
+		assertEntry("a", data(1), null);
+		assertEntry("c", data(3), null);
+		assertEntry("d", data(4), null);
+		assertTrue(cache.size() <= cache.maxSize());
+		assertFalse(new File(directory, "b.data").exists());
+	}
+
+	@Test
+	public void abortedEditIsDiscarded() throws IOException {
+		put("a", data(1), null);
+		DiskLruCache.Editor editor = cache.edit("a");
+		OutputStream out = editor.newOutputStream();
+		out.write(data(2));
+		out.close();
+		editor.abort();
+
+		assertEntry("a", data(1), null);
+	}
+
+	private void put(String key, byte[] data, String etag) throws IOException {
+		DiskLruCache.Editor editor = cache.edit(key);
+		OutputStream out = editor.newOutputStream();
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		Properties metadata = new Properties();
+		if (etag != null) {
+			metadata.setProperty("etag", etag);
+		}
+		editor.commit(metadata);
+	}
+
+	private void assertEntry(String key, byte[] data, String etag) throws IOException {
+		DiskLruCache.Snapshot snapshot = cache.get(key);
+		assertNotNull("Missing entry " + key, snapshot);
+		assertArrayEquals(data, readFile(snapshot.getFile()));
+		assertEquals(etag, snapshot.getMetadata().getProperty("etag"));
+	}
+
+	private static byte[] data(int seed) {
+		byte[] data = new byte[DATA_SIZE];
+		for (int i = 0; i < DATA_SIZE; i++) {
+			data[i] = (byte) (seed * 31 + i);
+		}
+		return data;
+	}
+
+	static byte[] readFile(File file) throws IOException {
+		return readFully(new FileInputStream(file));
+	}
+
+	static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,243 @@
+package com.google.sample.castcompanionlibrary.cast.imageloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+public class HttpImageFetcherTest {
+
+	private static final String ETAG = "\"v1\"";
+	private static final String LAST_MODIFIED = "Sat, 01 Jan 2000 00:00:00 GMT";
+	private static final byte[] IMAGE = "not really a PNG".getBytes();
+
+	private File directory;
+	private DiskLruCache cache;
+	private StubServer server;
+	private String url;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("HttpImageFetcherTest", "");
+		directory.delete();
+		cache = DiskLruCache.open(directory, 1024 * 1024);
+		server = new StubServer();
+		url = server.getUrl("/image.png");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.shutdown();
+		cache.close();
+		DiskLruCacheTest.deleteRecursively(directory);
+	}
+
+	@Test
+	public void revalidatesStaleEntryWithValidators() throws IOException {
+		server.enqueue(200, IMAGE, "ETag: " + ETAG, "Last-Modified: " + LAST_MODIFIED,
+				"Cache-Control: no-cache");
+		server.enqueue(304, null, "Cache-Control: no-cache");
+		HttpImageFetcher fetcher = new HttpImageFetcher(cache);
+
+		assertArrayEquals(IMAGE, read(fetcher.fetch(url)));
+		assertArrayEquals(IMAGE, read(fetcher.fetch(url)));
+
+		assertEquals(2, server.getRequestCount());
+		Map<String, String> first = server.takeRequest();
+		assertNull(first.get("if-none-match"));
+		assertNull(first.get("if-modified-since"));
+		Map<String, String> second = server.takeRequest();
+		assertEquals(ETAG, second.get("if-none-match"));
+		assertEquals(LAST_MODIFIED, second.get("if-modified-since"));
+	}
+
+	@Test
+	public void revalidationSurvivesReopen() throws IOException {
+		server.enqueue(200, IMAGE, "ETag: " + ETAG, "Cache-Control: no-cache");
+		server.enqueue(304, null);
+		assertArrayEquals(IMAGE, read(new HttpImageFetcher(cache).fetch(url)));
+
+		// Simulates a process restart
+		cache.close();
+		cache = DiskLruCache.open(directory, 1024 * 1024);
+		assertArrayEquals(IMAGE, read(new HttpImageFetcher(cache).fetch(url)));
+
+		server.takeRequest();
+		assertEquals(ETAG, server.takeRequest().get("if-none-match"));
+	}
+
+	@Test
+	public void servesFreshEntryWithoutNetwork() throws IOException {
+		server.enqueue(200, IMAGE, "Cache-Control: max-age=3600");
+		HttpImageFetcher fetcher = new HttpImageFetcher(cache);
+
+		assertArrayEquals(IMAGE, read(fetcher.fetch(url)));
+		assertArrayEquals(IMAGE, read(fetcher.fetch(url)));
+
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void replacesModifiedEntry() throws IOException {
+		byte[] modified = "another image".getBytes();
+		server.enqueue(200, IMAGE, "ETag: " + ETAG, "Cache-Control: no-cache");
+		server.enqueue(200, modified, "ETag: \"v2\"", "Cache-Control: no-cache");
+		server.enqueue(304, null);
+		HttpImageFetcher fetcher = new HttpImageFetcher(cache);
+
+		assertArrayEquals(IMAGE, read(fetcher.fetch(url)));
+		assertArrayEquals(modified, read(fetcher.fetch(url)));
+		assertArrayEquals(modified, read(fetcher.fetch(url)));
+
+		server.takeRequest();
+		server.takeRequest();
+		assertEquals("\"v2\"", server.takeRequest().get("if-none-match"));
+	}
+
+	@Test
+	public void doesNotStoreNoStoreResponses() throws IOException {
+		server.enqueue(200, IMAGE, "Cache-Control: no-store");
+		assertArrayEquals(IMAGE, read(new HttpImageFetcher(cache).fetch(url)));
+
+		assertNull(cache.get(HttpImageFetcher.keyFor(url)));
+	}
+
+	@Test
+	public void servesStaleEntryOnError() throws IOException {
+		server.enqueue(200, IMAGE, "ETag: " + ETAG, "Cache-Control: no-cache");
+		server.enqueue(500, null);
+		HttpImageFetcher fetcher = new HttpImageFetcher(cache);
+
+		assertArrayEquals(IMAGE, read(fetcher.fetch(url)));
+		assertArrayEquals(IMAGE, read(fetcher.fetch(url)));
+	}
+
+	@Test
+	public void returnsNullOnErrorWithoutEntry() throws IOException {
+		server.enqueue(404, null);
+
+		assertNull(new HttpImageFetcher(cache).fetch(url));
+	}
+
+	private static byte[] read(HttpImageFetcher.ImageSource source) throws IOException {
+		assertNotNull(source);
+		return DiskLruCacheTest.readFully(source.open());
+	}
+
+	/**
+	 * Serves the enqueued responses in order, one per connection, and records the request
+	 * headers with lower case names.
+	 */
+	static class StubServer implements Runnable {
+
+		private final ServerSocket serverSocket;
+		private final Thread thread;
+		private final LinkedList<byte[]> responses = new LinkedList<byte[]>();
+		private final LinkedList<Map<String, String>> requests = new LinkedList<Map<String, String>>();
+		private int requestCount;
+
+		StubServer() throws IOException {
+			serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			thread = new Thread(this, "StubServer");
+			thread.start();
+		}
+
+		String getUrl(String path) {
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+		}
+
+		synchronized void enqueue(int code, byte[] body, String... headers) {
+			StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(code).append(" Stub\r\n");
+			for (String header : headers) {
+				sb.append(header).append("\r\n");
+			}
+			if (body == null) {
+				body = new byte[0];
+			}
+			sb.append("Content-Length: ").append(body.length).append("\r\nConnection: close\r\n\r\n");
+			byte[] head = sb.toString().getBytes();
+			byte[] response = new byte[head.length + (code == 304 ? 0 : body.length)];
+			System.arraycopy(head, 0, response, 0, head.length);
+			System.arraycopy(body, 0, response, head.length, response.length - head.length);
+			responses.add(response);
+		}
+
+		synchronized int getRequestCount() {
+			return requestCount;
+		}
+
+		synchronized Map<String, String> takeRequest() {
+			return requests.poll();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					// Shut down
+					return;
+				}
+				try {
+					serve(socket);
+				} catch (IOException ignore) {
+				} finally {
+					DiskLruCache.closeQuietly(socket);
+				}
+			}
+		}
+
+		private void serve(Socket socket) throws IOException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			Map<String, String> headers = new HashMap<String, String>();
+			String line = reader.readLine();
+			while (((line = reader.readLine()) != null) && (line.length() > 0)) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				}
+			}
+			byte[] response;
+			synchronized (this) {
+				requests.add(headers);
+				requestCount++;
+				response = responses.poll();
+			}
+			if (response == null) {
+				response = "HTTP/1.1 503 Stub\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes();
+			}
+			OutputStream out = socket.getOutputStream();
+			out.write(response);
+			out.flush();
+		}
+
+		void shutdown() throws IOException {
+			serverSocket.close();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}